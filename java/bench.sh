@@ -0,0 +1,11 @@
+#! /bin/bash
+DBNAME=jsala054_DB
+PORT=9018
+USER=jsala054
+
+# Reloads the database from each data directory in turn and benchmarks the
+# data-access paths on it; results go to bench-results.json for diffing.
+# Example: ./bench.sh ../data
+#          java -Dbench.only=hasID,executeUpdate -cp lib/*:bin/ Benchmark $DBNAME $PORT $USER ../data out.json
+./compile.sh
+java -cp lib/*:bin/ Benchmark $DBNAME $PORT $USER ${1:-../data} ${2:-bench-results.json}
@@ -0,0 +1,12 @@
+#! /bin/bash
+DBNAME=jsala054_DB
+PORT=9018
+USER=jsala054
+
+# Explains every query the client issues and fails on sequential scans of
+# the hot paths or on plans that differ from plans-baseline.tsv.  Give a
+# data directory (e.g. one written by DataGenerator) to reload it first.
+# Example: ./plans.sh ../data-1m
+#          java -Dplans.accept=true -cp lib/*:bin/ PlanRegression $DBNAME $PORT $USER - plans-baseline.tsv
+./compile.sh
+java -cp lib/*:bin/ PlanRegression $DBNAME $PORT $USER ${1:--} ${2:-plans-baseline.tsv} ${3:-plans-results.json}
@@ -5,3 +5,55 @@ USER=jsala054
 
 # Example: source ./run.sh flightDB 5432 user
 java -cp lib/*:bin/ DBproject $DBNAME $PORT $USER
+
+# Reload every table from the CSV files on this machine:
+# java -cp lib/*:bin/ DBproject $DBNAME $PORT $USER --load ../data
+
+# Run Add* operations from a command file (see BatchRunner.java), 500 per
+# batch and 5000 per commit:
+# java -cp lib/*:bin/ DBproject $DBNAME $PORT $USER --batch ops.txt 500 5000
+
+
+# Run the menu in-process on the CSV files, without PostgreSQL:
+# java -cp lib/*:bin/ DBproject --embedded ../data
+
+# Generate a synthetic data set of about 10 million reservations and load it:
+# java -cp lib/*:bin/ DataGenerator ../data-10m 10000000
+# java -cp lib/*:bin/ DBproject $DBNAME $PORT $USER --load ../data-10m
+
+# Record latency histograms and round-trip counters, log SQL slower than
+# 200 ms and write a Prometheus text snapshot on exit:
+# java -Ddbproject.metrics=true -Ddbproject.slowQueryMs=200 -Ddbproject.metrics.file=metrics.prom -cp lib/*:bin/ DBproject $DBNAME $PORT $USER
+
+# Serve the menu operations over HTTP on port 8080 (see AirlineServer.java):
+# java -Ddbproject.pool.maxSize=16 -cp lib/*:bin/ DBproject $DBNAME $PORT $USER --serve 8080
+# curl "localhost:8080/seats?fnum=3"
+
+# Export a full passenger manifest as CSV or JSON Lines (by file extension):
+# java -cp lib/*:bin/ DBproject $DBNAME $PORT $USER --export manifest.csv "SELECT R.rnum, R.fid, R.status, C.* FROM Reservation R JOIN Customer C ON C.id = R.cid ORDER BY R.fid"
+
+# Send report reads to a local replica (postgresql/startReplica.sh) and the
+# writes to the primary; reads stay on the primary for 5 s after a write:
+# java -Ddbproject.replicas=localhost:9019 -Ddbproject.replica.maxLagMs=1000 -cp lib/*:bin/ DBproject $DBNAME $PORT $USER
+
+# Spread the flights over four databases on this server (shard 0 is
+# $DBNAME, postgresql/createShards.sh creates the others), load them and
+# run the menu against all four:
+# java -Ddbproject.shards=${USER}_DB_shard1,${USER}_DB_shard2,${USER}_DB_shard3 -cp lib/*:bin/ DBproject $DBNAME $PORT $USER --load-shards ../data
+# java -Ddbproject.shards=${USER}_DB_shard1,${USER}_DB_shard2,${USER}_DB_shard3 -cp lib/*:bin/ DBproject $DBNAME $PORT $USER
+
+# Move Repairs and Schedule to date-range partitions (PostgreSQL 11+), keep
+# three periods ahead and archive everything older than ten periods (ten
+# years of repairs, ten months of schedule); run it again from cron to keep
+# the partitions current:
+# java -Ddbproject.partitions.ahead=3 -Ddbproject.partitions.retain=10 -cp lib/*:bin/ DBproject $DBNAME $PORT $USER --partitions
+# java -cp lib/*:bin/ DBproject $DBNAME $PORT $USER --repairs-per-year 2013 2014
+
+# Commit concurrent bookings and inserts together, up to 64 per transaction
+# and waiting at most 2 ms for a group to fill (see GroupCommitter.java):
+# java -Ddbproject.groupCommit.maxOps=64 -Ddbproject.groupCommit.maxDelayMs=2 -Ddbproject.pool.maxSize=16 -cp lib/*:bin/ DBproject $DBNAME $PORT $USER --serve 8080
+
+# Acknowledge bookings and new rows once they are in a local journal and
+# apply them in the background, so they survive a stall or restart of the
+# database (see JournaledBackend.java):
+# java -Ddbproject.journal=writes.journal -Ddbproject.journal.sizeMb=64 -Ddbproject.metrics=true -cp lib/*:bin/ DBproject $DBNAME $PORT $USER
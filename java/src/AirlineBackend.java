@@ -0,0 +1,93 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * The operations behind the nine menu entries of {@link DBproject}.  The
+ * menus only gather input and print results; the work is done by one of three
+ * implementations, selected at startup: {@link DBproject} itself, which runs
+ * against PostgreSQL, {@link EmbeddedBackend}, which keeps the tables in
+ * memory inside the client process, or {@link ShardedBackend}, which spreads
+ * the flights over several PostgreSQL databases.
+ *
+ * Failures, including references to rows that do not exist, are reported as
+ * {@link java.sql.SQLException} by all implementations.
+ *
+ */
+public interface AirlineBackend {
+	/**
+	 * Method to add a plane.
+	 *
+	 * @return the id of the new plane
+	 * @throws java.sql.SQLException when the plane could not be added
+	 */
+	int addPlane(String make, String model, int age, int seats) throws SQLException;
+
+	/**
+	 * Method to add a pilot.
+	 *
+	 * @return the id of the new pilot
+	 * @throws java.sql.SQLException when the pilot could not be added
+	 */
+	int addPilot(String fullName, String nationality) throws SQLException;
+
+	/**
+	 * Method to add a technician.
+	 *
+	 * @return the id of the new technician
+	 * @throws java.sql.SQLException when the technician could not be added
+	 */
+	int addTechnician(String fullName) throws SQLException;
+
+	/**
+	 * Method to add a flight together with the FlightInfo row assigning its
+	 * pilot and plane.  Dates are given as yyyy-mm-dd.
+	 *
+	 * @return the number of the new flight
+	 * @throws java.sql.SQLException when the pilot or plane does not exist or the flight could not be added
+	 */
+	int addFlight(int cost, int numSold, int numStops, String departureDate, String arrivalDate,
+		String arrivalAirport, String departureAirport, int pilotId, int planeId) throws SQLException;
+
+	/**
+	 * Method to book a seat on a flight for a customer, with status 'R' if
+	 * the flight still has a free seat and 'W' (waitlisted) otherwise.
+	 * {@link JournaledBackend} returns status 'Q' until the booking is applied.
+	 *
+	 * @return the new reservation
+	 * @throws java.sql.SQLException when the customer or flight does not exist or the booking failed
+	 */
+	BookingEngine.Booking bookFlight(int cid, int fnum) throws SQLException;
+
+	/**
+	 * Method to look up the seats of a flight.
+	 *
+	 * @return the seat counters, or null if there is no such flight
+	 * @throws java.sql.SQLException when the lookup failed
+	 */
+	SeatAvailabilityService.FlightSeats availableSeats(int fnum) throws SQLException;
+
+	/**
+	 * Method to count the repairs of every plane, most repaired first.
+	 *
+	 * @return one (plane id, repair count) record per repaired plane
+	 * @throws java.sql.SQLException when the counts could not be read
+	 */
+	List<List<String>> repairsPerPlane() throws SQLException;
+
+	/**
+	 * Method to count the repairs of every year, ascending by year.
+	 *
+	 * @return one (year, repair count) record per year with repairs
+	 * @throws java.sql.SQLException when the counts could not be read
+	 */
+	List<List<String>> repairsPerYear() throws SQLException;
+
+	/**
+	 * Method to count the reservations with a status.
+	 *
+	 * @param status 'W', 'C' or 'R'
+	 * @return the number of passengers with that status
+	 * @throws java.sql.SQLException when the count could not be read
+	 */
+	int passengersWithStatus(String status) throws SQLException;
+}
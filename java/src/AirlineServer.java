@@ -0,0 +1,344 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves the nine menu operations over HTTP, so one process can
+ * serve many operators at once instead of one stdin menu per JVM.
+ *
+ * Parameters are passed in the query string or as a form-encoded body, and
+ * results come back as JSON:
+ * <pre>
+ * POST /planes        make, model, age, seats               {"id": n}
+ * POST /pilots        fullName, nationality                 {"id": n}
+ * POST /technicians   fullName                              {"id": n}
+ * POST /flights       cost, numSold, numStops, departureDate, arrivalDate,
+ *                     arrivalAirport, departureAirport, pilotId, planeId   {"fnum": n}
+ * POST /bookings      cid, fnum                             {"rnum": n, "fnum": n, "status": "R"}
+ * GET  /seats         fnum                                  {"fnum": n, "departureDate": ..., "capacity": n, "sold": n, "available": n}
+ * GET  /repairs/planes                                      [{"plane_id": n, "repair_count": n}, ...]
+ * GET  /repairs/years                                       [{"repair_year": n, "repair_count": n}, ...]
+ * GET  /passengers    status                                {"status": "R", "count": n}
+ * GET  /metrics       the Prometheus snapshot of {@link Metrics}
+ * </pre>
+ * A client that reads from replicas can name its session in an
+ * <code>X-Session</code> header, so its reads follow its own writes
+ * without pinning anyone else's to the primary; requests without one share
+ * the session of their client's address.
+ *
+ * Bad parameters are answered with 400, constraint violations such as a
+ * missing pilot with 409, and a request that waited
+ * <code>dbproject.pool.borrowTimeoutMs</code> for a connection with 503.
+ *
+ * Each request runs on its own virtual thread when the JVM has them (Java
+ * 21 and later) and on a pool of <code>dbproject.server.threads</code>
+ * platform threads otherwise.  Database work is bounded by the connection
+ * pool, so any number of requests can wait for one of its connections.
+ *
+ */
+public class AirlineServer {
+	private final AirlineBackend _backend;
+	private final HttpServer _server;
+	private final ExecutorService _executor;
+
+	/**
+	 * @param backend the backend the operations run on
+	 * @param address the address to listen on
+	 * @param port the port to listen on, 0 for any free port
+	 * @throws java.io.IOException when the port could not be bound
+	 */
+	public AirlineServer(AirlineBackend backend, InetAddress address, int port) throws IOException {
+		this._backend = backend;
+		this._server = HttpServer.create(new InetSocketAddress(address, port), Integer.getInteger("dbproject.server.backlog", 1024));
+		this._executor = newRequestExecutor();
+		this._server.setExecutor(this._executor);
+		this._server.createContext("/planes", post(this::addPlane));
+		this._server.createContext("/pilots", post(this::addPilot));
+		this._server.createContext("/technicians", post(this::addTechnician));
+		this._server.createContext("/flights", post(this::addFlight));
+		this._server.createContext("/bookings", post(this::bookFlight));
+		this._server.createContext("/seats", get(this::availableSeats));
+		this._server.createContext("/repairs/planes", get(p -> records(this._backend.repairsPerPlane(), "plane_id", "repair_count")));
+		this._server.createContext("/repairs/years", get(p -> records(this._backend.repairsPerYear(), "repair_year", "repair_count")));
+		this._server.createContext("/passengers", get(this::passengersWithStatus));
+		this._server.createContext("/metrics", this::metrics);
+	}
+
+	/*
+	 * One thread per request: virtual when available, looked up reflectively
+	 * so the client still builds and runs on older JDKs.
+	 */
+	static ExecutorService newRequestExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(Integer.getInteger("dbproject.server.threads", 200));
+		}
+	}
+
+	/**
+	 * Method to start accepting requests.
+	 */
+	public void start() {
+		this._server.start();
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int port() {
+		return this._server.getAddress().getPort();
+	}
+
+	/**
+	 * Method to stop accepting requests and wait up to a few seconds for
+	 * those in progress.
+	 */
+	public void stop() {
+		this._server.stop(1);
+		this._executor.shutdown();
+		try {
+			this._executor.awaitTermination(5, TimeUnit.SECONDS);
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * An operation answering a request with a JSON document.
+	 */
+	interface Operation {
+		String run(Params p) throws SQLException;
+	}
+
+	private String addPlane(Params p) throws SQLException {
+		return "{\"id\": " + this._backend.addPlane(p.string("make"), p.string("model"), p.integer("age"), p.integer("seats")) + "}";
+	}
+
+	private String addPilot(Params p) throws SQLException {
+		return "{\"id\": " + this._backend.addPilot(p.string("fullName"), p.string("nationality")) + "}";
+	}
+
+	private String addTechnician(Params p) throws SQLException {
+		return "{\"id\": " + this._backend.addTechnician(p.string("fullName")) + "}";
+	}
+
+	private String addFlight(Params p) throws SQLException {
+		int fnum = this._backend.addFlight(p.integer("cost"), p.integer("numSold"), p.integer("numStops"),
+			p.string("departureDate"), p.string("arrivalDate"), p.string("arrivalAirport"), p.string("departureAirport"),
+			p.integer("pilotId"), p.integer("planeId"));
+		return "{\"fnum\": " + fnum + "}";
+	}
+
+	private String bookFlight(Params p) throws SQLException {
+		BookingEngine.Booking b = this._backend.bookFlight(p.integer("cid"), p.integer("fnum"));
+		return "{\"rnum\": " + b.rnum + ", \"fnum\": " + b.fnum + ", \"status\": " + quote(b.status) + "}";
+	}
+
+	private String availableSeats(Params p) throws SQLException {
+		int fnum = p.integer("fnum");
+		SeatAvailabilityService.FlightSeats s = this._backend.availableSeats(fnum);
+		if (s == null)
+			throw new NotFound("Flight " + fnum + " does not exist");
+		return "{\"fnum\": " + s.fnum + ", \"departureDate\": " + quote(s.departureDate) + ", \"capacity\": " + s.capacity
+			+ ", \"sold\": " + s.sold() + ", \"available\": " + s.available() + "}";
+	}
+
+	private String passengersWithStatus(Params p) throws SQLException {
+		String status = p.string("status").trim().toUpperCase();
+		if (!status.equals("W") && !status.equals("C") && !status.equals("R"))
+			throw new IllegalArgumentException("status must be W, C or R");
+		return "{\"status\": " + quote(status) + ", \"count\": " + this._backend.passengersWithStatus(status) + "}";
+	}
+
+	private static String records(List<List<String>> records, String first, String second) {
+		StringBuilder sb = new StringBuilder(32 * records.size() + 2);
+		sb.append('[');
+		for (int i = 0; i < records.size(); ++i) {
+			List<String> r = records.get(i);
+			sb.append(i == 0 ? "" : ", ").append("{\"").append(first).append("\": ").append(r.get(0))
+				.append(", \"").append(second).append("\": ").append(r.get(1)).append('}');
+		}
+		return sb.append(']').toString();
+	}
+
+	private void metrics(HttpExchange ex) throws IOException {
+		StringBuilder sb = new StringBuilder(8192);
+		Metrics.writePrometheus(sb);
+		send(ex, 200, "text/plain; version=0.0.4", sb.toString());
+	}
+
+	private HttpHandler post(Operation op) {
+		return ex -> handle(ex, "POST", op);
+	}
+
+	private HttpHandler get(Operation op) {
+		return ex -> handle(ex, "GET", op);
+	}
+
+	private void handle(HttpExchange ex, String method, Operation op) throws IOException {
+		int status = 200;
+		String body;
+		try {
+			if (!ex.getRequestMethod().equals(method)) {
+				ex.getResponseHeaders().set("Allow", method);
+				throw new HttpError(405, "use " + method);
+			}
+			String session = ex.getRequestHeaders().getFirst("X-Session");
+			ReadRouter.enterSession(session != null ? session : ex.getRemoteAddress().getAddress().getHostAddress());
+			try {
+				body = op.run(new Params(ex));
+			}finally {
+				ReadRouter.leaveSession();
+			}
+		}catch (HttpError e) {
+			status = e.status;
+			body = error(e.getMessage());
+		}catch (IllegalArgumentException e) {
+			status = 400;
+			body = error(e.getMessage());
+		}catch (SQLTimeoutException e) {
+			status = 503;
+			body = error(e.getMessage());
+		}catch (SQLException e) {
+			String state = e.getSQLState();
+			// class 23: integrity constraint violation, class 22: data exception
+			status = state == null ? 500 : state.startsWith("23") ? 409 : state.startsWith("22") ? 400 : 500;
+			body = error(e.getMessage());
+		}catch (RuntimeException e) {
+			status = 500;
+			body = error(e.toString());
+		}
+		send(ex, status, "application/json", body);
+	}
+
+	private static void send(HttpExchange ex, int status, String type, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type", type);
+		ex.sendResponseHeaders(status, bytes.length);
+		OutputStream out = ex.getResponseBody();
+		try {
+			out.write(bytes);
+		}finally {
+			out.close();
+		}
+	}
+
+	private static String error(String message) {
+		return "{\"error\": " + quote(message) + "}";
+	}
+
+	static String quote(String s) {
+		if (s == null)
+			return "null";
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (c < 0x20)
+						sb.append(String.format("\\u%04x", (int) c));
+					else
+						sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * A failure answered with a specific HTTP status.
+	 */
+	static class HttpError extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		final int status;
+
+		HttpError(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+
+	static final class NotFound extends HttpError {
+		private static final long serialVersionUID = 1L;
+
+		NotFound(String message) {
+			super(404, message);
+		}
+	}
+
+	/**
+	 * The parameters of a request, from its query string and form body.
+	 */
+	static final class Params {
+		private final Map<String, String> _values = new HashMap<String, String>();
+
+		Params(HttpExchange ex) throws IOException {
+			parse(ex.getRequestURI().getRawQuery());
+			InputStream in = ex.getRequestBody();
+			try {
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				byte[] buf = new byte[4096];
+				for (int n; (n = in.read(buf)) > 0; ) {
+					body.write(buf, 0, n);
+					if (body.size() > 65536)
+						throw new HttpError(413, "request body too large");
+				}
+				if (body.size() > 0)
+					parse(new String(body.toByteArray(), StandardCharsets.UTF_8));
+			}finally {
+				in.close();
+			}
+		}
+
+		private void parse(String encoded) throws UnsupportedEncodingException {
+			if (encoded == null || encoded.isEmpty())
+				return;
+			for (String pair : encoded.split("&")) {
+				int eq = pair.indexOf('=');
+				String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+				String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+				this._values.put(name, value);
+			}
+		}
+
+		String string(String name) {
+			String v = this._values.get(name);
+			if (v == null)
+				throw new IllegalArgumentException("missing parameter '" + name + "'");
+			return v;
+		}
+
+		int integer(String name) {
+			String v = string(name);
+			try {
+				return Integer.parseInt(v.trim());
+			}catch (NumberFormatException e) {
+				throw new IllegalArgumentException("parameter '" + name + "' is not a number: '" + v + "'");
+			}
+		}
+	}
+}
@@ -0,0 +1,247 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class runs the Add* operations non-interactively from a command file
+ * or standard input.  Every line is one operation, with comma separated
+ * fields:
+ * <pre>
+ * plane,&lt;make&gt;,&lt;model&gt;,&lt;age&gt;,&lt;seats&gt;
+ * pilot,&lt;full name&gt;,&lt;nationality&gt;
+ * technician,&lt;full name&gt;
+ * flight,&lt;cost&gt;,&lt;num sold&gt;,&lt;num stops&gt;,&lt;departure date&gt;,&lt;arrival date&gt;,&lt;arrival airport&gt;,&lt;departure airport&gt;,&lt;pilot id&gt;,&lt;plane id&gt;
+ * booking,&lt;customer id&gt;,&lt;flight number&gt;
+ * </pre>
+ * Blank lines and lines starting with <code>#</code> are ignored.  Bookings
+ * get status 'R' or 'W' exactly as in {@link BookingEngine}.
+ *
+ * Operations are sent with <code>addBatch</code>/<code>executeBatch</code>
+ * (rewritten by the driver into multi-row inserts) <code>batchSize</code> at a
+ * time, and committed every <code>commitInterval</code> operations.  When a
+ * batch fails it is rolled back to its savepoint and replayed one operation
+ * at a time, so a bad line is reported and skipped without losing the rest.
+ *
+ */
+public class BatchRunner {
+	// statements in the order their batches are flushed, parents first
+	private static final String[] FLUSH_ORDER = {
+		DBproject.INSERT_PLANE, DBproject.INSERT_PILOT, DBproject.INSERT_TECHNICIAN, DBproject.INSERT_FLIGHT, DBproject.INSERT_FLIGHT_INFO, BookingEngine.BOOK_BATCH_SQL
+	};
+
+	private final ConnectionPool _pool;
+	private final IdAllocator _ids;
+	private final int _batchSize;
+	private final int _commitInterval;
+
+	private int _succeeded = 0;
+	private int _failed = 0;
+
+	/**
+	 * @param pool the pool the batch connection is borrowed from
+	 * @param ids allocator for the generated keys
+	 * @param batchSize operations sent per executeBatch
+	 * @param commitInterval operations per transaction
+	 */
+	public BatchRunner(ConnectionPool pool, IdAllocator ids, int batchSize, int commitInterval) {
+		this._pool = pool;
+		this._ids = ids;
+		this._batchSize = Math.max(1, batchSize);
+		this._commitInterval = Math.max(this._batchSize, commitInterval);
+	}
+
+	/**
+	 * Method to run every operation read from the input and print a summary.
+	 * Errors in individual operations are reported and do not stop the run.
+	 *
+	 * @param input the command lines
+	 * @return the number of failed operations
+	 * @throws java.sql.SQLException when the connection itself failed
+	 * @throws java.io.IOException when reading the input failed
+	 */
+	public int run(BufferedReader input) throws SQLException, IOException {
+		long start = System.nanoTime();
+		PooledConnection pc = this._pool.borrow();
+		try {
+			Connection c = pc.connection();
+			c.setAutoCommit(false);
+			List<Op> batch = new ArrayList<Op>(this._batchSize);
+			int uncommitted = 0;
+			int lineNo = 0;
+			String line;
+			while ((line = input.readLine()) != null) {
+				++lineNo;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				Op op;
+				try {
+					op = parse(lineNo, line);
+				}catch (IllegalArgumentException e) {
+					report(lineNo, line, e.getMessage());
+					continue;
+				}
+				batch.add(op);
+				if (batch.size() == this._batchSize) {
+					flush(pc, batch);
+					uncommitted += batch.size();
+					batch.clear();
+					if (uncommitted >= this._commitInterval) {
+						c.commit();
+						uncommitted = 0;
+					}
+				}
+			}
+			flush(pc, batch);
+			c.commit();
+		}finally {
+			this._pool.release(pc);
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		int total = this._succeeded + this._failed;
+		System.out.println(String.format(Locale.ROOT, "Batch done: %d ok, %d failed in %.2f s (%.0f ops/sec)",
+			this._succeeded, this._failed, secs, total / secs));
+		return this._failed;
+	}
+
+	/*
+	 * Sends one batch of operations.  On failure the batch is rolled back to
+	 * its savepoint and replayed one operation per savepoint.
+	 */
+	private void flush(PooledConnection pc, List<Op> batch) throws SQLException {
+		if (batch.isEmpty())
+			return;
+		Connection c = pc.connection();
+		Savepoint sp = c.setSavepoint();
+		try {
+			for (Op op : batch)
+				for (Stmt s : op.statements) {
+					PreparedStatement ps = pc.prepare(s.sql);
+					bind(ps, s.params);
+					ps.addBatch();
+				}
+			// a statement with nothing added sends nothing
+			for (String sql : FLUSH_ORDER)
+				if (pc.prepare(sql).executeBatch().length > 0)
+					Metrics.statement();
+			c.releaseSavepoint(sp);
+			this._succeeded += batch.size();
+			return;
+		}catch (SQLException e) {
+			for (String sql : FLUSH_ORDER)
+				pc.prepare(sql).clearBatch();
+			c.rollback(sp);
+		}
+
+		for (Op op : batch) {
+			Savepoint one = c.setSavepoint();
+			try {
+				for (Stmt s : op.statements) {
+					PreparedStatement ps = pc.prepare(s.sql);
+					bind(ps, s.params);
+					Metrics.statement();
+					ps.executeUpdate();
+				}
+				c.releaseSavepoint(one);
+				++this._succeeded;
+			}catch (SQLException e) {
+				c.rollback(one);
+				report(op.lineNo, op.kind, e.getMessage());
+			}
+		}
+	}
+
+	private void report(int lineNo, String what, String message) {
+		++this._failed;
+		System.err.println("line " + lineNo + " (" + what + "): " + message);
+	}
+
+	/*
+	 * Turns one command line into the statements it runs, reserving the
+	 * generated keys up front.
+	 */
+	private Op parse(int lineNo, String line) throws SQLException {
+		String[] f = line.split(",", -1);
+		for (int i = 0; i < f.length; ++i)
+			f[i] = f[i].trim();
+		String kind = f[0].toLowerCase(Locale.ROOT);
+		Op op = new Op(lineNo, kind);
+		switch (kind) {
+			case "plane":
+				expect(f, 5);
+				op.add(DBproject.INSERT_PLANE, this._ids.nextInt(IdAllocator.PLANE), f[1], f[2], toInt(f[3]), toInt(f[4]));
+				break;
+			case "pilot":
+				expect(f, 3);
+				op.add(DBproject.INSERT_PILOT, this._ids.nextInt(IdAllocator.PILOT), f[1], f[2]);
+				break;
+			case "technician":
+				expect(f, 2);
+				op.add(DBproject.INSERT_TECHNICIAN, this._ids.nextInt(IdAllocator.TECHNICIAN), f[1]);
+				break;
+			case "flight":
+				expect(f, 10);
+				int fnum = this._ids.nextInt(IdAllocator.FLIGHT);
+				op.add(DBproject.INSERT_FLIGHT, fnum, toInt(f[1]), toInt(f[2]), toInt(f[3]), f[4], f[5], f[6], f[7]);
+				op.add(DBproject.INSERT_FLIGHT_INFO, this._ids.nextInt(IdAllocator.FLIGHT_INFO), fnum, toInt(f[9]), toInt(f[8]));
+				break;
+			case "booking":
+				expect(f, 3);
+				int fid = toInt(f[2]);
+				op.add(BookingEngine.BOOK_BATCH_SQL, fid, fid, this._ids.nextInt(IdAllocator.RESERVATION), toInt(f[1]), fid);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown operation '" + f[0] + "'");
+		}
+		return op;
+	}
+
+	private static void expect(String[] f, int count) {
+		if (f.length != count)
+			throw new IllegalArgumentException("expected " + (count - 1) + " fields, got " + (f.length - 1));
+	}
+
+	private static int toInt(String s) {
+		try {
+			return Integer.parseInt(s);
+		}catch (NumberFormatException e) {
+			throw new IllegalArgumentException("not a number: '" + s + "'");
+		}
+	}
+
+	private static void bind(PreparedStatement ps, Object[] params) throws SQLException {
+		for (int i = 0; i < params.length; ++i)
+			ps.setObject(i + 1, params[i]);
+	}
+
+	private static final class Stmt {
+		final String sql;
+		final Object[] params;
+
+		Stmt(String sql, Object[] params) {
+			this.sql = sql;
+			this.params = params;
+		}
+	}
+
+	private static final class Op {
+		final int lineNo;
+		final String kind;
+		final List<Stmt> statements = new ArrayList<Stmt>(2);
+
+		Op(int lineNo, String kind) {
+			this.lineNo = lineNo;
+			this.kind = kind;
+		}
+
+		void add(String sql, Object... params) {
+			this.statements.add(new Stmt(sql, params));
+		}
+	}
+}
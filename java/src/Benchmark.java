@@ -0,0 +1,188 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * This class measures the latency of the DBproject data-access paths against
+ * a local PostgreSQL, so regressions in any helper show up as numbers that
+ * can be compared between releases.
+ *
+ * For every data directory given on the command line the database is
+ * reloaded from its CSV files with {@link BulkLoader} (this replaces all
+ * data in the database), and every benchmark is run single-threaded: a warm
+ * up phase whose timings are discarded, then a measured phase in which every
+ * call is timed individually.  Keys are drawn from a fixed-seed random
+ * sequence over the loaded key ranges, so runs are repeatable.
+ *
+ * The results are printed as a table and written as a JSON array with one
+ * object per data directory and benchmark.  The phases are sized with
+ * <code>-Dbench.warmupSeconds</code> (default 2) and
+ * <code>-Dbench.measureSeconds</code> (default 5), and
+ * <code>-Dbench.only=name,...</code> restricts the run to some benchmarks.
+ *
+ */
+public class Benchmark {
+	private static final double WARMUP_SECONDS = Double.parseDouble(System.getProperty("bench.warmupSeconds", "2"));
+	private static final double MEASURE_SECONDS = Double.parseDouble(System.getProperty("bench.measureSeconds", "5"));
+	private static final String ONLY = System.getProperty("bench.only", "");
+	// timings kept per benchmark for the percentiles
+	private static final int MAX_SAMPLES = 1 << 20;
+
+	/**
+	 * One benchmarked operation.
+	 */
+	interface Op {
+		/**
+		 * @param i the call number, used to pick keys
+		 */
+		void run(int i) throws Exception;
+	}
+
+	private final DBproject _esql;
+	private final Random _random = new Random(42);
+	private int _maxFlight, _maxPlane, _maxTechnician, _maxCustomer;
+	private long _reservations;
+
+	public Benchmark(DBproject esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * The main execution method
+	 *
+	 * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; &lt;data dir&gt;[,&lt;data dir&gt;...] [results file]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: java [-classpath <classpath>] " + Benchmark.class.getName()
+				+ " <dbname> <port> <user> <data dir>[,<data dir>...] [results file]");
+			return;
+		}
+		String resultsFile = args.length > 4 ? args[4] : "bench-results.json";
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		List<String> results = new ArrayList<String>();
+		try {
+			Benchmark bench = new Benchmark(esql);
+			for (String dir : args[3].split(",")) {
+				new BulkLoader(esql.pool(), new File(dir)).load();
+				bench.prepare();
+				bench.runAll(dir, results);
+			}
+		}finally {
+			esql.cleanup();
+		}
+		Writer out = new FileWriter(resultsFile);
+		try {
+			out.write("[\n");
+			for (int i = 0; i < results.size(); ++i)
+				out.write("  " + results.get(i) + (i + 1 < results.size() ? ",\n" : "\n"));
+			out.write("]\n");
+		}finally {
+			out.close();
+		}
+		System.out.println("Results written to " + resultsFile);
+	}
+
+	/*
+	 * Reads the key ranges of the freshly loaded data.
+	 */
+	private void prepare() throws Exception {
+		List<String> r = this._esql.executeQueryAndReturnResult(
+			"SELECT (SELECT max(fnum) FROM Flight), (SELECT max(id) FROM Plane), (SELECT max(id) FROM Technician), "
+			+ "(SELECT max(id) FROM Customer), (SELECT count(*) FROM Reservation)", new Object[0]).get(0);
+		this._maxFlight = Integer.parseInt(r.get(0));
+		this._maxPlane = Integer.parseInt(r.get(1));
+		this._maxTechnician = Integer.parseInt(r.get(2));
+		this._maxCustomer = Integer.parseInt(r.get(3));
+		this._reservations = Long.parseLong(r.get(4));
+	}
+
+	private void runAll(String dataset, List<String> results) throws Exception {
+		final DBproject esql = this._esql;
+		final AirlineBackend backend = esql.backend();
+		final PrintStream stdout = System.out;
+		final PrintStream nullSink = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+			@Override
+			public void write(byte[] b, int off, int len) {}
+		});
+		System.out.println(String.format(Locale.ROOT, "%n%s: %d reservations, %d flights", dataset,
+			this._reservations, this._maxFlight + 1));
+		System.out.println(String.format(Locale.ROOT, "%-28s %12s %10s %10s %10s", "benchmark", "ops/sec", "mean us", "p50 us", "p99 us"));
+
+		run(dataset, results, "executeUpdate", i ->
+			esql.executeUpdate("UPDATE Technician SET full_name = full_name WHERE id = ?", key(this._maxTechnician)));
+		run(dataset, results, "executeQueryAndReturnResult", i ->
+			esql.executeQueryAndReturnResult("SELECT * FROM Reservation WHERE fid = ?", key(this._maxFlight)));
+		run(dataset, results, "executeQueryAndPrintResult", i -> {
+			System.setOut(nullSink);
+			try {
+				esql.executeQueryAndPrintResult("SELECT * FROM Reservation WHERE fid = ?", key(this._maxFlight));
+			}finally {
+				System.setOut(stdout);
+			}
+		});
+		run(dataset, results, "hasID", i ->
+			DBproject.hasID(esql, IdIndex.PLANE, key(this._maxPlane)));
+		run(dataset, results, "idAllocation", i -> esql.ids().nextInt(IdAllocator.PLANE));
+		run(dataset, results, "availableSeats", i -> backend.availableSeats(key(this._maxFlight)));
+		run(dataset, results, "repairsPerPlane", i -> backend.repairsPerPlane());
+		run(dataset, results, "repairsPerYear", i -> backend.repairsPerYear());
+		run(dataset, results, "passengersWithStatus", i -> backend.passengersWithStatus("R"));
+		// writes, run last so they do not change what the reads see
+		run(dataset, results, "bookFlight", i -> backend.bookFlight(key(this._maxCustomer), key(this._maxFlight)));
+	}
+
+	private int key(int max) {
+		return this._random.nextInt(max + 1);
+	}
+
+	/*
+	 * Warms up and then measures one operation, adding its JSON record to
+	 * the results.
+	 */
+	private void run(String dataset, List<String> results, String name, Op op) throws Exception {
+		if (!ONLY.isEmpty() && !Arrays.asList(ONLY.split(",")).contains(name))
+			return;
+		int i = 0;
+		long end = System.nanoTime() + (long) (WARMUP_SECONDS * 1e9);
+		while (System.nanoTime() < end)
+			op.run(i++);
+
+		// every call is timed; the first MAX_SAMPLES timings are kept
+		long[] samples = new long[1024];
+		int n = 0;
+		long calls = 0;
+		long total = 0;
+		long start = System.nanoTime();
+		end = start + (long) (MEASURE_SECONDS * 1e9);
+		for (long now = start; now < end; ++calls) {
+			op.run(i++);
+			long t = System.nanoTime();
+			if (n == samples.length && n < MAX_SAMPLES)
+				samples = Arrays.copyOf(samples, n * 2);
+			if (n < samples.length)
+				samples[n++] = t - now;
+			total += t - now;
+			now = t;
+		}
+		Arrays.sort(samples, 0, n);
+		double opsPerSec = calls / ((System.nanoTime() - start) / 1e9);
+		double mean = total / 1e3 / calls;
+		double p50 = samples[n / 2] / 1e3;
+		double p99 = samples[Math.min(n - 1, (int) (n * 0.99))] / 1e3;
+		System.out.println(String.format(Locale.ROOT, "%-28s %12.0f %10.1f %10.1f %10.1f", name, opsPerSec, mean, p50, p99));
+		results.add(String.format(Locale.ROOT,
+			"{\"dataset\": \"%s\", \"reservations\": %d, \"benchmark\": \"%s\", \"calls\": %d, "
+			+ "\"opsPerSec\": %.1f, \"meanUs\": %.2f, \"p50Us\": %.2f, \"p99Us\": %.2f}",
+			dataset.replace("\\", "\\\\").replace("\"", "\\\""), this._reservations, name, calls, opsPerSec, mean, p50, p99));
+	}
+}
@@ -0,0 +1,228 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This class books and cancels reservations safely under concurrency.
+ *
+ * A booking is one statement: a conditional <code>UPDATE</code> takes a seat
+ * on the flight row only while <code>num_sold</code> is below the capacity of
+ * the assigned plane, and the reservation is inserted in the same statement
+ * with status 'R' if the seat was taken and 'W' (waitlisted) otherwise.
+ * Concurrent bookings of a flight queue on its row lock and re-check the
+ * condition against the committed row, so seats are never oversold and no
+ * update is lost; each booking locks a single row, so they cannot deadlock
+ * with one another.
+ *
+ * Cancelling a reserved or confirmed seat frees it and promotes the oldest
+ * waitlisted reservations of that flight, skipping rows that other
+ * cancellations are already promoting.
+ *
+ */
+public class BookingEngine {
+	// capacity of the plane assigned to flight ?
+	private static final String CAPACITY =
+		"(SELECT COALESCE(MAX(P.seats), 0) FROM FlightInfo FI JOIN Plane P ON P.id = FI.plane_id WHERE FI.flight_id = ?)";
+
+	/**
+	 * Books one seat.  Parameters: fnum, fnum, rnum, cid, fnum.  Usable with
+	 * executeBatch; {@link #BOOK_SQL} also returns the outcome.
+	 */
+	static final String BOOK_BATCH_SQL =
+		"WITH seat AS (UPDATE Flight SET num_sold = num_sold + 1 "
+		+ "WHERE fnum = ? AND num_sold < " + CAPACITY + " RETURNING num_sold) "
+		+ "INSERT INTO Reservation (rnum, cid, fid, status) "
+		+ "SELECT ?, ?, ?, CASE WHEN EXISTS (SELECT 1 FROM seat) THEN 'R' ELSE 'W' END";
+	static final String BOOK_SQL = BOOK_BATCH_SQL + " RETURNING status, (SELECT num_sold FROM seat)";
+
+	/**
+	 * Books one seat unless reservation rnum exists already, so replaying a
+	 * booking that committed before a crash changes nothing.  Parameters:
+	 * rnum, fnum, fnum, rnum, cid, fnum.
+	 */
+	static final String BOOK_ONCE_SQL =
+		"WITH done AS (SELECT 1 FROM Reservation WHERE rnum = ?), "
+		+ "seat AS (UPDATE Flight SET num_sold = num_sold + 1 "
+		+ "WHERE fnum = ? AND num_sold < " + CAPACITY + " AND NOT EXISTS (SELECT 1 FROM done) RETURNING num_sold) "
+		+ "INSERT INTO Reservation (rnum, cid, fid, status) "
+		+ "SELECT ?, ?, ?, CASE WHEN EXISTS (SELECT 1 FROM seat) THEN 'R' ELSE 'W' END "
+		+ "WHERE NOT EXISTS (SELECT 1 FROM done)";
+
+	static final String LOCK_RESERVATION_SQL = "SELECT fid, status FROM Reservation WHERE rnum = ? FOR UPDATE";
+	static final String LOCK_FLIGHT_SQL = "SELECT num_sold FROM Flight WHERE fnum = ? FOR UPDATE";
+	static final String DELETE_RESERVATION_SQL = "DELETE FROM Reservation WHERE rnum = ?";
+	static final String RELEASE_SEAT_SQL = "UPDATE Flight SET num_sold = num_sold - 1 WHERE fnum = ? AND num_sold > 0";
+
+	/**
+	 * Promotes as many waitlisted reservations of a flight as it has free
+	 * seats, oldest first.  Parameters: fnum, fnum, fnum, fnum.
+	 */
+	static final String PROMOTE_SQL =
+		"WITH free AS (SELECT GREATEST(" + CAPACITY + " - num_sold, 0) AS n FROM Flight WHERE fnum = ?), "
+		+ "promoted AS (UPDATE Reservation SET status = 'R' WHERE rnum IN ("
+		+ "SELECT rnum FROM Reservation WHERE fid = ? AND status = 'W' ORDER BY rnum "
+		+ "LIMIT (SELECT n FROM free) FOR UPDATE SKIP LOCKED) RETURNING rnum) "
+		+ "UPDATE Flight SET num_sold = num_sold + (SELECT count(*) FROM promoted) WHERE fnum = ? RETURNING num_sold";
+
+	private static final int MAX_ATTEMPTS = 5;
+
+	private final ConnectionPool _pool;
+	private final IdAllocator _ids;
+	private final GroupCommitter _group;
+
+	public BookingEngine(ConnectionPool pool, IdAllocator ids) {
+		this(pool, ids, null);
+	}
+
+	/**
+	 * @param pool the pool bookings and cancellations run on
+	 * @param ids the allocator of the reservation numbers
+	 * @param group commits bookings together with other writes, or null to commit each on its own
+	 */
+	public BookingEngine(ConnectionPool pool, IdAllocator ids, GroupCommitter group) {
+		this._pool = pool;
+		this._ids = ids;
+		this._group = group;
+	}
+
+	/**
+	 * Method to book a seat on a flight for a customer.
+	 *
+	 * @param cid the customer id
+	 * @param fnum the flight number
+	 * @return the new reservation, with status 'R' or 'W'
+	 * @throws java.sql.SQLException when the customer or flight does not exist or the booking failed
+	 */
+	public Booking book(int cid, int fnum) throws SQLException {
+		int rnum = this._ids.nextInt(IdAllocator.RESERVATION);
+		if (this._group != null) {
+			// the committer retries serialization failures itself
+			String[] row = GroupCommitter.await(this._group.query(BOOK_SQL, fnum, fnum, rnum, cid, fnum));
+			return new Booking(rnum, fnum, row[0], row[1] == null ? -1 : Integer.parseInt(row[1]));
+		}
+		for (int attempt = 1; ; ++attempt) {
+			PooledConnection pc = this._pool.borrow();
+			try {
+				PreparedStatement ps = pc.prepare(BOOK_SQL);
+				ps.setInt(1, fnum);
+				ps.setInt(2, fnum);
+				ps.setInt(3, rnum);
+				ps.setInt(4, cid);
+				ps.setInt(5, fnum);
+				Metrics.statement();
+				ResultSet rs = ps.executeQuery();
+				rs.next();
+				String status = rs.getString(1);
+				int numSold = rs.getInt(2);
+				if (rs.wasNull())
+					numSold = -1;
+				rs.close();
+				return new Booking(rnum, fnum, status, numSold);
+			}catch (SQLException e) {
+				if (!isRetryable(e) || attempt == MAX_ATTEMPTS)
+					throw e;
+			}finally {
+				this._pool.release(pc);
+			}
+		}
+	}
+
+	/**
+	 * Method to cancel a reservation.  A freed seat goes to the oldest
+	 * waitlisted reservation of the flight, if any.
+	 *
+	 * @param rnum the reservation number
+	 * @return the cancelled reservation with the flight's num_sold afterwards, or null if there was no such reservation
+	 * @throws java.sql.SQLException when the cancellation failed
+	 */
+	public Booking cancel(int rnum) throws SQLException {
+		for (int attempt = 1; ; ++attempt) {
+			PooledConnection pc = this._pool.borrow();
+			try {
+				Connection c = pc.connection();
+				c.setAutoCommit(false);
+				PreparedStatement ps = pc.prepare(LOCK_RESERVATION_SQL);
+				ps.setInt(1, rnum);
+				Metrics.statement();
+				ResultSet rs = ps.executeQuery();
+				if (!rs.next()) {
+					rs.close();
+					c.rollback();
+					return null;
+				}
+				int fnum = rs.getInt(1);
+				String status = rs.getString(2);
+				rs.close();
+
+				// serialize with other cancellations of this flight
+				ps = pc.prepare(LOCK_FLIGHT_SQL);
+				ps.setInt(1, fnum);
+				Metrics.statement();
+				ps.executeQuery().close();
+
+				ps = pc.prepare(DELETE_RESERVATION_SQL);
+				ps.setInt(1, rnum);
+				Metrics.statement();
+				ps.executeUpdate();
+				if ("R".equals(status) || "C".equals(status)) {
+					ps = pc.prepare(RELEASE_SEAT_SQL);
+					ps.setInt(1, fnum);
+					Metrics.statement();
+					ps.executeUpdate();
+				}
+				int numSold = promote(pc, fnum);
+				c.commit();
+				return new Booking(rnum, fnum, status, numSold);
+			}catch (SQLException e) {
+				if (!isRetryable(e) || attempt == MAX_ATTEMPTS)
+					throw e;
+			}finally {
+				this._pool.release(pc);
+			}
+		}
+	}
+
+	/*
+	 * Fills free seats from the waitlist inside the caller's transaction.
+	 */
+	private static int promote(PooledConnection pc, int fnum) throws SQLException {
+		PreparedStatement ps = pc.prepare(PROMOTE_SQL);
+		ps.setInt(1, fnum);
+		ps.setInt(2, fnum);
+		ps.setInt(3, fnum);
+		ps.setInt(4, fnum);
+		Metrics.statement();
+		ResultSet rs = ps.executeQuery();
+		int numSold = rs.next() ? rs.getInt(1) : -1;
+		rs.close();
+		return numSold;
+	}
+
+	/*
+	 * Serialization failures and deadlocks are safe to retry from scratch.
+	 */
+	static boolean isRetryable(SQLException e) {
+		String state = e.getSQLState();
+		return "40001".equals(state) || "40P01".equals(state);
+	}
+
+	/**
+	 * A booked or cancelled reservation and the flight's seat count afterwards.
+	 */
+	public static final class Booking {
+		public final int rnum;
+		public final int fnum;
+		/** 'R' when a seat was taken, 'W' when waitlisted, 'Q' when journaled and not yet applied */
+		public final String status;
+		/** Flight.num_sold afterwards, -1 when a booking was waitlisted */
+		public final int numSold;
+
+		Booking(int rnum, int fnum, String status, int numSold) {
+			this.rnum = rnum;
+			this.fnum = fnum;
+			this.status = status;
+			this.numSold = numSold;
+		}
+	}
+}
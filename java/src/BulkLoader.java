@@ -0,0 +1,459 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class reloads the nine tables from the data/*.csv files by streaming
+ * them from the client with the driver's COPY API, so the files do not have
+ * to be on the database host.
+ *
+ * The load runs in three steps:
+ * <ol>
+ * <li>the primary keys, foreign keys and secondary indexes of the nine tables
+ * are recorded in a script in the temporary directory, then dropped;</li>
+ * <li>the tables are loaded in foreign-key order, tables of the same stage in
+ * parallel on separate pooled connections, each truncated and copied in one
+ * transaction, so a failed COPY leaves the table as it was;</li>
+ * <li>the keys and indexes are rebuilt, the tables analyzed and the id
+ * sequences moved past the loaded data.</li>
+ * </ol>
+ * The user triggers of a table are disabled while it is copied, so the load
+ * queues no notification and no aggregate update per row.  Afterwards the
+ * repair aggregates are rebuilt once and every listening client is told to
+ * reload its indexes and drop its cached reports.
+ * If a step fails, the keys and indexes not rebuilt yet are recreated before
+ * the error is reported.  Whatever cannot be recreated, e.g. a key the
+ * loaded rows violate, is reported together with the script, which is
+ * deleted otherwise.
+ *
+ */
+public class BulkLoader {
+	/*
+	 * The tables in load order.  Each stage only references tables of
+	 * earlier stages, so the stages also work with constraints in place.
+	 */
+	static final Table[][] STAGES = {
+		{
+			new Table("Customer", "customer.csv", "id, fname, lname, gtype, dob, address, phone, zipcode"),
+			new Table("Pilot", "pilots.csv", "id, fullname, nationality"),
+			new Table("Plane", "planes.csv", "id, make, model, age, seats"),
+			new Table("Technician", "technician.csv", "id, full_name"),
+		},
+		{
+			new Table("Flight", "flights.csv", "fnum, cost, num_sold, num_stops, actual_departure_date, "
+				+ "actual_arrival_date, arrival_airport, departure_airport"),
+		},
+		{
+			new Table("Reservation", "reservation.csv", "rnum, cid, fid, status"),
+			new Table("FlightInfo", "flightinfo.csv", "fiid, flight_id, pilot_id, plane_id"),
+			new Table("Repairs", "repairs.csv", "rid, repair_date, repair_code, pilot_id, plane_id, technician_id"),
+			new Table("Schedule", "schedule.csv", "id, flightNum, departure_time, arrival_time"),
+		},
+	};
+
+	/*
+	 * Sequences behind the generated keys, moved past the loaded data.
+	 */
+	private static final String[][] SEQUENCES = {
+		{ IdAllocator.PLANE, "Plane", "id" },
+		{ IdAllocator.PILOT, "Pilot", "id" },
+		{ IdAllocator.TECHNICIAN, "Technician", "id" },
+		{ IdAllocator.FLIGHT, "Flight", "fnum" },
+		{ IdAllocator.FLIGHT_INFO, "FlightInfo", "fiid" },
+		{ IdAllocator.RESERVATION, "Reservation", "rnum" },
+	};
+
+	/*
+	 * One notification per index and cache of the listening clients, in
+	 * place of the per-row ones the triggers would have sent.
+	 */
+	private static final String[][] RESYNC = {
+		{ SeatAvailabilityService.CHANNEL, "*" },
+		{ IdIndex.CHANNEL, "plane:*" },
+		{ IdIndex.CHANNEL, "pilot:*" },
+		{ IdIndex.CHANNEL, "customer:*" },
+		{ IdIndex.CHANNEL, "technician:*" },
+		{ ResultCache.CHANNEL, "reservation" },
+		{ ResultCache.CHANNEL, "repairs" },
+	};
+
+	private final ConnectionPool _pool;
+	private final File _dataDir;
+
+	public BulkLoader(ConnectionPool pool, File dataDir) {
+		this._pool = pool;
+		this._dataDir = dataDir;
+	}
+
+	/**
+	 * Method to replace the contents of the nine tables with the CSV files
+	 * in the data directory, printing the throughput of every table.
+	 *
+	 * @throws java.sql.SQLException when a statement or COPY failed
+	 * @throws java.io.IOException when a data file could not be read
+	 */
+	public void load() throws SQLException, IOException {
+		for (Table[] stage : STAGES)
+			for (Table t : stage)
+				if (!t.file(this._dataDir).isFile())
+					throw new IOException("Missing data file " + t.file(this._dataDir));
+
+		long start = System.nanoTime();
+		List<String> foreignKeys = new ArrayList<String>();
+		List<String> keys = new ArrayList<String>();
+		List<String> indexes = new ArrayList<String>();
+		File script = dropConstraints(foreignKeys, keys, indexes);
+		System.out.println("Deferred " + keys.size() + " keys, " + foreignKeys.size()
+			+ " foreign keys and " + indexes.size() + " indexes");
+		// the DDL not rebuilt yet, in the order it can be rerun
+		final Set<String> missing = Collections.synchronizedSet(new LinkedHashSet<String>());
+		missing.addAll(keys);
+		missing.addAll(indexes);
+		missing.addAll(foreignKeys);
+
+		int threads = 0;
+		for (Table[] stage : STAGES)
+			threads = Math.max(threads, stage.length);
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(threads, this._pool.maxSize()));
+		try {
+			long rows = 0;
+			for (Table[] stage : STAGES) {
+				List<Future<Long>> loads = new ArrayList<Future<Long>>();
+				for (final Table t : stage)
+					loads.add(workers.submit(() -> copy(t)));
+				rows += awaitAll(loads);
+			}
+
+			long rebuild = System.nanoTime();
+			List<Future<Long>> builds = new ArrayList<Future<Long>>();
+			for (String ddl : keys)
+				builds.add(workers.submit(() -> rebuild(ddl, missing)));
+			for (String ddl : indexes)
+				builds.add(workers.submit(() -> rebuild(ddl, missing)));
+			awaitAll(builds);
+			// foreign keys validate against the keys built above
+			for (String ddl : foreignKeys)
+				rebuild(ddl, missing);
+			System.out.println(String.format(Locale.ROOT, "Rebuilt keys and indexes in %.2f s",
+				(System.nanoTime() - rebuild) / 1e9));
+
+			finish();
+			double secs = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format(Locale.ROOT, "Loaded %d rows in %.2f s (%.0f rows/sec)",
+				rows, secs, rows / secs));
+		}catch (SQLException | IOException | RuntimeException e) {
+			restore(missing, script);
+			try {
+				// some tables may have been replaced
+				resync();
+			}catch (SQLException re) {
+				System.err.println("Could not notify the clients: " + re.getMessage());
+			}
+			throw e;
+		}finally {
+			workers.shutdownNow();
+		}
+		script.delete();
+	}
+
+	/*
+	 * Recreates the keys and indexes a failed load has not rebuilt yet.
+	 */
+	private void restore(Set<String> missing, File script) {
+		List<String> ddls;
+		synchronized (missing) {
+			ddls = new ArrayList<String>(missing);
+		}
+		int failed = 0;
+		for (String ddl : ddls) {
+			try {
+				execute(ddl);
+			}catch (SQLException e) {
+				++failed;
+				System.err.println("Could not restore " + ddl + ": " + e.getMessage());
+			}
+		}
+		if (failed == 0)
+			script.delete();
+		else
+			System.err.println(failed + " keys or indexes are still missing; all of the dropped ones are in " + script);
+	}
+
+	/*
+	 * Records the DDL of every key and secondary index on the nine tables,
+	 * saves it to a script and drops them (foreign keys first).
+	 */
+	private File dropConstraints(List<String> foreignKeys, List<String> keys, List<String> indexes)
+		throws SQLException, IOException {
+		StringBuilder names = new StringBuilder();
+		for (Table[] stage : STAGES)
+			for (Table t : stage)
+				names.append(names.length() == 0 ? "" : ", ").append('\'').append(t.name.toLowerCase(Locale.ROOT)).append('\'');
+
+		List<String> drops = new ArrayList<String>();
+		PooledConnection pc = this._pool.borrow();
+		try {
+			Statement stmt = pc.connection().createStatement();
+			ResultSet rs = stmt.executeQuery(
+				"SELECT c.conrelid::regclass::text, c.conname, c.contype, pg_get_constraintdef(c.oid) "
+				+ "FROM pg_constraint c JOIN pg_class r ON r.oid = c.conrelid "
+				+ "WHERE r.relnamespace = current_schema()::regnamespace AND r.relname IN (" + names + ") "
+				+ "AND c.contype IN ('p', 'u', 'f') ORDER BY c.contype");
+			while (rs.next()) {
+				String add = "ALTER TABLE " + rs.getString(1) + " ADD CONSTRAINT " + quote(rs.getString(2)) + " " + rs.getString(4);
+				String drop = "ALTER TABLE " + rs.getString(1) + " DROP CONSTRAINT " + quote(rs.getString(2));
+				if ("f".equals(rs.getString(3))) {
+					foreignKeys.add(add);
+					drops.add(0, drop);
+				}else {
+					keys.add(add);
+					drops.add(drop);
+				}
+			}
+			rs.close();
+
+			rs = stmt.executeQuery(
+				"SELECT i.indexname, i.indexdef FROM pg_indexes i "
+				+ "WHERE i.schemaname = current_schema() AND i.tablename IN (" + names + ") "
+				+ "AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conname = i.indexname)");
+			List<String> indexDrops = new ArrayList<String>();
+			while (rs.next()) {
+				// the index of a partitioned table reads "ON ONLY", which would
+				// recreate it invalid and without the indexes of its partitions
+				indexes.add(rs.getString(2).replace(" ON ONLY ", " ON "));
+				indexDrops.add("DROP INDEX " + quote(rs.getString(1)));
+			}
+			rs.close();
+			// foreign keys, then indexes, then the keys they may depend on
+			int fkCount = foreignKeys.size();
+			drops.addAll(fkCount, indexDrops);
+
+			// written before anything is dropped, in case this process dies
+			File script = File.createTempFile("bulkload-", ".sql");
+			PrintWriter out = new PrintWriter(script, "UTF-8");
+			try {
+				out.println("-- Keys and indexes dropped by BulkLoader; run this if the load did not finish.");
+				for (List<String> ddls : Arrays.asList(keys, indexes, foreignKeys))
+					for (String ddl : ddls)
+						out.println(ddl + ";");
+			}finally {
+				out.close();
+			}
+			if (out.checkError())
+				throw new IOException("Could not write " + script);
+			System.out.println("Saved the key and index DDL to " + script);
+
+			pc.connection().setAutoCommit(false);
+			for (String ddl : drops)
+				stmt.executeUpdate(ddl);
+			pc.connection().commit();
+			stmt.close();
+			return script;
+		}finally {
+			this._pool.release(pc);
+		}
+	}
+
+	/*
+	 * Empties one table and streams its CSV file into it in one transaction,
+	 * and reports the throughput.
+	 */
+	private long copy(Table t) throws SQLException, IOException {
+		PooledConnection pc = this._pool.borrow();
+		try {
+			Statement stmt = pc.connection().createStatement();
+			// customer.csv writes dates as M/D/YYYY
+			stmt.execute("SET DateStyle = 'ISO, MDY'");
+			// on failure the pool rolls back, restoring the old rows; with
+			// wal_level=minimal the COPY also skips the WAL
+			pc.connection().setAutoCommit(false);
+			// the triggers are back on when the transaction commits or rolls back
+			List<String> relations = relations(stmt, t);
+			for (String r : relations)
+				stmt.execute("ALTER TABLE " + r + " DISABLE TRIGGER USER");
+			stmt.execute("TRUNCATE " + t.name);
+
+			CopyManager copy = pc.connection().unwrap(PGConnection.class).getCopyAPI();
+			long start = System.nanoTime();
+			long rows;
+			Reader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(t.file(this._dataDir)), StandardCharsets.UTF_8), 1 << 16);
+			try {
+				rows = copy.copyIn("COPY " + t.name + " (" + t.columns + ") FROM STDIN WITH DELIMITER ','", reader);
+			}finally {
+				reader.close();
+			}
+			for (String r : relations)
+				stmt.execute("ALTER TABLE " + r + " ENABLE TRIGGER USER");
+			stmt.close();
+			pc.connection().commit();
+			double secs = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format(Locale.ROOT, "%-12s %10d rows in %7.2f s (%.0f rows/sec)",
+				t.name, rows, secs, rows / secs));
+			return rows;
+		}finally {
+			this._pool.release(pc);
+		}
+	}
+
+	/*
+	 * A table and its partitions, whose triggers are switched separately.
+	 */
+	private static List<String> relations(Statement stmt, Table t) throws SQLException {
+		List<String> relations = new ArrayList<String>();
+		relations.add(t.name);
+		ResultSet rs = stmt.executeQuery("SELECT inhrelid::regclass::text FROM pg_inherits WHERE inhparent = '"
+			+ t.name + "'::regclass ORDER BY 1");
+		while (rs.next())
+			relations.add(rs.getString(1));
+		rs.close();
+		return relations;
+	}
+
+	/*
+	 * Rebuilds what the disabled triggers maintain and notifies the clients
+	 * once.
+	 */
+	private void resync() throws SQLException {
+		PooledConnection pc = this._pool.borrow();
+		try {
+			Statement stmt = pc.connection().createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT to_regproc('rebuild_repair_aggregates') IS NOT NULL");
+			rs.next();
+			boolean aggregates = rs.getBoolean(1);
+			rs.close();
+			if (aggregates)
+				stmt.executeQuery("SELECT rebuild_repair_aggregates()").close();
+			for (String[] n : RESYNC)
+				stmt.executeQuery("SELECT pg_notify('" + n[0] + "', '" + n[1] + "')").close();
+			stmt.close();
+		}finally {
+			this._pool.release(pc);
+		}
+	}
+
+	/*
+	 * Analyzes the reloaded tables, moves the id sequences past the data and
+	 * resynchronizes the clients.
+	 */
+	private void finish() throws SQLException {
+		PooledConnection pc = this._pool.borrow();
+		try {
+			Statement stmt = pc.connection().createStatement();
+			for (Table[] stage : STAGES)
+				for (Table t : stage)
+					stmt.execute("ANALYZE " + t.name);
+			for (String[] seq : SEQUENCES) {
+				ResultSet rs = stmt.executeQuery("SELECT to_regclass('" + seq[0] + "') IS NOT NULL");
+				rs.next();
+				boolean exists = rs.getBoolean(1);
+				rs.close();
+				if (exists)
+					stmt.executeQuery("SELECT setval('" + seq[0] + "', (SELECT COALESCE(MAX(" + seq[2]
+						+ "), -1) + 1 FROM " + seq[1] + "), false)").close();
+			}
+			stmt.close();
+		}finally {
+			this._pool.release(pc);
+		}
+		resync();
+	}
+
+	private long rebuild(String ddl, Set<String> missing) throws SQLException {
+		execute(ddl);
+		missing.remove(ddl);
+		return 0;
+	}
+
+	private long execute(String ddl) throws SQLException {
+		PooledConnection pc = this._pool.borrow();
+		try {
+			Statement stmt = pc.connection().createStatement();
+			stmt.executeUpdate(ddl);
+			stmt.close();
+			return 0;
+		}finally {
+			this._pool.release(pc);
+		}
+	}
+
+	/*
+	 * Waits for every task, so none is still running when the first error
+	 * is thrown, and returns the sum of their results.
+	 */
+	private static long awaitAll(List<Future<Long>> tasks) throws SQLException, IOException {
+		long sum = 0;
+		Exception error = null;
+		for (Future<Long> f : tasks) {
+			try {
+				sum += await(f);
+			}catch (SQLException | IOException e) {
+				if (error == null)
+					error = e;
+			}
+		}
+		if (error instanceof SQLException)
+			throw (SQLException) error;
+		if (error instanceof IOException)
+			throw (IOException) error;
+		return sum;
+	}
+
+	private static long await(Future<Long> f) throws SQLException, IOException {
+		try {
+			return f.get();
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted during bulk load", e);
+		}catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new SQLException("Bulk load failed: " + cause, cause);
+		}
+	}
+
+	private static String quote(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+
+	static final class Table {
+		final String name;
+		final String fileName;
+		final String columns;
+
+		Table(String name, String fileName, String columns) {
+			this.name = name;
+			this.fileName = fileName;
+			this.columns = columns;
+		}
+
+		File file(File dir) {
+			return new File(dir, this.fileName);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class receives PostgreSQL <code>NOTIFY</code> messages sent by the
+ * triggers in sql/create.sql and hands them to in-memory caches so they can
+ * drop or reload what other writers changed.
+ *
+ * It keeps one dedicated connection outside the pool, polls it for
+ * notifications on a daemon thread and calls the subscribers of a channel
+ * with each payload.  If the connection is lost, notifications may have been
+ * missed: the listener reconnects and calls every subscriber with a
+ * <code>null</code> payload, meaning "resynchronize everything".
+ *
+ */
+public class ChangeListener implements AutoCloseable {
+	private final ConnectionPool _pool;
+	private final long _pollMillis;
+	private final Map<String, List<Consumer<String>>> _subscribers = new ConcurrentHashMap<String, List<Consumer<String>>>();
+	private final Thread _thread;
+	private volatile Connection _connection;
+	private volatile boolean _closed = false;
+	// set when the connection was lost, cleared once it is back
+	private boolean _resync = false;
+
+	/**
+	 * @param pool the pool whose database is listened to
+	 * @param pollMillis how often the connection is checked for notifications
+	 */
+	public ChangeListener(ConnectionPool pool, long pollMillis) {
+		this._pool = pool;
+		this._pollMillis = pollMillis;
+		this._thread = new Thread(this::poll, "change-listener");
+		this._thread.setDaemon(true);
+		this._thread.start();
+	}
+
+	/**
+	 * Method to register a handler for a notification channel.  Handlers run
+	 * on the listener thread and must not block for long.
+	 *
+	 * @param channel the channel name used with pg_notify
+	 * @param handler called with each payload, or null after a reconnect
+	 * @throws java.sql.SQLException when the LISTEN could not be issued
+	 */
+	public void subscribe(String channel, Consumer<String> handler) throws SQLException {
+		List<Consumer<String>> handlers = this._subscribers.get(channel);
+		if (handlers == null) {
+			this._subscribers.putIfAbsent(channel, new CopyOnWriteArrayList<Consumer<String>>());
+			handlers = this._subscribers.get(channel);
+		}
+		boolean first = handlers.isEmpty();
+		handlers.add(handler);
+		if (first)
+			listen(channel);
+	}
+
+	private synchronized void listen(String channel) throws SQLException {
+		Connection c = connection();
+		Statement stmt = c.createStatement();
+		stmt.execute("LISTEN " + channel);
+		stmt.close();
+	}
+
+	private synchronized Connection connection() throws SQLException {
+		if (this._connection == null) {
+			Connection c = this._pool.openUnpooled();
+			Statement stmt = c.createStatement();
+			for (String channel : this._subscribers.keySet())
+				stmt.execute("LISTEN " + channel);
+			stmt.close();
+			this._connection = c;
+		}
+		return this._connection;
+	}
+
+	private void poll() {
+		while (!this._closed) {
+			try {
+				Thread.sleep(this._pollMillis);
+				if (this._subscribers.isEmpty())
+					continue;
+				PGNotification[] notifications;
+				synchronized (this) {
+					Connection c = connection();
+					// the driver only reads pending notifications during a round trip
+					Statement stmt = c.createStatement();
+					stmt.execute("SELECT 1");
+					stmt.close();
+					notifications = c.unwrap(PGConnection.class).getNotifications();
+				}
+				if (this._resync) {
+					// anything sent while disconnected is lost
+					this._resync = false;
+					for (String channel : this._subscribers.keySet())
+						dispatch(channel, null);
+				}
+				if (notifications == null)
+					continue;
+				for (PGNotification n : notifications)
+					dispatch(n.getName(), n.getParameter());
+			}catch (InterruptedException e) {
+				return;
+			}catch (SQLException e) {
+				if (this._closed)
+					return;
+				System.err.println("Change listener lost its connection: " + e.getMessage());
+				synchronized (this) {
+					closeConnection();
+				}
+				this._resync = true;
+			}
+		}
+	}
+
+	private void dispatch(String channel, String payload) {
+		List<Consumer<String>> handlers = this._subscribers.get(channel);
+		if (handlers == null)
+			return;
+		for (Consumer<String> h : handlers) {
+			try {
+				h.accept(payload);
+			}catch (RuntimeException e) {
+				System.err.println("Change handler for " + channel + " failed: " + e);
+			}
+		}
+	}
+
+	private void closeConnection() {
+		if (this._connection != null) {
+			try {
+				this._connection.close();
+			}catch (SQLException e) {
+				// ignored.
+			}
+			this._connection = null;
+		}
+	}
+
+	/**
+	 * Method to stop listening and close the dedicated connection.
+	 */
+	@Override
+	public void close() {
+		this._closed = true;
+		this._thread.interrupt();
+		synchronized (this) {
+			closeConnection();
+		}
+	}
+}
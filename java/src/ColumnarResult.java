@@ -0,0 +1,431 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A materialized query result stored column by column with typed storage,
+ * meant for keeping large extracts (e.g. Flight or Reservation) in memory.
+ *
+ * Column storage is chosen from the <code>ResultSetMetaData</code> type:
+ * <ul>
+ * <li>INTEGER/SMALLINT as an <code>int[]</code>, BIGINT as a <code>long[]</code>;</li>
+ * <li>DATE as an <code>int[]</code> of epoch days;</li>
+ * <li>CHAR/VARCHAR/TEXT dictionary-encoded while they have few distinct
+ * values, such as <code>Reservation.status</code>, airport codes or plane
+ * makes, with one byte per row up to 256 distinct values and an int code
+ * after that.  A column that has more than one distinct value per
+ * {@link #SAMPLE_RATIO} rows among the first {@link #SAMPLE_ROWS}, such as
+ * names or addresses, or more than {@link #MAX_DICTIONARY_SIZE} distinct
+ * values in all, falls back to plain strings.  CHAR padding is trimmed;</li>
+ * <li>anything else as plain strings.</li>
+ * </ul>
+ *
+ * Rows and columns are indexed from 0.
+ *
+ */
+public class ColumnarResult {
+	/** Distinct values above which a text column stops being dictionary-encoded. */
+	public static final int MAX_DICTIONARY_SIZE = 65536;
+	/** Rows read before deciding whether a text column is worth a dictionary. */
+	public static final int SAMPLE_ROWS = 1024;
+	/** Fewest sampled rows per distinct value for a text column to keep its dictionary. */
+	public static final int SAMPLE_RATIO = 4;
+
+	private final String[] _names;
+	private final Column[] _columns;
+	private final int _rowCount;
+
+	private ColumnarResult(String[] names, Column[] columns, int rowCount) {
+		this._names = names;
+		this._columns = columns;
+		this._rowCount = rowCount;
+	}
+
+	/**
+	 * Method to read every remaining row of a result set into columnar
+	 * storage.  The result set is not closed.
+	 *
+	 * @param rs the result set, positioned before the first row
+	 * @return the materialized result
+	 * @throws java.sql.SQLException when reading the result set failed
+	 */
+	public static ColumnarResult from(ResultSet rs) throws SQLException {
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int numCol = rsmd.getColumnCount();
+		String[] names = new String[numCol];
+		Column[] columns = new Column[numCol];
+		for (int i = 0; i < numCol; ++i) {
+			names[i] = rsmd.getColumnName(i + 1);
+			columns[i] = newColumn(rsmd.getColumnType(i + 1));
+		}
+
+		int row = 0;
+		while (rs.next()) {
+			for (int i = 0; i < numCol; ++i) {
+				Column c = columns[i];
+				if (c.append(rs, i + 1, row))
+					continue;
+				// too many distinct values: re-encode as plain strings
+				columns[i] = ((DictionaryColumn) c).toStringColumn(row);
+				columns[i].append(rs, i + 1, row);
+			}
+			++row;
+		}
+		for (Column c : columns)
+			c.trim(row);
+		return new ColumnarResult(names, columns, row);
+	}
+
+	/**
+	 * @return number of rows
+	 */
+	public int rowCount() {
+		return this._rowCount;
+	}
+
+	/**
+	 * @return number of columns
+	 */
+	public int columnCount() {
+		return this._names.length;
+	}
+
+	/**
+	 * @param col the column index
+	 * @return the column name
+	 */
+	public String columnName(int col) {
+		return this._names[col];
+	}
+
+	/**
+	 * @param name the column name, case-insensitive
+	 * @return the column index, or -1 if there is no such column
+	 */
+	public int columnIndex(String name) {
+		for (int i = 0; i < this._names.length; ++i)
+			if (this._names[i].equalsIgnoreCase(name))
+				return i;
+		return -1;
+	}
+
+	public boolean isNull(int row, int col) {
+		return this._columns[col].isNull(row);
+	}
+
+	/**
+	 * @return the value of an INTEGER column; 0 when null
+	 */
+	public int getInt(int row, int col) {
+		return ((IntColumn) column(col, IntColumn.class)).values[row];
+	}
+
+	/**
+	 * @return the value of an INTEGER or BIGINT column; 0 when null
+	 */
+	public long getLong(int row, int col) {
+		Column c = this._columns[col];
+		if (c instanceof LongColumn)
+			return ((LongColumn) c).values[row];
+		return ((IntColumn) column(col, IntColumn.class)).values[row];
+	}
+
+	/**
+	 * @return the value of a DATE column as days since 1970-01-01; 0 when null
+	 */
+	public int getEpochDay(int row, int col) {
+		return ((DateColumn) column(col, DateColumn.class)).values[row];
+	}
+
+	/**
+	 * @return the value of a DATE column, or null
+	 */
+	public LocalDate getDate(int row, int col) {
+		DateColumn c = (DateColumn) column(col, DateColumn.class);
+		return c.isNull(row) ? null : LocalDate.ofEpochDay(c.values[row]);
+	}
+
+	/**
+	 * @return the value of any column as a string, or null
+	 */
+	public String getString(int row, int col) {
+		Column c = this._columns[col];
+		return c.isNull(row) ? null : c.getString(row);
+	}
+
+	/**
+	 * @return the dictionary code of a dictionary-encoded column, or -1 when null
+	 */
+	public int getCode(int row, int col) {
+		return ((DictionaryColumn) column(col, DictionaryColumn.class)).code(row);
+	}
+
+	/**
+	 * @return the distinct values of a dictionary-encoded column, indexed by code
+	 */
+	public List<String> dictionary(int col) {
+		return ((DictionaryColumn) column(col, DictionaryColumn.class)).dictionary;
+	}
+
+	/**
+	 * @return whether the column is dictionary-encoded
+	 */
+	public boolean isDictionaryEncoded(int col) {
+		return this._columns[col] instanceof DictionaryColumn;
+	}
+
+	private Column column(int col, Class<? extends Column> type) {
+		Column c = this._columns[col];
+		if (!type.isInstance(c))
+			throw new IllegalArgumentException("Column " + this._names[col] + " is not stored as "
+				+ type.getSimpleName());
+		return c;
+	}
+
+	private static Column newColumn(int sqlType) {
+		switch (sqlType) {
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				return new IntColumn();
+			case Types.BIGINT:
+				return new LongColumn();
+			case Types.DATE:
+				return new DateColumn();
+			case Types.CHAR:
+			case Types.NCHAR:
+				return new DictionaryColumn(true);
+			case Types.VARCHAR:
+			case Types.NVARCHAR:
+			case Types.LONGVARCHAR:
+				return new DictionaryColumn(false);
+			default:
+				return new StringColumn(false);
+		}
+	}
+
+	static int grow(int length, int needed) {
+		return Math.max(needed, length + (length >> 1) + 16);
+	}
+
+	static String rtrim(String v) {
+		int end = v.length();
+		while (end > 0 && v.charAt(end - 1) == ' ')
+			--end;
+		return end == v.length() ? v : v.substring(0, end);
+	}
+
+	/*
+	 * Storage for one column.  append() returns false only when a
+	 * dictionary column has to be converted to plain strings.
+	 */
+	private static abstract class Column {
+		BitSet nulls;
+
+		abstract boolean append(ResultSet rs, int index, int row) throws SQLException;
+
+		abstract String getString(int row);
+
+		abstract void trim(int rowCount);
+
+		void setNull(int row) {
+			if (this.nulls == null)
+				this.nulls = new BitSet();
+			this.nulls.set(row);
+		}
+
+		boolean isNull(int row) {
+			return this.nulls != null && this.nulls.get(row);
+		}
+	}
+
+	private static class IntColumn extends Column {
+		int[] values = new int[0];
+
+		@Override
+		boolean append(ResultSet rs, int index, int row) throws SQLException {
+			if (row == this.values.length)
+				this.values = Arrays.copyOf(this.values, grow(this.values.length, row + 1));
+			this.values[row] = rs.getInt(index);
+			if (rs.wasNull())
+				setNull(row);
+			return true;
+		}
+
+		@Override
+		String getString(int row) {
+			return Integer.toString(this.values[row]);
+		}
+
+		@Override
+		void trim(int rowCount) {
+			this.values = Arrays.copyOf(this.values, rowCount);
+		}
+	}
+
+	private static final class DateColumn extends IntColumn {
+		@Override
+		boolean append(ResultSet rs, int index, int row) throws SQLException {
+			if (row == this.values.length)
+				this.values = Arrays.copyOf(this.values, grow(this.values.length, row + 1));
+			java.sql.Date d = rs.getDate(index);
+			if (d == null)
+				setNull(row);
+			else
+				this.values[row] = (int) d.toLocalDate().toEpochDay();
+			return true;
+		}
+
+		@Override
+		String getString(int row) {
+			return LocalDate.ofEpochDay(this.values[row]).toString();
+		}
+	}
+
+	private static final class LongColumn extends Column {
+		long[] values = new long[0];
+
+		@Override
+		boolean append(ResultSet rs, int index, int row) throws SQLException {
+			if (row == this.values.length)
+				this.values = Arrays.copyOf(this.values, grow(this.values.length, row + 1));
+			this.values[row] = rs.getLong(index);
+			if (rs.wasNull())
+				setNull(row);
+			return true;
+		}
+
+		@Override
+		String getString(int row) {
+			return Long.toString(this.values[row]);
+		}
+
+		@Override
+		void trim(int rowCount) {
+			this.values = Arrays.copyOf(this.values, rowCount);
+		}
+	}
+
+	private static final class StringColumn extends Column {
+		final boolean padded;
+		String[] values = new String[0];
+
+		StringColumn(boolean padded) {
+			this.padded = padded;
+		}
+
+		@Override
+		boolean append(ResultSet rs, int index, int row) throws SQLException {
+			if (row == this.values.length)
+				this.values = Arrays.copyOf(this.values, grow(this.values.length, row + 1));
+			String v = rs.getString(index);
+			if (v == null)
+				setNull(row);
+			else if (this.padded)
+				v = rtrim(v);
+			this.values[row] = v;
+			return true;
+		}
+
+		@Override
+		String getString(int row) {
+			return this.values[row];
+		}
+
+		@Override
+		void trim(int rowCount) {
+			this.values = Arrays.copyOf(this.values, rowCount);
+		}
+	}
+
+	private static final class DictionaryColumn extends Column {
+		final boolean padded;
+		final List<String> dictionary = new ArrayList<String>();
+		final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+		// one byte per row until the dictionary outgrows it, then ints
+		byte[] smallCodes = new byte[0];
+		int[] wideCodes = null;
+
+		DictionaryColumn(boolean padded) {
+			this.padded = padded;
+		}
+
+		@Override
+		boolean append(ResultSet rs, int index, int row) throws SQLException {
+			if (row == SAMPLE_ROWS && this.dictionary.size() * SAMPLE_RATIO > SAMPLE_ROWS)
+				return false;
+			String v = rs.getString(index);
+			int code = -1;
+			if (v != null) {
+				if (this.padded)
+					v = rtrim(v);
+				Integer known = this.codes.get(v);
+				if (known == null) {
+					if (this.dictionary.size() == MAX_DICTIONARY_SIZE)
+						return false;
+					known = this.dictionary.size();
+					this.dictionary.add(v);
+					this.codes.put(v, known);
+				}
+				code = known;
+			}
+			if (this.wideCodes == null && code > 255)
+				widen();
+			if (this.wideCodes != null) {
+				if (row == this.wideCodes.length)
+					this.wideCodes = Arrays.copyOf(this.wideCodes, grow(this.wideCodes.length, row + 1));
+				this.wideCodes[row] = code;
+			}else {
+				if (row == this.smallCodes.length)
+					this.smallCodes = Arrays.copyOf(this.smallCodes, grow(this.smallCodes.length, row + 1));
+				this.smallCodes[row] = (byte) code;
+			}
+			if (code < 0)
+				setNull(row);
+			return true;
+		}
+
+		int code(int row) {
+			if (isNull(row))
+				return -1;
+			return this.wideCodes != null ? this.wideCodes[row] : this.smallCodes[row] & 0xff;
+		}
+
+		@Override
+		String getString(int row) {
+			return this.dictionary.get(code(row));
+		}
+
+		@Override
+		void trim(int rowCount) {
+			if (this.wideCodes != null)
+				this.wideCodes = Arrays.copyOf(this.wideCodes, rowCount);
+			else
+				this.smallCodes = Arrays.copyOf(this.smallCodes, rowCount);
+			this.codes.clear();
+		}
+
+		private void widen() {
+			this.wideCodes = new int[this.smallCodes.length];
+			for (int i = 0; i < this.smallCodes.length; ++i)
+				this.wideCodes[i] = this.smallCodes[i] & 0xff;
+			this.smallCodes = null;
+		}
+
+		StringColumn toStringColumn(int rowCount) {
+			StringColumn s = new StringColumn(this.padded);
+			s.values = new String[grow(rowCount, rowCount + 1)];
+			for (int i = 0; i < rowCount; ++i)
+				s.values[i] = isNull(i) ? null : getString(i);
+			s.nulls = this.nulls;
+			return s;
+		}
+	}
+}
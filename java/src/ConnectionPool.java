@@ -0,0 +1,285 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines a bounded pool of physical connections to a PostgreSQL
+ * database.  At least <code>minSize</code> connections are kept open, at most
+ * <code>maxSize</code> are ever open at once, connections idle for longer than
+ * the idle timeout are closed down to the minimum, and a connection that has
+ * been idle for a while is validated before it is handed out again.
+ *
+ * Each connection carries its own {@link StatementCache}; the pool keeps the
+ * hit and miss totals across all of them.
+ *
+ */
+public class ConnectionPool {
+	private final String _url;
+	private final Properties _props;
+	private final int _minSize;
+	private final int _maxSize;
+	private final long _idleTimeoutMillis;
+	private final long _borrowTimeoutMillis;
+	private final long _validationIntervalMillis;
+	private final int _statementCacheSize;
+	private final AtomicLong _statementHits = new AtomicLong();
+	private final AtomicLong _statementMisses = new AtomicLong();
+
+	// idle connections, most recently used first
+	private final LinkedBlockingDeque<PooledConnection> _idle = new LinkedBlockingDeque<PooledConnection>();
+	// one permit per connection that may still be handed out
+	private final Semaphore _permits;
+	private final AtomicInteger _open = new AtomicInteger();
+	private final ScheduledExecutorService _evictor;
+	private volatile boolean _closed = false;
+
+	/**
+	 * Creates the pool and opens <code>minSize</code> connections up front so
+	 * that a bad URL or credentials fail immediately.
+	 *
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @param minSize number of connections kept open even when idle
+	 * @param maxSize upper bound on open connections
+	 * @param idleTimeoutMillis idle time after which surplus connections are closed
+	 * @param borrowTimeoutMillis how long {@link #borrow()} waits for a free connection
+	 * @param validationIntervalMillis idle time after which a connection is validated before use
+	 * @param statementCacheSize prepared statements cached per connection, at least 1
+	 * @throws java.sql.SQLException when the initial connections cannot be opened
+	 */
+	public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+			long idleTimeoutMillis, long borrowTimeoutMillis, long validationIntervalMillis,
+			int statementCacheSize) throws SQLException {
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+			throw new IllegalArgumentException("Invalid pool size: min=" + minSize + " max=" + maxSize);
+		// the helpers never close their statements, so each needs a cache slot
+		if (statementCacheSize < 1)
+			throw new IllegalArgumentException("Invalid statement cache size: " + statementCacheSize);
+		this._url = url;
+		this._props = new Properties();
+		this._props.setProperty("user", user);
+		this._props.setProperty("password", passwd);
+		// use a named server-side statement from the first execution on
+		this._props.setProperty("prepareThreshold", "1");
+		// let string parameters bind to DATE, CHAR and domain columns
+		this._props.setProperty("stringtype", "unspecified");
+		// send executeBatch inserts as multi-row VALUES
+		this._props.setProperty("reWriteBatchedInserts", "true");
+		this._minSize = minSize;
+		this._maxSize = maxSize;
+		this._idleTimeoutMillis = idleTimeoutMillis;
+		this._borrowTimeoutMillis = borrowTimeoutMillis;
+		this._validationIntervalMillis = validationIntervalMillis;
+		this._statementCacheSize = statementCacheSize;
+		this._permits = new Semaphore(maxSize, true);
+
+		try {
+			for (int i = 0; i < minSize; ++i)
+				this._idle.offerLast(open());
+		}catch (SQLException e) {
+			close();
+			throw e;
+		}
+
+		this._evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "pool-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1000L, idleTimeoutMillis / 2);
+		this._evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to borrow a connection from the pool.  Waits up to the borrow
+	 * timeout when all <code>maxSize</code> connections are in use.  Every
+	 * borrowed connection must be handed back with {@link #release(PooledConnection)}.
+	 *
+	 * @return a validated connection in auto-commit mode
+	 * @throws java.sql.SQLException when no connection became available in time
+	 */
+	public PooledConnection borrow() throws SQLException {
+		long start = Metrics.start();
+		try {
+			return acquire();
+		}finally {
+			Metrics.POOL_BORROW.stop(start);
+		}
+	}
+
+	private PooledConnection acquire() throws SQLException {
+		if (this._closed)
+			throw new SQLException("Connection pool is closed");
+		try {
+			if (!this._permits.tryAcquire(this._borrowTimeoutMillis, TimeUnit.MILLISECONDS))
+				throw new SQLTimeoutException("Timed out after " + this._borrowTimeoutMillis
+					+ " ms waiting for a database connection (max " + this._maxSize + ")");
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection", e);
+		}
+
+		try {
+			PooledConnection pc;
+			while ((pc = this._idle.pollFirst()) != null) {
+				if (isUsable(pc)) {
+					pc.touch();
+					return pc;
+				}
+				discard(pc);
+			}
+			return open();
+		}catch (SQLException | RuntimeException e) {
+			this._permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to hand a borrowed connection back to the pool.  Any open
+	 * transaction is rolled back; a connection that cannot be reset is closed.
+	 *
+	 * @param pc the connection obtained from {@link #borrow()}, may be null
+	 */
+	public void release(PooledConnection pc) {
+		if (pc == null)
+			return;
+		try {
+			if (this._closed || !reset(pc)) {
+				discard(pc);
+			}else {
+				pc.touch();
+				// LIFO: hot connections stay hot and surplus ones age out
+				this._idle.offerFirst(pc);
+			}
+		}finally {
+			this._permits.release();
+		}
+	}
+
+	/**
+	 * @return number of physical connections currently open
+	 */
+	public int openCount() {
+		return this._open.get();
+	}
+
+	/**
+	 * @return number of open connections not currently borrowed
+	 */
+	public int idleCount() {
+		return this._idle.size();
+	}
+
+	/**
+	 * @return upper bound on open connections
+	 */
+	public int maxSize() {
+		return this._maxSize;
+	}
+
+	/**
+	 * @return number of prepared statement lookups served from a cache
+	 */
+	public long statementCacheHits() {
+		return this._statementHits.get();
+	}
+
+	/**
+	 * @return number of prepared statement lookups that had to prepare
+	 */
+	public long statementCacheMisses() {
+		return this._statementMisses.get();
+	}
+
+	/**
+	 * Method to close every idle connection and refuse further borrows.
+	 * Connections still borrowed are closed as they are released.
+	 */
+	public void close() {
+		this._closed = true;
+		if (this._evictor != null)
+			this._evictor.shutdownNow();
+		PooledConnection pc;
+		while ((pc = this._idle.pollFirst()) != null)
+			discard(pc);
+	}
+
+	/**
+	 * Method to open a connection to the same database that is not counted
+	 * against the pool, for long-lived sessions such as LISTEN.  The caller
+	 * owns and closes it.
+	 *
+	 * @return a new physical connection
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public Connection openUnpooled() throws SQLException {
+		return DriverManager.getConnection(this._url, this._props);
+	}
+
+	private PooledConnection open() throws SQLException {
+		Connection c = DriverManager.getConnection(this._url, this._props);
+		this._open.incrementAndGet();
+		return new PooledConnection(this, c, new StatementCache(c, this._statementCacheSize,
+			this._statementHits, this._statementMisses));
+	}
+
+	private void discard(PooledConnection pc) {
+		pc.close();
+		this._open.decrementAndGet();
+	}
+
+	private boolean isUsable(PooledConnection pc) {
+		try {
+			if (pc.connection().isClosed())
+				return false;
+			if (System.currentTimeMillis() - pc.lastUsed() < this._validationIntervalMillis)
+				return true;
+			return pc.connection().isValid(5);
+		}catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private boolean reset(PooledConnection pc) {
+		try {
+			Connection c = pc.connection();
+			if (c.isClosed())
+				return false;
+			if (!c.getAutoCommit()) {
+				c.rollback();
+				c.setAutoCommit(true);
+			}
+			return true;
+		}catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Closes connections that have been idle longer than the idle timeout,
+	 * oldest first, without going below the minimum size.
+	 */
+	private void evictIdle() {
+		long now = System.currentTimeMillis();
+		Iterator<PooledConnection> it = this._idle.descendingIterator();
+		while (it.hasNext() && this._open.get() > this._minSize) {
+			PooledConnection pc = it.next();
+			if (now - pc.lastUsed() < this._idleTimeoutMillis)
+				break;
+			if (this._idle.removeLastOccurrence(pc))
+				discard(pc);
+		}
+	}
+}
@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -23,10 +24,18 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 // Addtional Libraries
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -34,10 +43,73 @@ import java.util.Date;
  *
  */
 
-public class DBproject{
-	//reference to physical database connection
-	private Connection _connection = null;
+public class DBproject implements AirlineBackend{
+	//pool of physical database connections
+	private ConnectionPool _pool = null;
+	//sends reads to the replicas in dbproject.replicas, null without replicas
+	private ReadRouter _router = null;
+	//spreads the flights over the databases in dbproject.shards, null without shards
+	private ShardedBackend _shards = null;
+	//hi/lo allocator for the generated primary keys
+	private IdAllocator _ids = null;
+	//receives the change notifications sent by the database triggers
+	private ChangeListener _changes = null;
+	//in-memory seat counters behind menu 6, loaded on first use
+	private SeatAvailabilityService _seats = null;
+	//in-memory ids of the reference tables, loaded on first use
+	private IdIndex _idIndex = null;
+	//results of the read-only reports, dropped when their tables change
+	private ResultCache _results = null;
+	//commits concurrent writes together, null unless dbproject.groupCommit.maxOps is set
+	private GroupCommitter _group = null;
+	//acknowledges writes once journaled, null unless dbproject.journal is set
+	private JournaledBackend _journal = null;
+	//concurrency-safe booking and cancellation
+	private BookingEngine _bookings = null;
+	//where the menu operations run: this object, or an in-process backend
+	private AirlineBackend _backend = this;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//rows fetched per round trip by the streaming query helpers
+	private static final int FETCH_SIZE = Integer.getInteger("dbproject.fetchSize", 1000);
+	private static final Object[] NO_PARAMS = new Object[0];
+	//rows per page when printing results, 0 to print them all at once
+	private int _pageSize = 0;
+
+	static final String INSERT_PLANE = "INSERT INTO Plane (id, make, model, age, seats) VALUES ( ? , ? , ? , ? , ? );";
+	static final String INSERT_PILOT = "INSERT INTO Pilot(id, fullname, nationality) VALUES ( ? , ? , ? );";
+	static final String INSERT_TECHNICIAN = "INSERT INTO Technician (id, full_name) VALUES ( ? , ? );";
+	static final String INSERT_FLIGHT = "INSERT INTO Flight (fnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport) VALUES ( ? , ? , ? , ? , ? , ? , ? , ? );";
+	static final String INSERT_FLIGHT_INFO = "INSERT INTO FlightInfo(fiid, flight_id, plane_id, pilot_id) VALUES ( ? , ? , ? , ? );";
+	/*
+	 * Inserts a flight and its FlightInfo in one statement, so both rows or
+	 * neither are written and a bad pilot or plane id fails the whole insert.
+	 * Parameters: the 8 Flight columns, then fiid, plane_id, pilot_id.
+	 */
+	static final String ADD_FLIGHT = "WITH f AS (" + INSERT_FLIGHT.substring(0, INSERT_FLIGHT.length() - 1) + " RETURNING fnum) "
+		+ "INSERT INTO FlightInfo(fiid, flight_id, plane_id, pilot_id) SELECT ?, fnum, ?, ? FROM f;";
+	//latency of the SQL helpers, recorded with -Ddbproject.metrics=true
+	private static final Metrics.Timer UPDATE_TIMER = Metrics.timer(Metrics.SQL, "helper", "executeUpdate");
+	private static final Metrics.Timer PRINT_TIMER = Metrics.timer(Metrics.SQL, "helper", "executeQueryAndPrintResult");
+	private static final Metrics.Timer EXPORT_TIMER = Metrics.timer(Metrics.SQL, "helper", "executeQueryAndExport");
+	private static final Metrics.Timer STREAM_TIMER = Metrics.timer(Metrics.SQL, "helper", "executeQueryStreaming");
+	private static final Metrics.Timer RESULT_TIMER = Metrics.timer(Metrics.SQL, "helper", "executeQueryAndReturnResult");
+	private static final Metrics.Timer COLUMNS_TIMER = Metrics.timer(Metrics.SQL, "helper", "executeQueryAndReturnColumns");
+	private static final Metrics.Timer QUERY_TIMER = Metrics.timer(Metrics.SQL, "helper", "executeQuery");
+
+	static final String COUNT_STATUS = "SELECT count(*) FROM Reservation WHERE status = ?;";
+	// bounded on the partition keys (see PartitionManager.java), so only the
+	// partitions of the range are read
+	static final String REPAIRS_PER_YEAR_IN_RANGE = "SELECT EXTRACT(YEAR FROM repair_date)::int AS repair_year, count(*) AS repair_count "
+		+ "FROM Repairs WHERE repair_date >= ? AND repair_date < ? GROUP BY 1 ORDER BY 1;";
+	static final String DEPARTURES_IN_RANGE = "SELECT id, flightNum, departure_time, arrival_time FROM Schedule "
+		+ "WHERE departure_time >= ? AND departure_time < ? ORDER BY departure_time, id;";
+	//tables each cached report is read from
+	private static final String[] PER_PLANE_TABLES = { "repairs", "repairsperplane" };
+	private static final String[] PER_YEAR_TABLES = { "repairs", "repairsperyear" };
+	private static final String[] STATUS_TABLES = { "reservation" };
+	private static final String[] REPAIRS_TABLES = { "repairs" };
+	//SQLState of a reference to a missing row, as the database reports it
+	static final String FK_VIOLATION = "23503";
 	
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
@@ -46,8 +118,26 @@ public class DBproject{
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// open the connection pool, sized by -Ddbproject.pool.* properties
+			this._pool = openPool(url, user, passwd, Integer.getInteger("dbproject.pool.minSize", 1));
+			this._ids = new IdAllocator(this._pool);
+			int groupOps = Integer.getInteger("dbproject.groupCommit.maxOps", 0);
+			if (groupOps > 1)
+				this._group = new GroupCommitter(this._pool, groupOps, Long.getLong("dbproject.groupCommit.maxDelayMs", 2L));
+			this._bookings = new BookingEngine(this._pool, this._ids, this._group);
+			String replicas = System.getProperty("dbproject.replicas", "");
+			if (!replicas.trim().isEmpty())
+				this._router = openReplicas(replicas, dbname, user, passwd);
+			String shards = System.getProperty("dbproject.shards", "");
+			if (!shards.trim().isEmpty()){
+				this._shards = openShards(shards, dbname, dbport, user, passwd);
+				this._backend = this._shards;
+			}
+			String journal = System.getProperty("dbproject.journal", "");
+			if (!journal.trim().isEmpty())
+				openJournal(Paths.get(journal.trim()));
+			if (Metrics.ENABLED)
+				this._backend = new MeteredBackend(this._backend);
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -55,6 +145,93 @@ public class DBproject{
 	        System.exit(-1);
 		}
 	}
+
+	/*
+	 * Opens a pool sized by the -Ddbproject.pool.* properties.
+	 */
+	private static ConnectionPool openPool(String url, String user, String passwd, int minSize) throws SQLException {
+		return new ConnectionPool(url, user, passwd, minSize,
+			Integer.getInteger("dbproject.pool.maxSize", 8),
+			Long.getLong("dbproject.pool.idleTimeoutMs", 60000L),
+			Long.getLong("dbproject.pool.borrowTimeoutMs", 30000L),
+			Long.getLong("dbproject.pool.validationIntervalMs", 5000L),
+			Integer.getInteger("dbproject.statementCache.size", 64));
+	}
+
+	/*
+	 * Opens a pool for every replica in a comma-separated list of host:port
+	 * or port entries.  Replica pools open connections on demand, so a
+	 * replica that is down does not stop the client from starting.
+	 */
+	private ReadRouter openReplicas(String replicas, String dbname, String user, String passwd) throws SQLException {
+		List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+		List<String> names = new ArrayList<String>();
+		for (String replica : replicas.split(",")){
+			String name = replica.trim().contains(":") ? replica.trim() : "localhost:" + replica.trim();
+			pools.add(openPool("jdbc:postgresql://" + name + "/" + dbname, user, passwd, 0));
+			names.add(name);
+		}
+		System.out.println("Reading from replicas " + names);
+		return new ReadRouter(this._pool, pools, names,
+			Long.getLong("dbproject.replica.maxLagMs", 1000L),
+			Long.getLong("dbproject.replica.pinMs", 5000L),
+			Long.getLong("dbproject.replica.checkMs", 1000L));
+	}
+
+	/*
+	 * Opens a pool for every further shard in a comma-separated list of
+	 * dbname or host:port/dbname entries.  The database named on the command
+	 * line is shard 0.
+	 */
+	private ShardedBackend openShards(String shards, String dbname, String dbport, String user, String passwd) throws SQLException {
+		List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+		List<String> names = new ArrayList<String>();
+		names.add("localhost:" + dbport + "/" + dbname);
+		for (String shard : shards.split(",")){
+			String name = shard.trim().contains("/") ? shard.trim() : "localhost:" + dbport + "/" + shard.trim();
+			pools.add(openPool("jdbc:postgresql://" + name, user, passwd, Integer.getInteger("dbproject.pool.minSize", 1)));
+			names.add(name);
+		}
+		System.out.println("Sharding flights over " + names);
+		return new ShardedBackend(this, pools, names);
+	}
+
+	/*
+	 * Borrows a connection for a read-only query, from a replica when one
+	 * serves reads.  Release it to pc.pool().
+	 */
+	private PooledConnection borrowRead() throws SQLException {
+		return this._router == null ? this._pool.borrow() : this._router.borrow();
+	}
+
+	/**
+	 * Creates a DBproject whose menu operations run against the given
+	 * backend instead of a database.  No connection is opened.
+	 * 
+	 * @param backend the backend the menu operations run on
+	 */
+	public DBproject(AirlineBackend backend) {
+		this._backend = Metrics.ENABLED ? new MeteredBackend(backend) : backend;
+	}
+
+	/**
+	 * @return the backend the menu operations run on
+	 */
+	public AirlineBackend backend() {
+		return this._backend;
+	}
+
+	/*
+	 * The pool and id allocator, for the tools in this directory; both are
+	 * null for an in-process backend.
+	 */
+	ConnectionPool pool() {
+		return this._pool;
+	}
+
+	IdAllocator ids() {
+		return this._ids;
+	}
 	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
@@ -64,19 +241,66 @@ public class DBproject{
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement();
+		long start = Metrics.start();
+		PooledConnection pc = this._pool.borrow();
+		try{
+			// creates a statement object
+			Statement stmt = pc.connection().createStatement();
+			Metrics.statement();
 
-		// issues the update instruction
-		stmt.executeUpdate(sql);
+			// issues the update instruction
+			stmt.executeUpdate(sql);
 
-		// close the instruction
-	    stmt.close();
+			// close the instruction
+		    stmt.close();
+		    written(sql);
+		}finally{
+			this._pool.release(pc);
+			UPDATE_TIMER.stop(start, sql);
+		}
+	}//end executeUpdate
+
+	/**
+	 * Method to execute a parameterized update SQL statement.  The statement
+	 * is taken from the connection's prepared statement cache, so repeated
+	 * calls with the same SQL text are parsed and planned only once.  With
+	 * group commit on, it is committed together with the concurrent writes
+	 * of other threads.
+	 * 
+	 * @param sql the input SQL string with <code>?</code> placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 * */
+	public int executeUpdate (String sql, Object... params) throws SQLException {
+		long start = Metrics.start();
+		if (this._group != null){
+			// returns once the group holding this statement has committed
+			try{
+				int rows = GroupCommitter.await(this._group.update(sql, params));
+				written(sql);
+				return rows;
+			}finally{
+				UPDATE_TIMER.stop(start, sql);
+			}
+		}
+		PooledConnection pc = this._pool.borrow();
+		try{
+			PreparedStatement stmt = pc.prepare(sql);
+			bind(stmt, params);
+			Metrics.statement();
+			int rows = stmt.executeUpdate();
+			written(sql);
+			return rows;
+		}finally{
+			this._pool.release(pc);
+			UPDATE_TIMER.stop(start, sql);
+		}
 	}//end executeUpdate
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and outputs the results to
+	 * method issues the query to the DBMS and streams the results to
 	 * standard out.
 	 * 
 	 * @param query the input query string
@@ -84,37 +308,162 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		long start = Metrics.start();
+		try{
+			return printResult(openCursor(query, NO_PARAMS, false));
+		}finally{
+			PRINT_TIMER.stop(start, query);
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+	 * through the prepared statement cache and output the results to
+	 * standard out.
+	 * 
+	 * @param query the input query string with <code>?</code> placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		long start = Metrics.start();
+		try{
+			return printResult(openCursor(query, params, true));
+		}finally{
+			PRINT_TIMER.stop(start, query);
+		}
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/*
+	 * Streams the rows of a cursor to standard out as an aligned table,
+	 * a page at a time when a page size is set.
+	 */
+	private int printResult (RowCursor cursor) throws SQLException {
+		try{
+			return writeResult(cursor, RowWriter.table(System.out, this._pageSize, in));
+		}finally{
+			cursor.close ();
+		}
+	}
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
+	/*
+	 * Hands every row of a cursor to a writer until either runs out.
+	 */
+	private static int writeResult (RowCursor cursor, RowWriter out) throws SQLException {
+		try{
+			out.columns(cursor.columnNames ());
+			while (cursor.next ())
+				if (!out.row(cursor.row ()))
+					break;
+			out.finish();
+			return cursor.rowCount ();
+		}catch(IOException e){
+			throw new SQLException("Could not write the result: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Method to set how many rows are printed before asking whether to
+	 * print the next page.
+	 * 
+	 * @param pageSize rows per page, 0 to print results without stopping
+	 */
+	public void setPageSize (int pageSize) {
+		this._pageSize = pageSize;
+	}
+
+	/**
+	 * Method to execute a query SQL instruction (i.e. SELECT) and write the
+	 * result to a file as it streams in.  The format follows the file name:
+	 * <code>.csv</code> for CSV, <code>.jsonl</code> for JSON Lines,
+	 * <code>.json</code> for a JSON array, and an aligned table otherwise.
+	 * 
+	 * @param file the file to create or replace
+	 * @param query the input query string with <code>?</code> placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when failed to execute the query or write the file
+	 */
+	public int executeQueryAndExport (Path file, String query, Object... params) throws SQLException {
+		long start = Metrics.start();
+		RowCursor cursor = openCursor(query, params, params.length > 0);
+		try{
+			RowWriter out = RowWriter.open(file);
+			try{
+				return writeResult(cursor, out);
+			}finally{
+				out.close();
 			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+		}catch(IOException e){
+			throw new SQLException("Could not write " + file + ": " + e.getMessage(), e);
+		}finally{
+			cursor.close ();
+			EXPORT_TIMER.stop(start, query);
+		}
+	}
+
+	/**
+	 * Callback receiving the rows of a streamed query one at a time.
+	 */
+	public interface RowHandler {
+		/**
+		 * Called once before the first row.
+		 * 
+		 * @param columnNames the column names of the result
+		 */
+		default void columns (String[] columnNames) throws SQLException {}
+
+		/**
+		 * Called for every row.  The array is reused for the next row.
+		 * 
+		 * @param row the values of the current row
+		 */
+		void row (String[] row) throws SQLException;
+	}
+
+	/**
+	 * Method to execute a query SQL instruction (i.e. SELECT) and pass each
+	 * row to a callback as it arrives.  Rows are read through a server-side
+	 * cursor <code>dbproject.fetchSize</code> at a time into a single reused
+	 * buffer, so memory use does not grow with the size of the result.
+	 * 
+	 * @param query the input query string with <code>?</code> placeholders
+	 * @param handler the callback receiving the rows
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryStreaming (String query, RowHandler handler, Object... params) throws SQLException {
+		long start = Metrics.start();
+		RowCursor cursor = openCursor(query, params, params.length > 0);
+		try{
+			handler.columns(cursor.columnNames ());
+			while (cursor.next ())
+				handler.row(cursor.row ());
+			return cursor.rowCount ();
+		}finally{
+			cursor.close ();
+			STREAM_TIMER.stop(start, query);
+		}
+	}
+
+	/**
+	 * Method to execute a query SQL instruction (i.e. SELECT) and return a
+	 * cursor that fetches the rows lazily as it is advanced.  The cursor
+	 * holds a pooled connection and must be closed.
+	 * 
+	 * @param query the input query string with <code>?</code> placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return an open cursor positioned before the first row
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public RowCursor openCursor (String query, Object... params) throws SQLException {
+		return openCursor(query, params, params.length > 0);
+	}
+
+	private RowCursor openCursor (String query, Object[] params, boolean cached) throws SQLException {
+		return new RowCursor(borrowRead(), query, params, cached, FETCH_SIZE);
 	}
 	
 	/**
@@ -127,33 +476,130 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+		long start = Metrics.start();
+		PooledConnection pc = borrowRead();
+		try{
+			//creates a statement object 
+			Statement stmt = pc.connection().createStatement (); 
+			Metrics.statement();
+			
+			//issues the query instruction 
+			ResultSet rs = stmt.executeQuery (query); 
+		 
+			/*
+			 * obtains the metadata object for the returned result set.  The metadata 
+			 * contains row and column info. 
+			*/ 
+			ResultSetMetaData rsmd = rs.getMetaData (); 
+			int numCol = rsmd.getColumnCount (); 
+		 
+			//iterates through the result set and saves the data returned by the query. 
+			List<List<String>> result  = new ArrayList<List<String>>(); 
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(); 
+				for (int i=1; i<=numCol; ++i) 
+					record.add(rs.getString (i)); 
+				result.add(record); 
+			}//end while 
+			stmt.close (); 
+			countRows(result);
+			return result; 
+		}finally{
+			pc.pool().release(pc);
+			RESULT_TIMER.stop(start, query);
+		}
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+	 * through the prepared statement cache and return the results as a
+	 * list of records.
+	 * 
+	 * @param query the input query string with <code>?</code> placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+		return queryResult(borrowRead(), query, params);
 	}//end executeQueryAndReturnResult
+
+	/*
+	 * Runs a parameterized query on a borrowed connection and releases it.
+	 */
+	static List<List<String>> queryResult (PooledConnection pc, String query, Object[] params) throws SQLException {
+		long start = Metrics.start();
+		try{
+			PreparedStatement stmt = pc.prepare(query);
+			bind(stmt, params);
+			Metrics.statement();
+			ResultSet rs = stmt.executeQuery ();
+			int numCol = rs.getMetaData ().getColumnCount ();
+			List<List<String>> result  = new ArrayList<List<String>>();
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(numCol);
+				for (int i=1; i<=numCol; ++i)
+					record.add(rs.getString (i));
+				result.add(record);
+			}//end while
+			rs.close ();
+			countRows(result);
+			return result;
+		}finally{
+			pc.pool().release(pc);
+			RESULT_TIMER.stop(start, query);
+		}
+	}
+
+	/*
+	 * Counts the rows and bytes of a materialized result in the metrics.
+	 */
+	private static void countRows (List<List<String>> result) {
+		if (!Metrics.ENABLED)
+			return;
+		long bytes = 0;
+		for (List<String> record : result)
+			for (String value : record)
+				if (value != null)
+					bytes += 2L * value.length();
+		Metrics.rows(result.size(), bytes);
+	}
 	
+	/**
+	 * Method to execute a query SQL instruction (i.e. SELECT) and return the
+	 * result in typed columnar form.  Integer and date columns are kept in
+	 * primitive arrays and low-cardinality text columns are dictionary-encoded,
+	 * which makes this the method of choice for keeping large extracts in
+	 * memory.  Rows are fetched through a server-side cursor.
+	 * 
+	 * @param query the input query string with <code>?</code> placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the query result stored column by column
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult executeQueryAndReturnColumns (String query, Object... params) throws SQLException {
+		long start = Metrics.start();
+		PooledConnection pc = borrowRead();
+		try{
+			pc.connection().setAutoCommit(false);
+			PreparedStatement stmt = pc.prepare(query);
+			bind(stmt, params);
+			stmt.setFetchSize(FETCH_SIZE);
+			Metrics.statement();
+			ResultSet rs = stmt.executeQuery ();
+			ColumnarResult result = ColumnarResult.from(rs);
+			rs.close ();
+			// one round trip per further batch of FETCH_SIZE rows
+			for (int i = FETCH_SIZE; i < result.rowCount (); i += FETCH_SIZE)
+				Metrics.roundTrip();
+			Metrics.rows(result.rowCount (), 0);
+			return result;
+		}finally{
+			pc.pool().release(pc);
+			COLUMNS_TIMER.stop(start, query);
+		}
+	}//end executeQueryAndReturnColumns
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
@@ -163,26 +609,46 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		int rowCount = 0;
+		long start = Metrics.start();
+		RowCursor cursor = openCursor(query, NO_PARAMS, false);
+		try{
+			//iterates through the result set and count nuber of results.
+			while (cursor.next ()) {}
+			return cursor.rowCount ();
+		}finally{
+			cursor.close ();
+			QUERY_TIMER.stop(start, query);
+		}
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+	 * through the prepared statement cache and return the number of results
+	 * 
+	 * @param query the input query string with <code>?</code> placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query, Object... params) throws SQLException {
+		long start = Metrics.start();
+		RowCursor cursor = openCursor(query, params, true);
+		try{
+			while (cursor.next ()) {}
+			return cursor.rowCount ();
+		}finally{
+			cursor.close ();
+			QUERY_TIMER.stop(start, query);
+		}
 	}
 	
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * value of sequence used for autogenerated keys.
+	 * 
+	 * Note that currval is tracked per session, so this only sees a nextval
+	 * issued on the same pooled connection.
 	 * 
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
@@ -190,24 +656,332 @@ public class DBproject{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		PooledConnection pc = this._pool.borrow();
+		try{
+			PreparedStatement stmt = pc.prepare("SELECT currval(?::regclass)");
+			stmt.setString(1, sequence);
+			Metrics.statement();
+			ResultSet rs = stmt.executeQuery ();
+			int value = -1;
+			if (rs.next()) value = rs.getInt(1);
+			rs.close ();
+			return value;
+		}finally{
+			this._pool.release(pc);
+		}
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * @return number of prepared statements served from the per-connection caches
 	 */
-	public void cleanup(){
+	public long getStatementCacheHits(){
+		return this._pool == null ? 0 : this._pool.statementCacheHits();
+	}
+
+	/**
+	 * @return number of statements that had to be prepared because they were not cached
+	 */
+	public long getStatementCacheMisses(){
+		return this._pool == null ? 0 : this._pool.statementCacheMisses();
+	}
+
+	/*
+	 * Binds the given values to the placeholders of a prepared statement.
+	 */
+	static void bind(PreparedStatement stmt, Object[] params) throws SQLException {
+		for (int i = 0; i < params.length; ++i)
+			stmt.setObject(i + 1, params[i]);
+	}
+
+	/**
+	 * Method to return the seat availability index, loading it and starting
+	 * the change listener on first use.
+	 * 
+	 * @return the loaded seat availability index
+	 * @throws java.sql.SQLException when the index could not be loaded
+	 */
+	public synchronized SeatAvailabilityService seats() throws SQLException {
+		if (this._seats == null){
+			SeatAvailabilityService seats = new SeatAvailabilityService(this._pool);
+			seats.start(changes());
+			this._seats = seats;
+		}
+		return this._seats;
+	}
+
+	/**
+	 * Method to return the id index of the reference tables, loading it and
+	 * starting the change listener on first use.
+	 * 
+	 * @return the loaded id index
+	 * @throws java.sql.SQLException when the index could not be loaded
+	 */
+	public synchronized IdIndex idIndex() throws SQLException {
+		if (this._idIndex == null){
+			IdIndex ids = new IdIndex(this._pool);
+			ids.start(changes());
+			this._idIndex = ids;
+		}
+		return this._idIndex;
+	}
+
+	/**
+	 * Method to return the cache of the read-only reports, subscribing it
+	 * to table change notifications on first use.  Null when
+	 * <code>dbproject.cache.maxEntries</code> is 0.
+	 * 
+	 * @return the result cache, or null
+	 * @throws java.sql.SQLException when the LISTEN could not be issued
+	 */
+	public synchronized ResultCache results() throws SQLException {
+		int maxEntries = Integer.getInteger("dbproject.cache.maxEntries", 256);
+		if (this._results == null && maxEntries > 0){
+			ResultCache results = new ResultCache(maxEntries, Long.getLong("dbproject.cache.ttlMs", 30000L));
+			results.start(changes());
+			this._results = results;
+		}
+		return this._results;
+	}
+
+	/*
+	 * Runs a report query through the result cache.
+	 */
+	private List<List<String>> cachedResult(String[] tables, String query, Object... params) throws SQLException {
+		ResultCache results = results();
+		if (results == null)
+			return executeQueryAndReturnResult(query, params);
+		return results.get(tables, query, params, () -> {
+			// right after another client's write a replica may not have it yet
+			boolean fresh = this._router != null && results.changedWithin(tables, this._router.maxLagMillis());
+			return queryResult(fresh ? this._pool.borrow() : borrowRead(), query, params);
+		});
+	}
+
+	/*
+	 * Drops the cached reports read from the tables a committed statement
+	 * wrote, so this client reads its own writes before the notification
+	 * arrives.
+	 */
+	private void written(String sql) {
+		if (this._router != null)
+			this._router.wrote();
+		ResultCache results = this._results;
+		if (results != null)
+			results.invalidateWritten(sql);
+	}
+
+	/*
+	 * Fails with the database's foreign key SQLState when there is no row
+	 * with the given id.  Ids in the index cost no round trip.
+	 */
+	void checkExists(String table, int id) throws SQLException {
+		if (!idIndex().contains(table, id))
+			throw new SQLException(table + " " + id + " does not exist", FK_VIOLATION);
+	}
+
+	/**
+	 * Method to book a seat for a customer.  The reservation gets status 'R'
+	 * if the flight still has a free seat and 'W' (waitlisted) otherwise, and
+	 * the seat index is updated once the booking has committed.
+	 * 
+	 * @param cid the customer id
+	 * @param fnum the flight number
+	 * @return the new reservation
+	 * @throws java.sql.SQLException when the booking failed
+	 */
+	@Override
+	public BookingEngine.Booking bookFlight(int cid, int fnum) throws SQLException {
+		checkExists(IdIndex.CUSTOMER, cid);
+		BookingEngine.Booking booking = this._bookings.book(cid, fnum);
+		written("INSERT INTO Reservation");
+		if (booking.numSold >= 0 && this._seats != null)
+			this._seats.onSold(fnum, booking.numSold);
+		return booking;
+	}
+
+	/**
+	 * Method to cancel a reservation, promoting waitlisted reservations of
+	 * the same flight into the freed seat.
+	 * 
+	 * @param rnum the reservation number
+	 * @return false if there was no such reservation
+	 * @throws java.sql.SQLException when the cancellation failed
+	 */
+	public boolean cancelReservation(int rnum) throws SQLException {
+		BookingEngine.Booking cancelled = this._bookings.cancel(rnum);
+		if (cancelled == null)
+			return false;
+		written("DELETE FROM Reservation");
+		if (this._seats != null)
+			this._seats.onSold(cancelled.fnum, cancelled.numSold);
+		return true;
+	}
+
+	@Override
+	public int addPlane(String make, String model, int age, int seats) throws SQLException {
+		int id = this._ids.nextInt(IdAllocator.PLANE);
+		executeUpdate(INSERT_PLANE, id, make, model, age, seats);
+		added(IdIndex.PLANE, id);
+		return id;
+	}
+
+	@Override
+	public int addPilot(String fullName, String nationality) throws SQLException {
+		int id = this._ids.nextInt(IdAllocator.PILOT);
+		executeUpdate(INSERT_PILOT, id, fullName, nationality);
+		added(IdIndex.PILOT, id);
+		return id;
+	}
+
+	@Override
+	public int addTechnician(String fullName) throws SQLException {
+		int id = this._ids.nextInt(IdAllocator.TECHNICIAN);
+		executeUpdate(INSERT_TECHNICIAN, id, fullName);
+		added(IdIndex.TECHNICIAN, id);
+		return id;
+	}
+
+	synchronized void added(String table, int id) {
+		if (this._idIndex != null)
+			this._idIndex.add(table, id);
+	}
+
+	@Override
+	public int addFlight(int cost, int numSold, int numStops, String departureDate, String arrivalDate,
+		String arrivalAirport, String departureAirport, int pilotId, int planeId) throws SQLException {
+		// an existing pilot and plane are confirmed in memory and both keys
+		// come from the local hi/lo blocks, so this is one round trip
+		checkExists(IdIndex.PILOT, pilotId);
+		checkExists(IdIndex.PLANE, planeId);
+		int fnum = this._ids.nextInt(IdAllocator.FLIGHT);
+		int fiid = this._ids.nextInt(IdAllocator.FLIGHT_INFO);
+		executeUpdate(ADD_FLIGHT, addFlightParams(fnum, fiid, cost, numSold, numStops, departureDate, arrivalDate,
+			arrivalAirport, departureAirport, pilotId, planeId));
+		return fnum;
+	}
+
+	/*
+	 * The parameters of ADD_FLIGHT, taken in the order of addFlight's
+	 * arguments, so every writer of a flight binds them the same way.
+	 */
+	static Object[] addFlightParams(int fnum, int fiid, int cost, int numSold, int numStops, String departureDate,
+		String arrivalDate, String arrivalAirport, String departureAirport, int pilotId, int planeId) {
+		return new Object[] { fnum, cost, numSold, numStops, departureDate, arrivalDate, arrivalAirport, departureAirport,
+			fiid, planeId, pilotId };
+	}
+
+	@Override
+	public SeatAvailabilityService.FlightSeats availableSeats(int fnum) throws SQLException {
+		// answered from the in-memory index, no round trip
+		return seats().lookup(fnum);
+	}
+
+	@Override
+	public List<List<String>> repairsPerPlane() throws SQLException {
+		// read from the trigger-maintained aggregate, not from Repairs
+		return cachedResult(PER_PLANE_TABLES, RepairAggregates.PER_PLANE_SQL);
+	}
+
+	@Override
+	public List<List<String>> repairsPerYear() throws SQLException {
+		return cachedResult(PER_YEAR_TABLES, RepairAggregates.PER_YEAR_SQL);
+	}
+
+	@Override
+	public int passengersWithStatus(String status) throws SQLException {
+		return Integer.parseInt(cachedResult(STATUS_TABLES, COUNT_STATUS, status).get(0).get(0));
+	}
+
+	/**
+	 * Method to count the repairs of every year in a range of years from
+	 * Repairs itself.  The date bounds let PostgreSQL skip the partitions of
+	 * other years, where EXTRACT(YEAR FROM repair_date) would read them all.
+	 * 
+	 * @param fromYear the first year counted
+	 * @param toYear the last year counted
+	 * @return one (year, repair count) record per year with repairs
+	 * @throws java.sql.SQLException when the counts could not be read
+	 */
+	public List<List<String>> repairsPerYear(int fromYear, int toYear) throws SQLException {
+		return cachedResult(REPAIRS_TABLES, REPAIRS_PER_YEAR_IN_RANGE,
+			java.sql.Date.valueOf(LocalDate.of(fromYear, 1, 1)), java.sql.Date.valueOf(LocalDate.of(toYear + 1, 1, 1)));
+	}
+
+	/**
+	 * Method to list the scheduled departures in a date range.  With shards
+	 * use {@link ShardedBackend#departures(String, String)}, which reads
+	 * every shard.
+	 * 
+	 * @param from the first day, as yyyy-mm-dd
+	 * @param to the day after the last, as yyyy-mm-dd
+	 * @return one (id, flight number, departure, arrival) row per departure, in departure order
+	 * @throws java.sql.SQLException when the schedule could not be read or is split over shards
+	 */
+	public ColumnarResult departures(String from, String to) throws SQLException {
+		if (this._shards != null)
+			throw new SQLException("Schedule is split over " + this._shards.size() + " shards");
+		// a window can span many months of Schedule, so keep it columnar
+		return executeQueryAndReturnColumns(DEPARTURES_IN_RANGE, java.sql.Date.valueOf(from), java.sql.Date.valueOf(to));
+	}
+
+	/*
+	 * Puts a write journal in front of the database, sized by
+	 * dbproject.journal.sizeMb (default 64) and forced to disk on every
+	 * write with dbproject.journal.sync=true.
+	 */
+	private void openJournal(Path file) {
+		if (this._shards != null){
+			System.out.println("The write journal is not used with shards");
+			return;
+		}//end if
 		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+			this._journal = new JournaledBackend(this, file, Integer.getInteger("dbproject.journal.sizeMb", 64) << 20,
+				Boolean.getBoolean("dbproject.journal.sync"));
+			this._backend = this._journal;
+		}catch(IOException e){
+			System.err.println("Write journal " + file + " unavailable, writing directly: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Loads the seat index of every shard and the id index.
+	 */
+	private void loadIndexes() throws SQLException {
+		if (this._shards != null)
+			this._shards.start();
+		else
+			seats();
+		idIndex();
+	}
+
+	private synchronized ChangeListener changes() {
+		if (this._changes == null)
+			this._changes = new ChangeListener(this._pool, Long.getLong("dbproject.notify.pollMs", 250L));
+		return this._changes;
+	}
+
+	/**
+	 * Method to close the connection pool and every physical connection in it.
+	 */
+	public void cleanup(){
+		if (this._journal != null){
+			this._journal.close ();
+		}//end if
+		if (this._group != null){
+			this._group.close ();
+		}//end if
+		if (this._shards != null){
+			this._shards.close ();
+		}//end if
+		if (this._changes != null){
+			this._changes.close ();
+		}//end if
+		if (this._router != null){
+			this._router.close ();
+		}//end if
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -216,35 +990,62 @@ public class DBproject{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		boolean embedded = args.length > 0 && args[0].equals("--embedded");
+		if (args.length < 3 && !embedded) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + DBproject.class.getName() +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [--load <data dir> | --load-shards <data dir> | --batch <file|-> [batch size] [commit interval]"
+		            + " | --check-aggregates | --rebuild-aggregates | --partitions | --repairs-per-year <from> <to>"
+		            + " | --departures <from> <to> | --rejected [replay] | --serve [http port]]\n"
+		            + "   or: java [-classpath <classpath>] " + DBproject.class.getName() + " --embedded [data dir] [--serve [http port]]");
 			return;
 		}//end if
 		
 		DBproject esql = null;
 		
 		try{
-			System.out.println("(1)");
-			
-			try {
-				Class.forName("org.postgresql.Driver");
-			}catch(Exception e){
+			boolean keepon = true;
+			if (embedded){
+				// run in-process on the CSV files, no database needed
+				boolean hasDir = args.length > 1 && !args[1].startsWith("--");
+				esql = new DBproject(new EmbeddedBackend(new File(hasDir ? args[1] : "../data")));
+				int next = hasDir ? 2 : 1;
+				if (args.length > next && args[next].equals("--serve")){
+					keepon = false;
+					serve(esql, args.length > next + 1 ? Integer.parseInt(args[next + 1]) : 8080);
+				}
+			}else{
+				System.out.println("(1)");
+				
+				try {
+					Class.forName("org.postgresql.Driver");
+				}catch(Exception e){
 
-				System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
-				e.printStackTrace();
-				return;
+					System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
+					e.printStackTrace();
+					return;
+				}
+				
+				System.out.println("(2)");
+				String dbname = args[0];
+				String dbport = args[1];
+				String user = args[2];
+				
+				esql = new DBproject (dbname, dbport, user, "");
+				
+				// any further arguments select a non-interactive mode
+				keepon = args.length == 3;
+				if (!keepon)
+					runMode(esql, Arrays.copyOfRange(args, 3, args.length));
+				else{
+					// load the in-memory indexes up front so the menus never wait on them
+					esql.loadIndexes();
+				}
 			}
 			
-			System.out.println("(2)");
-			String dbname = args[0];
-			String dbport = args[1];
-			String user = args[2];
-			
-			esql = new DBproject (dbname, dbport, user, "");
-			
-			boolean keepon = true;
+			// page long results when a person is reading them
+			if (keepon && System.console() != null)
+				esql.setPageSize(Integer.getInteger("dbproject.pageSize", 40));
 			while(keepon){
 				System.out.println("MAIN MENU");
 				System.out.println("---------");
@@ -277,6 +1078,10 @@ public class DBproject{
 		}finally{
 			try{
 				if(esql != null) {
+					System.out.println("Statement cache: " + esql.getStatementCacheHits() + " hits, "
+						+ esql.getStatementCacheMisses() + " misses");
+					if (Metrics.ENABLED)
+						writeMetrics();
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -287,6 +1092,159 @@ public class DBproject{
 		}
 	}
 
+	/*
+	 * Writes the metrics snapshot to the file named by dbproject.metrics.file,
+	 * or to standard out.
+	 */
+	private static void writeMetrics() throws IOException {
+		String file = System.getProperty("dbproject.metrics.file");
+		if (file == null){
+			Metrics.writePrometheus(System.out);
+			return;
+		}
+		java.io.Writer out = new java.io.FileWriter(file);
+		try{
+			Metrics.writePrometheus(out);
+		}finally{
+			out.close();
+		}
+		System.out.println("Metrics written to " + file);
+	}
+
+	/**
+	 * Method to run one of the non-interactive modes selected on the
+	 * command line instead of the menu.
+	 * 
+	 * @param esql the connected DBproject
+	 * @param mode the mode name followed by its arguments
+	 */
+	private static void runMode(DBproject esql, String[] mode) throws Exception {
+		switch (mode[0]){
+			case "--load":
+				// reload every table from the CSV files on this machine
+				new BulkLoader(esql._pool, new File(mode.length > 1 ? mode[1] : "../data")).load();
+				break;
+			case "--load-shards":
+				// split the CSV files over the shards in dbproject.shards and load each
+				if (esql._shards == null){
+					System.err.println("--load-shards needs -Ddbproject.shards");
+					break;
+				}
+				esql._shards.load(new File(mode.length > 1 ? mode[1] : "../data"));
+				break;
+			case "--batch":
+				// run Add* operations from a command file, or stdin for "-"
+				BufferedReader input = mode.length < 2 || mode[1].equals("-") ? in
+					: new BufferedReader(new FileReader(mode[1]));
+				int batchSize = mode.length > 2 ? Integer.parseInt(mode[2]) : 500;
+				int commitInterval = mode.length > 3 ? Integer.parseInt(mode[3]) : 5000;
+				new BatchRunner(esql._pool, esql._ids, batchSize, commitInterval).run(input);
+				input.close();
+				break;
+			case "--check-aggregates":
+				// compare the repair aggregates with the Repairs table
+				List<String> mismatches = new RepairAggregates(esql._pool).check();
+				for (String m : mismatches)
+					System.out.println(m);
+				System.out.println(mismatches.isEmpty() ? "Repair aggregates are consistent"
+					: mismatches.size() + " mismatches, run --rebuild-aggregates");
+				break;
+			case "--serve":
+				// answer the menu operations over HTTP instead of stdin
+				esql.loadIndexes();
+				serve(esql, mode.length > 1 ? Integer.parseInt(mode[1]) : 8080);
+				break;
+			case "--export":
+				// write a query result to a .csv, .jsonl, .json or text file
+				if (mode.length < 3){
+					System.err.println("Usage: --export <file> <query> [parameter...]");
+					break;
+				}
+				Object[] params = Arrays.copyOfRange(mode, 3, mode.length, Object[].class);
+				int rows = esql.executeQueryAndExport(Paths.get(mode[1]), mode[2], params);
+				System.out.println(rows + " rows written to " + mode[1]);
+				break;
+			case "--rejected":
+				// list the journaled writes the database refused, or apply them again
+				if (esql._journal == null){
+					System.err.println("--rejected needs -Ddbproject.journal");
+					break;
+				}
+				List<String> rejected = esql._journal.rejected(mode.length > 1 && mode[1].equals("replay"));
+				for (String line : rejected)
+					System.out.println(line);
+				System.out.println(rejected.size() + " rejected writes");
+				break;
+			case "--rebuild-aggregates":
+				new RepairAggregates(esql._pool).rebuild();
+				System.out.println("Repair aggregates rebuilt");
+				break;
+			case "--partitions":
+				// move Repairs and Schedule to date-range partitions and keep them current,
+				// on every shard
+				Map<String, ConnectionPool> databases = esql._shards == null
+					? Collections.singletonMap("", esql._pool) : esql._shards.pools();
+				for (Map.Entry<String, ConnectionPool> db : databases.entrySet()){
+					if (esql._shards != null)
+						System.out.println("Shard " + db.getKey() + ":");
+					PartitionManager partitions = new PartitionManager(db.getValue(),
+						Integer.getInteger("dbproject.partitions.ahead", 3),
+						Integer.getInteger("dbproject.partitions.retain", 0),
+						System.getProperty("dbproject.partitions.archive", "archive"));
+					for (String change : partitions.maintain())
+						System.out.println(change);
+					for (String line : partitions.describe())
+						System.out.println(line);
+				}//end for
+				break;
+			case "--repairs-per-year":
+				if (mode.length < 3){
+					System.err.println("Usage: --repairs-per-year <from year> <to year>");
+					break;
+				}
+				printRecords(esql, new String[] { "repair_year", "repair_count" },
+					esql.repairsPerYear(Integer.parseInt(mode[1]), Integer.parseInt(mode[2])));
+				break;
+			case "--departures":
+				if (mode.length < 3){
+					System.err.println("Usage: --departures <from yyyy-mm-dd> <to yyyy-mm-dd>");
+					break;
+				}
+				if (esql._shards != null)
+					printRecords(esql, new String[] { "id", "flightnum", "departure_time", "arrival_time" },
+						esql._shards.departures(mode[1], mode[2]));
+				else
+					printColumns(esql, esql.departures(mode[1], mode[2]));
+				break;
+			default:
+				System.err.println("Unknown mode: " + mode[0]);
+		}
+	}
+
+	/*
+	 * Serves the backend over HTTP until the JVM is shut down.  The address
+	 * is dbproject.server.address, loopback by default.
+	 */
+	private static void serve(DBproject esql, int port) throws Exception {
+		InetAddress address = InetAddress.getByName(System.getProperty("dbproject.server.address", "127.0.0.1"));
+		final AirlineServer server = new AirlineServer(esql.backend(), address, port);
+		final CountDownLatch stopped = new CountDownLatch(1);
+		final Thread main = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			server.stop();
+			stopped.countDown();
+			// let main close the pool before the JVM halts
+			try{
+				main.join(5000);
+			}catch(InterruptedException e){
+				// ignored.
+			}
+		}));
+		server.start();
+		System.out.println("Serving on http://" + address.getHostAddress() + ":" + server.port() + "/");
+		stopped.await();
+	}
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -303,66 +1261,21 @@ public class DBproject{
 		return input;
 	}//end readChoice
 
-	public static boolean hasAtomocity(Statement stmt, String flightQueryUpdate, String infoQueryUpdate)
+	/**
+	 * Method to test whether a Plane, Pilot, Customer or Technician exists.
+	 * Answered from the in-memory id index; only an id newer than any the
+	 * index has seen costs a round trip.
+	 * 
+	 * @param esql the database the index is loaded from
+	 * @param table one of the IdIndex table names
+	 * @param id the primary key
+	 * @return false if there is no such row
+	 * @throws java.sql.SQLException when the index could not be loaded
+	 */
+	public static boolean hasID(DBproject esql, String table, int id)
 	throws SQLException
 	{
-		int errorCounter = 0;
-
-		try
-		{
-			stmt.executeUpdate(flightQueryUpdate);
-		}
-		catch(SQLException e)
-		{
-			System.out.print("ERROR: " + e.getMessage());
-			errorCounter++;
-		}
-
-		if (errorCounter == 0) 
-		{
-			try 
-			{
-
-				stmt.executeUpdate(infoQueryUpdate);
-			}
-			catch(SQLException e)
-			{
-				System.out.print("ERROR: " + e.getMessage());
-				errorCounter++;
-			}
-		}
-
-
-		if(errorCounter > 0)
-			return false;
-		else
-			return true;
-
-	}
-
-	public static boolean hasID(Statement stmt, String table, String idType, String idnum)
-	throws SQLException
-	{
-		int rowCount =0;
-		String query = "SELECT " + idType + " FROM " + table + " WHERE " + idType + " = '" +  idnum +"';";
-
-		try
-		{
-			ResultSet rs = stmt.executeQuery(query);
-	        
-	        ResultSetMetaData rsmd = rs.getMetaData();
-	        rowCount = rsmd.getColumnCount();
-		}
-		catch(SQLException e)
-		{
-			System.out.print("ERROR: " + e.getMessage());
-		}
-
-		if (rowCount > 0)
-			return true;
-		else
-			return false;
-
+		return esql.idIndex().contains(table, id);
 	}
 
 	private static String setDate(){
@@ -388,28 +1301,12 @@ public class DBproject{
 	public static void AddPlane(DBproject esql)
 	 {//1
 	 	int planeID, planeAge, numSeats;
-	 	String query, make, model, planeIDString, planeAgeString, numSeatsString;
+	 	String make, model, planeAgeString, numSeatsString;
     
 		planeAge = 0;
 		numSeats= -1;
 	     try
 	     {	
-		 	// generate random plane id
-			query = "SELECT MAX(id) FROM Plane;";
-			Statement stmt = esql._connection.createStatement();
-	    	//issues the query instruction
-	    	ResultSet rs = stmt.executeQuery (query);
-
-	    	if (rs.next()) 
-	    	{
-	    		planeID = Integer.parseInt(rs.getString(1)) + 1;
-	    	}
-
-	    	else 
-	    		planeID = 0;
-
-			planeIDString = Integer.toString(planeID);
-	    	
 	   
 			// user enters planeAge
 			do
@@ -502,9 +1399,9 @@ public class DBproject{
 
 
 
-			query = "INSERT INTO Plane (id, make, model, age, seats) VALUES ( " + planeIDString + " , '" + make + "' , '" + model + "' , " + planeAgeString + " , " + numSeatsString + " );";
+			planeID = esql.backend().addPlane(make, model, planeAge, numSeats);
 			
-	 		System.out.print(query);  
+	 		System.out.println("Plane " + planeID + " added");  
  	}
 	catch(SQLException e)
 	{
@@ -517,25 +1414,9 @@ public class DBproject{
 	public static void AddPilot(DBproject esql) 
 	{//2
 		int pilotId;
-		String query, fullName, nationality, pilotIdString;
+		String fullName, nationality;
 		try
 		{
-			// Auto-generate pilot's id
-			query = "SELECT MAX(id) FROM Pilot;";
-			Statement stmt = esql._connection.createStatement();
-	    	//issues the query instruction
-	    	ResultSet rs = stmt.executeQuery(query);
-
-	    	if (rs.next()) 
-	    	{
-	    		pilotId = Integer.parseInt(rs.getString(1)) + 1;
-	    	}
-
-	    	else 
-	    		pilotId = 0;
-
-			pilotIdString = Integer.toString(pilotId);
-
 			// enter full name of pilot
 			do
 			{
@@ -574,9 +1455,8 @@ public class DBproject{
 			while(true);
 
 
-			query = "INSERT INTO Pilot(id, fullname, nationality) VALUES (" + pilotIdString + " , '" + fullName + "' , '" + nationality + "' );";
-			esql.executeUpdate(query);
-			System.out.println(query);
+			pilotId = esql.backend().addPilot(fullName, nationality);
+			System.out.println("Pilot " + pilotId + " added");
 
 		}
 		catch(SQLException e)
@@ -589,17 +1469,9 @@ public class DBproject{
 	public static void AddFlight(DBproject esql)
 	{
 		int flightNum, cost, numSold, numStops;
-		String query, departure_date, arrival_date, arrival_airport, departure_airport, flightNumString, costString, numSoldString, numStopsString;
-		int fiid;
-			String query2, query3, fiidString;
-			String fnumVal = "fnum";
-			String flightVal = "Flight";
-			String fi_planeID = "";
-			String fi_pilotID = "";
-				String planeIDVal = "id";
-				String pilotIDVal = "id";
-				String planeVal = "Plane";
-				String pilotVal = "Pilot";
+		String departure_date, arrival_date, arrival_airport, departure_airport;
+		int fi_planeID = 0;
+		int fi_pilotID = 0;
 		flightNum = 0;
 		cost = 0;
 		numSold = -1;
@@ -608,22 +1480,6 @@ public class DBproject{
 			// flightNum entry
 		try
 		{
-			// generate random flight num
-			query = "SELECT MAX(fnum) FROM Flight;";
-			Statement stmt1 = esql._connection.createStatement();
-	    	//issues the query instruction
-	    	ResultSet rs = stmt1.executeQuery (query);
-
-	    	if (rs.next()) 
-	    	{
-	    		flightNum = Integer.parseInt(rs.getString(1)) + 1;
-	    	}
-
-	    	else 
-	    		flightNum = 0;
-
-			flightNumString = Integer.toString(flightNum);
-
 			// cost entry
 			do
 			{
@@ -645,7 +1501,6 @@ public class DBproject{
 			}
 			while(cost == 0);
 
-			costString = Integer.toString(cost);
 
 			// num tickets sold
 			do
@@ -667,7 +1522,6 @@ public class DBproject{
 			}
 			while(numSold == -1);
 
-			numSoldString = Integer.toString(numSold);
 
 			// num of stops
 			do
@@ -689,7 +1543,6 @@ public class DBproject{
 			}
 			while(numStops == -1);
 
-			numStopsString = Integer.toString(numStops);
 
 			//departure date
 			do
@@ -762,29 +1615,7 @@ public class DBproject{
 			}
 			while(true);
 
-			query = "INSERT INTO Flight (fnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport) VALUES (" + flightNumString + " , " + costString + " , " + numSoldString + " , " + numStopsString + " , '" + departure_date + "' , '" + arrival_date + "' , '" + arrival_airport + "' , '" + departure_airport + "' );";
-			esql.executeUpdate(query);
-			
-			
 			// *** Beginning of FlightInfo Entry ***
-
-				Statement stmt3 = esql._connection.createStatement();
-				// generate random flight info id
-				query2 = "SELECT MAX(fiid) FROM FlightInfo;";
-
-				Statement stmt2 = esql._connection.createStatement();
-	    		//issues the query instruction
-	    		ResultSet rs2 = stmt2.executeQuery (query2);
-
-	    		if (rs2.next()) 
-	    		{
-	    			fiid = Integer.parseInt(rs2.getString(1)) + 1;
-	    		}
-
-	    		else 
-	    			fiid = 0;
-
-				fiidString = Integer.toString(fiid);
 				
 				
 				do
@@ -793,7 +1624,7 @@ public class DBproject{
 
 					try
 					{
-						fi_pilotID = in.readLine();
+						fi_pilotID = Integer.parseInt(in.readLine());
 						break;
 					}
 					catch(Exception e)
@@ -811,7 +1642,7 @@ public class DBproject{
 
 					try
 					{
-						fi_planeID = in.readLine();
+						fi_planeID = Integer.parseInt(in.readLine());
 						break;
 					}
 					catch(Exception e)
@@ -824,14 +1655,9 @@ public class DBproject{
 				while(true);
 			 
 				
-				if(hasID(stmt3, planeVal, planeIDVal, fi_planeID) && hasID(stmt3, pilotVal, pilotIDVal, fi_pilotID))
-				{
-					System.out.println("Both IDs exist");
-					query3 = "INSERT INTO FlightInfo(fiid, flight_id, plane_id, pilot_id) VALUES ( " + fiidString + " , " + flightNumString +" , " + fi_planeID + " , " + fi_pilotID + ");";
-					esql.executeUpdate(query3);
-				}
-				else
-					System.out.println("Cannot execute flight info update because one of the ids does not exist");
+				flightNum = esql.backend().addFlight(cost, numSold, numStops, departure_date, arrival_date,
+					arrival_airport, departure_airport, fi_pilotID, fi_planeID);
+				System.out.println("Flight " + flightNum + " added");
 
 			}
 
@@ -846,28 +1672,12 @@ public class DBproject{
 	public static void AddTechnician(DBproject esql) 
 	{
 		int technicianId;
-		String query, fullName, technicianIdString;
+		String fullName;
 
 		// technician entry
 
 		try
 		{
-			// Auto-generate technician id
-		 	query = "SELECT MAX(id) FROM Technician;";
-			Statement stmt = esql._connection.createStatement();
-	    	//issues the query instruction
-	    	ResultSet rs = stmt.executeQuery(query);
-
-	    	if (rs.next()) 
-	    	{
-	    		technicianId = Integer.parseInt(rs.getString(1)) + 1;
-	    	}
-
-	    	else 
-	    		technicianId = 0;
-
-			technicianIdString = Integer.toString(technicianId);
-
 			// full name entry
 			do
 			{
@@ -886,9 +1696,8 @@ public class DBproject{
 			while(true);
 
 
-			query = "INSERT INTO Technician (id, full_name) VALUES ( " + technicianIdString + " , '"+ fullName + "' );";
-			stmt.executeUpdate(query);
-			System.out.println(query);
+			technicianId = esql.backend().addTechnician(fullName);
+			System.out.println("Technician " + technicianId + " added");
 
 	}
 		catch(SQLException e)
@@ -902,21 +1711,183 @@ public class DBproject{
 
 	public static void BookFlight(DBproject esql) {//5
 		// Given a customer and a flight that he/she wants to book, add a reservation to the DB
+		int customerId, flightNum;
+
+		do
+		{
+			System.out.println("Please enter the customer id: ");
+			try
+			{
+				customerId = Integer.parseInt(in.readLine());
+				break;
+			}
+			catch(Exception e)
+			{
+				System.out.println("Your input is invalid!");
+				continue;
+			}
+		}
+		while(true);
+
+		do
+		{
+			System.out.println("Please enter the flight number: ");
+			try
+			{
+				flightNum = Integer.parseInt(in.readLine());
+				break;
+			}
+			catch(Exception e)
+			{
+				System.out.println("Your input is invalid!");
+				continue;
+			}
+		}
+		while(true);
+
+		try
+		{
+			BookingEngine.Booking booking = esql.backend().bookFlight(customerId, flightNum);
+			if ("R".equals(booking.status))
+				System.out.println("Reservation " + booking.rnum + " reserved on flight " + flightNum);
+			else if ("Q".equals(booking.status))
+				System.out.println("Reservation " + booking.rnum + " on flight " + flightNum + " is queued and will be booked shortly");
+			else
+				System.out.println("Flight " + flightNum + " is full, reservation " + booking.rnum + " is on the waitlist");
+		}
+		catch(SQLException e)
+		{
+			System.out.println("Error: " + e.getMessage());
+		}
 	}
 
 	public static void ListNumberOfAvailableSeats(DBproject esql) {//6
 		// For flight number and date, find the number of availalbe seats (i.e. total plane capacity minus booked seats )
+		int flightNum;
+		String date;
+
+		do
+		{
+			System.out.println("Please enter the flight number: ");
+			try
+			{
+				flightNum = Integer.parseInt(in.readLine());
+				break;
+			}
+			catch(Exception e)
+			{
+				System.out.println("Your input is invalid!");
+				continue;
+			}
+		}
+		while(true);
+
+		System.out.println("Please enter the departure date (format yyyy-mm-dd): ");
+		date = setDate();
+
+		try
+		{
+			SeatAvailabilityService.FlightSeats seats = esql.backend().availableSeats(flightNum);
+			if (seats == null)
+				System.out.println("Flight " + flightNum + " does not exist");
+			else if (!seats.departureDate.equals(java.sql.Date.valueOf(date).toString()))
+				System.out.println("Flight " + flightNum + " departs on " + seats.departureDate + ", not on " + date);
+			else
+				System.out.println("Available seats on flight " + flightNum + ": " + seats.available() + " of " + seats.capacity);
+		}
+		catch(SQLException | IllegalArgumentException e)
+		{
+			System.out.println("Error: " + e.getMessage());
+		}
 	}
 
 	public static void ListsTotalNumberOfRepairsPerPlane(DBproject esql) {//7
 		// Count number of repairs per planes and list them in descending order
+		try
+		{
+			printRecords(esql, new String[] { "plane_id", "repair_count" }, esql.backend().repairsPerPlane());
+		}
+		catch(SQLException | IOException e)
+		{
+			System.out.println("Error: " + e.getMessage());
+		}
 	}
 
 	public static void ListTotalNumberOfRepairsPerYear(DBproject esql) {//8
 		// Count repairs per year and list them in ascending order
+		try
+		{
+			printRecords(esql, new String[] { "repair_year", "repair_count" }, esql.backend().repairsPerYear());
+		}
+		catch(SQLException | IOException e)
+		{
+			System.out.println("Error: " + e.getMessage());
+		}
 	}
 	
 	public static void FindPassengersCountWithStatus(DBproject esql) {//9
 		// Find how many passengers there are with a status (i.e. W,C,R) and list that number.
+		String status;
+
+		do
+		{
+			System.out.println("Please enter the status (W, C or R): ");
+			try
+			{
+				status = in.readLine().trim().toUpperCase();
+				if (status.equals("W") || status.equals("C") || status.equals("R"))
+					break;
+				System.out.println("Your input is invalid!");
+			}
+			catch(Exception e)
+			{
+				System.out.println("Your input is invalid!");
+				continue;
+			}
+		}
+		while(true);
+
+		try
+		{
+			System.out.println("Passengers with status " + status + ": " + esql.backend().passengersWithStatus(status));
+		}
+		catch(SQLException e)
+		{
+			System.out.println("Error: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Prints the records as an aligned table with a header, like printResult.
+	 */
+	private static void printRecords(DBproject esql, String[] columns, List<List<String>> records) throws IOException {
+		if (records.isEmpty())
+			return;
+		RowWriter out = RowWriter.table(System.out, esql._pageSize, in);
+		out.columns(columns);
+		for (List<String> record : records)
+			if (!out.row(record.toArray(new String[record.size()])))
+				break;
+		out.finish();
+	}
+
+	/*
+	 * Prints a columnar result the same way.
+	 */
+	private static void printColumns(DBproject esql, ColumnarResult result) throws IOException {
+		if (result.rowCount() == 0)
+			return;
+		RowWriter out = RowWriter.table(System.out, esql._pageSize, in);
+		String[] row = new String[result.columnCount()];
+		for (int col = 0; col < row.length; ++col)
+			row[col] = result.columnName(col);
+		out.columns(row);
+		for (int r = 0; r < result.rowCount(); ++r) {
+			for (int col = 0; col < row.length; ++col)
+				row[col] = result.getString(r, col);
+			if (!out.row(row))
+				break;
+		}
+		out.finish();
 	}
 }
@@ -0,0 +1,497 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class writes a synthetic data set of any size as CSV files with the
+ * names and column order that sql/create.sql and {@link BulkLoader} expect.
+ *
+ * The size is given as the number of reservations; the other tables are
+ * derived from it with the proportions of the bundled data (about 5
+ * reservations per flight, 40 per customer) and can be overridden with
+ * <code>-Dgen.&lt;table&gt;=&lt;rows&gt;</code> for customers, flights,
+ * planes, pilots, technicians and repairs.
+ *
+ * Every value is a pure function of the seed (<code>-Dgen.seed</code>), the
+ * table, the row and the column, so rows can be generated in any order.
+ * Each table is split into ranges written in parallel to part files, which
+ * are then concatenated; memory use does not depend on the size.
+ *
+ * The data respects the schema:
+ * <ul>
+ * <li>the CHECK domains: _SEATS, _STATUS, _CODE, _GENDER, positive costs,
+ * and five digit zip codes as in us_postal_code;</li>
+ * <li>every foreign key points at an existing row;</li>
+ * <li>each flight has one FlightInfo and one Schedule row, and its num_sold
+ * is the number of its 'R' and 'C' reservations.  Reservations beyond the
+ * plane's capacity are waitlisted ('W'), as BookingEngine would do.</li>
+ * </ul>
+ *
+ * Demand is skewed: a share of the reservations (<code>-Dgen.skew</code>,
+ * default 0.2) goes to hot flights following a Zipf distribution with
+ * exponent <code>-Dgen.zipf</code> (default 1.0).  The same distribution
+ * picks the planes of flights and repairs and the airports.
+ *
+ */
+public class DataGenerator {
+	private static final long SEED = Long.getLong("gen.seed", 166L);
+	private static final double SKEW = Double.parseDouble(System.getProperty("gen.skew", "0.2"));
+	private static final double ZIPF = Double.parseDouble(System.getProperty("gen.zipf", "1.0"));
+	private static final int AIRPORTS = 400;
+	// first day of the generated flights and repairs
+	private static final long EPOCH_2014 = LocalDate.of(2014, 1, 1).toEpochDay();
+
+	// column salts, so that the values of different columns are independent
+	private static final int C_CID = 1, C_STATUS = 2, C_PLANE = 3, C_PILOT = 4, C_TECH = 5, C_DATE = 6,
+		C_TIME = 7, C_LENGTH = 8, C_FROM = 9, C_TO = 10, C_COST = 11, C_STOPS = 12, C_CODE = 13,
+		C_NAME = 14, C_NAME2 = 15, C_NATION = 16, C_MAKE = 17, C_AGE = 18, C_SEATS = 19, C_GENDER = 20,
+		C_STREET = 21, C_CITY = 22, C_PHONE = 23, C_ZIP = 24, C_RANK = 25, C_REPAIR = 32;
+
+	private static final String[] FIRST = { "Armand", "Alberto", "Wyatt", "Jessie", "Maria", "Sofia", "Liam",
+		"Noah", "Emma", "Olivia", "Ava", "Mason", "Lucas", "Mia", "Ethan", "Harper", "Aiden", "Ella", "Mateo",
+		"Chloe", "Hana", "Ravi", "Yuki", "Omar", "Ines", "Lena", "Tariq", "Priya", "Diego", "Zoe" };
+	private static final String[] LAST = { "Enderle", "Scarlett", "Ruoff", "Nguyen", "Garcia", "Smith", "Khan",
+		"Kim", "Muller", "Rossi", "Silva", "Okafor", "Tanaka", "Novak", "Cohen", "Hughes", "Patel", "Lopez",
+		"Brown", "Ivanova", "Dubois", "Larsen", "Moreau", "Sato", "Hernandez", "Walsh", "Berg", "Ali" };
+	private static final String[] NATIONS = { "Australia", "Morocco", "India", "United States", "Mexico", "Brazil",
+		"Germany", "France", "Japan", "China", "Nigeria", "Canada", "Spain", "Italy", "Kenya", "Norway" };
+	private static final String[][] PLANES = {
+		{ "Airbus", "AirbusA300" }, { "Airbus", "AirbusA310" }, { "Airbus", "AirbusA320" }, { "Airbus", "AirbusA380" },
+		{ "Boeing", "Boeing737" }, { "Boeing", "Boeing747" }, { "Boeing", "Boeing777" }, { "Boeing", "Boeing787" },
+		{ "Bombadier", "BombardierCRJ900" }, { "Embraer", "EmbraerE190" }, { "ATR", "ATR72" } };
+	private static final String[] STREETS = { "Chapel Drive", "Bald Hill Street", "Campfire Ave.", "Oak Lane",
+		"Main Street", "Sunset Blvd.", "Elm Court", "Lake Road", "Hillcrest Way", "Pine Street" };
+	private static final String[] CITIES = { "Melbourne", "Baton Rouge", "Cockeysville", "Riverside", "Austin",
+		"Denver", "Portland", "Albany", "Tucson", "Raleigh", "Madison", "Boise" };
+
+	private final File _dir;
+	private final int _threads;
+	private final long _reservations;
+	private final int _customers, _flights, _planes, _pilots, _technicians, _repairs;
+	// normalizer of the Zipf weights of the flights
+	private final double _harmonic;
+
+	/**
+	 * @param dir the directory the CSV files are written to
+	 * @param reservations the approximate number of reservations
+	 * @param threads the number of partitions written in parallel
+	 */
+	public DataGenerator(File dir, long reservations, int threads) {
+		this._dir = dir;
+		this._threads = Math.max(1, threads);
+		this._reservations = reservations;
+		this._flights = size("gen.flights", reservations / 5);
+		this._customers = size("gen.customers", reservations / 40);
+		this._planes = size("gen.planes", this._flights / 30);
+		this._pilots = size("gen.pilots", this._flights / 8);
+		this._technicians = size("gen.technicians", this._planes * 4L);
+		this._repairs = size("gen.repairs", this._planes * 8L);
+		double h = 0;
+		for (int r = 0; r < this._flights; ++r)
+			h += 1.0 / Math.pow(r + 1, ZIPF);
+		this._harmonic = h;
+	}
+
+	private static int size(String property, long derived) {
+		long n = Long.getLong(property, derived);
+		if (n > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(property + " is too large: " + n);
+		return (int) Math.max(1, n);
+	}
+
+	/**
+	 * The main execution method
+	 *
+	 * @param args &lt;output dir&gt; &lt;reservations&gt; [threads]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: java [-classpath <classpath>] " + DataGenerator.class.getName()
+				+ " <output dir> <reservations> [threads]");
+			return;
+		}
+		File dir = new File(args[0]);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create " + dir);
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		new DataGenerator(dir, Long.parseLong(args[1]), threads).generate();
+	}
+
+	/**
+	 * Method to write all nine CSV files.
+	 *
+	 * @throws java.io.IOException when a file could not be written
+	 */
+	public void generate() throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(this._threads);
+		try {
+			long rows = 0;
+			rows += write(pool, "customer.csv", this._customers, this::customer);
+			rows += write(pool, "pilots.csv", this._pilots, this::pilot);
+			rows += write(pool, "planes.csv", this._planes, this::plane);
+			rows += write(pool, "technician.csv", this._technicians, this::technician);
+			rows += write(pool, "flights.csv", this._flights, this::flight);
+			rows += write(pool, "flightinfo.csv", this._flights, this::flightInfo);
+			rows += write(pool, "schedule.csv", this._flights, this::schedule);
+			rows += write(pool, "repairs.csv", this._repairs, this::repair);
+			rows += writeReservations(pool);
+			double secs = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format(Locale.ROOT, "Generated %d rows in %.2f s (%.0f rows/sec) into %s",
+				rows, secs, rows / secs, this._dir));
+		}finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Writes the rows of one table.
+	 */
+	interface CsvRowSink {
+		void row(int id, StringBuilder sb);
+	}
+
+	/**
+	 * Writes the rows generated for units [from, to) of a table, returning
+	 * the number of rows written.
+	 */
+	interface RangeWriter {
+		long write(int from, int to, long firstRow, Line out) throws IOException;
+	}
+
+	private long write(ExecutorService pool, String file, int rows, CsvRowSink rw) throws IOException, InterruptedException {
+		return writeRanges(pool, file, rows, null, (from, to, firstRow, out) -> {
+			for (int id = from; id < to; ++id) {
+				rw.row(id, out.sb);
+				out.end();
+			}
+			return to - from;
+		});
+	}
+
+	/*
+	 * Reservations are written flight by flight, so that each flight's
+	 * seated reservations match its num_sold.  The rnums of a range start
+	 * after the reservations of all earlier ranges.
+	 */
+	private long writeReservations(ExecutorService pool) throws IOException, InterruptedException {
+		return writeRanges(pool, "reservation.csv", this._flights, this::reservationCount, (from, to, rnum, out) -> {
+			long first = rnum;
+			for (int f = from; f < to; ++f) {
+				int n = reservations(f);
+				int seated = Math.min(n, capacity(f));
+				for (int j = 0; j < n; ++j, ++rnum) {
+					StringBuilder sb = out.sb;
+					sb.append(rnum).append(',').append(index(rnum, C_CID, this._customers)).append(',').append(f).append(',');
+					sb.append(j >= seated ? 'W' : unit(rnum, C_STATUS) < 0.3 ? 'C' : 'R');
+					out.end();
+				}
+			}
+			return rnum - first;
+		});
+	}
+
+	private long reservationCount(int from, int to) {
+		long n = 0;
+		for (int f = from; f < to; ++f)
+			n += reservations(f);
+		return n;
+	}
+
+	/**
+	 * Counts the rows of a unit range ahead of writing.
+	 */
+	interface RangeCounter {
+		long count(int from, int to);
+	}
+
+	/*
+	 * Splits [0, units) into one range per thread, writes each range to its
+	 * own part file and concatenates the parts.
+	 */
+	private long writeRanges(ExecutorService pool, String file, int units, RangeCounter counter, RangeWriter rw)
+		throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		int parts = Math.min(this._threads, units);
+		List<Future<Long>> futures = new ArrayList<Future<Long>>(parts);
+		List<File> partFiles = new ArrayList<File>(parts);
+		long firstRow = 0;
+		for (int p = 0; p < parts; ++p) {
+			final int from = (int) ((long) units * p / parts);
+			final int to = (int) ((long) units * (p + 1) / parts);
+			final long rangeFirst = firstRow;
+			final File part = new File(this._dir, file + ".part" + p);
+			partFiles.add(part);
+			futures.add(pool.submit(() -> {
+				Line out = new Line(part);
+				try {
+					return rw.write(from, to, rangeFirst, out);
+				}finally {
+					out.close();
+				}
+			}));
+			firstRow += counter == null ? to - from : counter.count(from, to);
+		}
+		long rows = 0;
+		try {
+			for (Future<Long> f : futures)
+				rows += f.get();
+		}catch (ExecutionException e) {
+			throw new IOException("writing " + file + " failed", e.getCause());
+		}
+		concat(partFiles, new File(this._dir, file));
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format(Locale.ROOT, "%-16s %12d rows in %7.2f s", file, rows, secs));
+		return rows;
+	}
+
+	private static void concat(List<File> parts, File target) throws IOException {
+		FileChannel out = new FileOutputStream(target).getChannel();
+		try {
+			for (File part : parts) {
+				FileChannel in = new FileInputStream(part).getChannel();
+				try {
+					long size = in.size();
+					for (long pos = 0; pos < size; )
+						pos += in.transferTo(pos, size - pos, out);
+				}finally {
+					in.close();
+				}
+				if (!part.delete())
+					throw new IOException("cannot delete " + part);
+			}
+		}finally {
+			out.close();
+		}
+	}
+
+	private void customer(int id, StringBuilder sb) {
+		sb.append(id).append(',').append(pick(FIRST, id, C_NAME)).append(',').append(pick(LAST, id, C_NAME2)).append(',');
+		sb.append(unit(id, C_GENDER) < 0.5 ? 'F' : 'M').append(',');
+		date(sb, LocalDate.of(1940, 1, 1).toEpochDay() + index(id, C_DATE, 60 * 365));
+		sb.append(',').append(1 + index(id, C_STREET, 9999)).append(' ').append(pick(STREETS, id, C_STREET))
+			.append(' ').append(pick(CITIES, id, C_CITY)).append(',');
+		sb.append(2000000000L + index(id, C_PHONE, 799999999) * 10L + 9).append(',');
+		pad(sb, index(id, C_ZIP, 100000), 5);
+	}
+
+	private void pilot(int id, StringBuilder sb) {
+		sb.append(id).append(',').append(pick(FIRST, id, C_NAME)).append(' ').append(pick(LAST, id, C_NAME2))
+			.append(',').append(pick(NATIONS, id, C_NATION));
+	}
+
+	private void plane(int id, StringBuilder sb) {
+		String[] type = PLANES[(int) index(id, C_MAKE, PLANES.length)];
+		sb.append(id).append(',').append(type[0]).append(',').append(type[1]).append(',')
+			.append(index(id, C_AGE, 40)).append(',').append(seats(id));
+	}
+
+	private void technician(int id, StringBuilder sb) {
+		sb.append(id).append(',').append(pick(FIRST, id, C_NAME)).append(' ').append(pick(LAST, id, C_NAME2));
+	}
+
+	private void flight(int f, StringBuilder sb) {
+		int n = reservations(f);
+		sb.append(f).append(',').append(50 + index(f, C_COST, 950)).append(',').append(Math.min(n, capacity(f)))
+			.append(',').append(index(f, C_STOPS, 4)).append(',');
+		departure(sb, f);
+		sb.append(',');
+		arrival(sb, f);
+		sb.append(',');
+		airport(sb, (int) hot(f, C_TO, AIRPORTS));
+		sb.append(',');
+		airport(sb, (int) hot(f, C_FROM, AIRPORTS));
+	}
+
+	private void flightInfo(int f, StringBuilder sb) {
+		sb.append(f).append(',').append(f).append(',').append(index(f, C_PILOT, this._pilots)).append(',').append(plane(f));
+	}
+
+	private void schedule(int f, StringBuilder sb) {
+		sb.append(f).append(',').append(f).append(',');
+		departure(sb, f);
+		sb.append(',');
+		arrival(sb, f);
+	}
+
+	private void repair(int id, StringBuilder sb) {
+		// offset the salts so repairs do not mirror the flights of the same id
+		sb.append(id).append(',');
+		date(sb, EPOCH_2014 + index(id, C_REPAIR + C_DATE, 3 * 365));
+		double u = unit(id, C_REPAIR + C_CODE);
+		sb.append(',').append(u < 0.5 ? "SV" : u < 0.85 ? "MN" : "MJ").append(',').append(index(id, C_REPAIR + C_PILOT, this._pilots))
+			.append(',').append(hot(id, C_REPAIR + C_PLANE, this._planes)).append(',').append(index(id, C_REPAIR + C_TECH, this._technicians));
+	}
+
+	/*
+	 * Reservations of a flight: an even share of the unskewed demand plus
+	 * the flight's Zipf share of the skewed demand.
+	 */
+	private int reservations(int f) {
+		double even = this._reservations * (1 - SKEW) / this._flights;
+		double hot = this._reservations * SKEW / Math.pow(rank(f, this._flights) + 1, ZIPF) / this._harmonic;
+		// round the fractional part up for a hash-chosen share of flights
+		double n = even + hot;
+		return (int) n + (unit(f, C_RANK) < n - Math.floor(n) ? 1 : 0);
+	}
+
+	private long plane(int f) {
+		return hot(f, C_PLANE, this._planes);
+	}
+
+	private int capacity(int f) {
+		return seats(plane(f));
+	}
+
+	private static int seats(long plane) {
+		return 50 + (int) index(plane, C_SEATS, 450);
+	}
+
+	private void departure(StringBuilder sb, int f) {
+		date(sb, EPOCH_2014 + index(f, C_DATE, 3 * 365));
+		sb.append(' ');
+		time(sb, (int) index(f, C_TIME, 24 * 60));
+	}
+
+	private void arrival(StringBuilder sb, int f) {
+		int minutes = (int) index(f, C_TIME, 24 * 60) + 60 + (int) index(f, C_LENGTH, 15 * 60);
+		date(sb, EPOCH_2014 + index(f, C_DATE, 3 * 365) + minutes / (24 * 60));
+		sb.append(' ');
+		time(sb, minutes % (24 * 60));
+	}
+
+	private static void airport(StringBuilder sb, int i) {
+		long h = mix(i * 0x9E3779B97F4A7C15L);
+		for (int k = 0; k < 5; ++k, h >>>= 5)
+			sb.append((char) ('A' + (int) ((h & 31) % 26)));
+	}
+
+	private static void date(StringBuilder sb, long epochDay) {
+		LocalDate d = LocalDate.ofEpochDay(epochDay);
+		sb.append(d.getYear()).append('-');
+		pad(sb, d.getMonthValue(), 2);
+		sb.append('-');
+		pad(sb, d.getDayOfMonth(), 2);
+	}
+
+	private static void time(StringBuilder sb, int minuteOfDay) {
+		pad(sb, minuteOfDay / 60, 2);
+		sb.append(':');
+		pad(sb, minuteOfDay % 60, 2);
+	}
+
+	private static void pad(StringBuilder sb, long value, int width) {
+		String s = Long.toString(value);
+		for (int i = s.length(); i < width; ++i)
+			sb.append('0');
+		sb.append(s);
+	}
+
+	private static String pick(String[] values, long row, int column) {
+		return values[(int) index(row, column, values.length)];
+	}
+
+	/*
+	 * A Zipf-distributed key in [0, n): low ranks are hot, and ranks are
+	 * scattered over the keys so the hot rows are not all adjacent.
+	 */
+	private static long hot(long row, int column, int n) {
+		double u = unit(row, column);
+		double r = Math.abs(ZIPF - 1) < 1e-9 ? Math.pow(n + 1, u)
+			: Math.pow((Math.pow(n + 1, 1 - ZIPF) - 1) * u + 1, 1 / (1 - ZIPF));
+		long rank = Math.min(n - 1, Math.max(0, (long) r - 1));
+		return scatter(rank, n);
+	}
+
+	/*
+	 * Rank of flight f in the demand ordering, the inverse of scatter.
+	 */
+	private static long rank(int f, int n) {
+		return (long) f * inverse(stride(n), n) % n;
+	}
+
+	private static long scatter(long rank, int n) {
+		return rank * stride(n) % n;
+	}
+
+	// a stride coprime with n makes rank * stride mod n a permutation
+	private static long stride(int n) {
+		long s = 40503;
+		while (gcd(s, n) != 1)
+			++s;
+		return s % n == 0 ? 1 : s % n;
+	}
+
+	private static long inverse(long a, long n) {
+		if (n == 1)
+			return 0;
+		long t = 0, newT = 1, r = n, newR = a;
+		while (newR != 0) {
+			long q = r / newR;
+			long tmp = t - q * newT; t = newT; newT = tmp;
+			tmp = r - q * newR; r = newR; newR = tmp;
+		}
+		return t < 0 ? t + n : t;
+	}
+
+	private static long gcd(long a, long b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	private static long index(long row, int column, long n) {
+		return (long) (unit(row, column) * n);
+	}
+
+	// uniform in [0, 1), a pure function of seed, row and column
+	private static double unit(long row, int column) {
+		return (mix(SEED ^ (row * 0x9E3779B97F4A7C15L) ^ ((long) column << 56)) >>> 11) * 0x1.0p-53;
+	}
+
+	// splitmix64 finalizer
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * A part file written one line at a time from a reused buffer.
+	 */
+	static final class Line {
+		final StringBuilder sb = new StringBuilder(256);
+		private final Writer _out;
+		private char[] _chars = new char[256];
+
+		Line(File file) throws IOException {
+			this._out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 20);
+		}
+
+		void end() throws IOException {
+			this.sb.append('\n');
+			int n = this.sb.length();
+			if (n > this._chars.length)
+				this._chars = new char[n * 2];
+			this.sb.getChars(0, n, this._chars, 0);
+			this._out.write(this._chars, 0, n);
+			this.sb.setLength(0);
+		}
+
+		void close() throws IOException {
+			this._out.close();
+		}
+	}
+}
@@ -0,0 +1,393 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class runs the menu operations in-process, without a database.
+ *
+ * It loads the CSV files of the data directory (the same files BulkLoader
+ * copies into PostgreSQL) into in-memory tables with hash indexes on the
+ * primary keys and on the foreign keys the menus follow: FlightInfo.flight_id
+ * and Repairs.plane_id.  Repair counts per year and reservation counts per
+ * status are kept up to date as rows are added, so every menu operation is
+ * a few hash probes.  No menu looks up a reservation, so reservations are
+ * only counted, not stored.
+ *
+ * Foreign keys and the CHECK domains of sql/create.sql are enforced, and
+ * violations are reported as SQLExceptions with the SQLState PostgreSQL
+ * would use.  Changes live only as long as the process; nothing is written
+ * back to the CSV files.  Reads share a lock, writes take it exclusively.
+ *
+ */
+public class EmbeddedBackend implements AirlineBackend {
+	private static final String FK_VIOLATION = "23503";
+	private static final String CHECK_VIOLATION = "23514";
+	private static final String INVALID_DATE = "22007";
+
+	private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+
+	// primary key indexes
+	private final Map<Integer, Plane> _planes = new HashMap<Integer, Plane>();
+	private final Map<Integer, String> _pilots = new HashMap<Integer, String>();
+	private final Map<Integer, String> _technicians = new HashMap<Integer, String>();
+	private final Map<Integer, String> _customers = new HashMap<Integer, String>();
+	private final Map<Integer, Flight> _flights = new HashMap<Integer, Flight>();
+
+	// foreign key indexes
+	private final Map<Integer, List<FlightInfo>> _flightInfoByFlight = new HashMap<Integer, List<FlightInfo>>();
+	private final Map<Integer, List<Repair>> _repairsByPlane = new HashMap<Integer, List<Repair>>();
+
+	// maintained aggregates
+	private final TreeMap<Integer, Integer> _repairsPerYear = new TreeMap<Integer, Integer>();
+	private final Map<String, Integer> _statusCounts = new HashMap<String, Integer>();
+	private int _reservationCount = 0;
+
+	// next free key of every table, max + 1 after loading
+	private int _nextPlane, _nextPilot, _nextTechnician, _nextFlight, _nextFlightInfo, _nextReservation;
+
+	/**
+	 * Method to load every table from the CSV files of a data directory.
+	 *
+	 * @param dataDir the directory holding planes.csv, flights.csv, ...
+	 * @throws java.io.IOException when a file could not be read or parsed
+	 */
+	public EmbeddedBackend(File dataDir) throws IOException {
+		long start = System.nanoTime();
+		for (String[] f : read(dataDir, "planes.csv", 5)) {
+			Plane p = new Plane(toInt(f[0]), f[1], f[2], toInt(f[3]), toInt(f[4]));
+			this._planes.put(p.id, p);
+			this._nextPlane = Math.max(this._nextPlane, p.id + 1);
+		}
+		for (String[] f : read(dataDir, "pilots.csv", 3)) {
+			int id = toInt(f[0]);
+			this._pilots.put(id, f[1]);
+			this._nextPilot = Math.max(this._nextPilot, id + 1);
+		}
+		for (String[] f : read(dataDir, "technician.csv", 2)) {
+			int id = toInt(f[0]);
+			this._technicians.put(id, f[1]);
+			this._nextTechnician = Math.max(this._nextTechnician, id + 1);
+		}
+		for (String[] f : read(dataDir, "customer.csv", 8))
+			this._customers.put(toInt(f[0]), f[1] + " " + f[2]);
+		for (String[] f : read(dataDir, "flights.csv", 8)) {
+			Flight fl = new Flight(toInt(f[0]), toInt(f[1]), toInt(f[2]), toInt(f[3]),
+				f[4].substring(0, 10), f[5].substring(0, 10), f[6], f[7]);
+			this._flights.put(fl.fnum, fl);
+			this._nextFlight = Math.max(this._nextFlight, fl.fnum + 1);
+		}
+		for (String[] f : read(dataDir, "reservation.csv", 4)) {
+			int rnum = toInt(f[0]);
+			addReservation(f[3]);
+			this._nextReservation = Math.max(this._nextReservation, rnum + 1);
+		}
+		for (String[] f : read(dataDir, "flightinfo.csv", 4)) {
+			FlightInfo fi = new FlightInfo(toInt(f[0]), toInt(f[1]), toInt(f[2]), toInt(f[3]));
+			index(this._flightInfoByFlight, fi.flightId, fi);
+			this._nextFlightInfo = Math.max(this._nextFlightInfo, fi.fiid + 1);
+		}
+		for (String[] f : read(dataDir, "repairs.csv", 6)) {
+			Repair r = new Repair(toInt(f[0]), Integer.parseInt(f[1].substring(0, 4)), toInt(f[4]));
+			index(this._repairsByPlane, r.planeId, r);
+			this._repairsPerYear.merge(r.year, 1, Integer::sum);
+		}
+		System.out.println(String.format("Loaded %d flights, %d reservations from %s in %d ms",
+			this._flights.size(), this._reservationCount, dataDir, (System.nanoTime() - start) / 1000000));
+	}
+
+	@Override
+	public int addPlane(String make, String model, int age, int seats) throws SQLException {
+		check(age >= 0, "age must not be negative");
+		check(seats > 0 && seats < 500, "seats must be between 1 and 499");
+		this._lock.writeLock().lock();
+		try {
+			Plane p = new Plane(this._nextPlane++, make, model, age, seats);
+			this._planes.put(p.id, p);
+			return p.id;
+		}finally {
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int addPilot(String fullName, String nationality) throws SQLException {
+		this._lock.writeLock().lock();
+		try {
+			int id = this._nextPilot++;
+			this._pilots.put(id, fullName);
+			return id;
+		}finally {
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int addTechnician(String fullName) throws SQLException {
+		this._lock.writeLock().lock();
+		try {
+			int id = this._nextTechnician++;
+			this._technicians.put(id, fullName);
+			return id;
+		}finally {
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int addFlight(int cost, int numSold, int numStops, String departureDate, String arrivalDate,
+		String arrivalAirport, String departureAirport, int pilotId, int planeId) throws SQLException {
+		check(cost > 0, "cost must be positive");
+		check(numSold >= 0, "num_sold must not be negative");
+		check(numStops >= 0, "num_stops must not be negative");
+		departureDate = toDate(departureDate);
+		arrivalDate = toDate(arrivalDate);
+		this._lock.writeLock().lock();
+		try {
+			if (!this._pilots.containsKey(pilotId))
+				throw new SQLException("Pilot " + pilotId + " does not exist", FK_VIOLATION);
+			if (!this._planes.containsKey(planeId))
+				throw new SQLException("Plane " + planeId + " does not exist", FK_VIOLATION);
+			Flight fl = new Flight(this._nextFlight++, cost, numSold, numStops, departureDate, arrivalDate,
+				arrivalAirport, departureAirport);
+			this._flights.put(fl.fnum, fl);
+			index(this._flightInfoByFlight, fl.fnum, new FlightInfo(this._nextFlightInfo++, fl.fnum, pilotId, planeId));
+			return fl.fnum;
+		}finally {
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public BookingEngine.Booking bookFlight(int cid, int fnum) throws SQLException {
+		this._lock.writeLock().lock();
+		try {
+			if (!this._customers.containsKey(cid))
+				throw new SQLException("Customer " + cid + " does not exist", FK_VIOLATION);
+			Flight fl = this._flights.get(fnum);
+			if (fl == null)
+				throw new SQLException("Flight " + fnum + " does not exist", FK_VIOLATION);
+			// same rule as BookingEngine: a seat while num_sold is below capacity
+			boolean seat = fl.numSold < capacity(fnum);
+			if (seat)
+				++fl.numSold;
+			String status = seat ? "R" : "W";
+			addReservation(status);
+			return new BookingEngine.Booking(this._nextReservation++, fnum, status, seat ? fl.numSold : -1);
+		}finally {
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public SeatAvailabilityService.FlightSeats availableSeats(int fnum) throws SQLException {
+		this._lock.readLock().lock();
+		try {
+			Flight fl = this._flights.get(fnum);
+			if (fl == null)
+				return null;
+			return new SeatAvailabilityService.FlightSeats(fnum, fl.departureDate, capacity(fnum), fl.numSold);
+		}finally {
+			this._lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<List<String>> repairsPerPlane() throws SQLException {
+		List<int[]> counts = new ArrayList<int[]>();
+		this._lock.readLock().lock();
+		try {
+			for (Map.Entry<Integer, List<Repair>> e : this._repairsByPlane.entrySet())
+				counts.add(new int[] { e.getKey(), e.getValue().size() });
+		}finally {
+			this._lock.readLock().unlock();
+		}
+		// ORDER BY repair_count DESC, plane_id
+		Collections.sort(counts, (a, b) -> a[1] != b[1] ? Integer.compare(b[1], a[1]) : Integer.compare(a[0], b[0]));
+		List<List<String>> result = new ArrayList<List<String>>(counts.size());
+		for (int[] c : counts)
+			result.add(record(c[0], c[1]));
+		return result;
+	}
+
+	@Override
+	public List<List<String>> repairsPerYear() throws SQLException {
+		this._lock.readLock().lock();
+		try {
+			List<List<String>> result = new ArrayList<List<String>>(this._repairsPerYear.size());
+			for (Map.Entry<Integer, Integer> e : this._repairsPerYear.entrySet())
+				result.add(record(e.getKey(), e.getValue()));
+			return result;
+		}finally {
+			this._lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int passengersWithStatus(String status) throws SQLException {
+		this._lock.readLock().lock();
+		try {
+			Integer n = this._statusCounts.get(status);
+			return n == null ? 0 : n;
+		}finally {
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Seats of the plane assigned to a flight, the largest if several are.
+	 */
+	private int capacity(int fnum) {
+		int seats = 0;
+		List<FlightInfo> infos = this._flightInfoByFlight.get(fnum);
+		if (infos != null)
+			for (FlightInfo fi : infos) {
+				Plane p = this._planes.get(fi.planeId);
+				if (p != null)
+					seats = Math.max(seats, p.seats);
+			}
+		return seats;
+	}
+
+	private void addReservation(String status) {
+		++this._reservationCount;
+		this._statusCounts.merge(status, 1, Integer::sum);
+	}
+
+	private static <T> void index(Map<Integer, List<T>> index, int key, T row) {
+		List<T> rows = index.get(key);
+		if (rows == null) {
+			rows = new ArrayList<T>(2);
+			index.put(key, rows);
+		}
+		rows.add(row);
+	}
+
+	private static List<String> record(int a, int b) {
+		List<String> record = new ArrayList<String>(2);
+		record.add(Integer.toString(a));
+		record.add(Integer.toString(b));
+		return record;
+	}
+
+	private static void check(boolean condition, String message) throws SQLException {
+		if (!condition)
+			throw new SQLException(message, CHECK_VIOLATION);
+	}
+
+	private static String toDate(String date) throws SQLException {
+		try {
+			return java.sql.Date.valueOf(date.trim()).toString();
+		}catch (IllegalArgumentException e) {
+			throw new SQLException("invalid date '" + date + "'", INVALID_DATE);
+		}
+	}
+
+	private static int toInt(String s) throws IOException {
+		try {
+			return Integer.parseInt(s);
+		}catch (NumberFormatException e) {
+			throw new IOException("not a number: '" + s + "'");
+		}
+	}
+
+	/*
+	 * Reads the comma separated rows of one file, trimming every field.
+	 */
+	private static List<String[]> read(File dataDir, String name, int fields) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		BufferedReader r = new BufferedReader(new FileReader(new File(dataDir, name)));
+		try {
+			String line;
+			int lineNo = 0;
+			while ((line = r.readLine()) != null) {
+				++lineNo;
+				if (line.trim().isEmpty())
+					continue;
+				String[] f = line.split(",", -1);
+				if (f.length != fields)
+					throw new IOException(name + ":" + lineNo + ": expected " + fields + " fields, got " + f.length);
+				for (int i = 0; i < f.length; ++i)
+					f[i] = f[i].trim();
+				rows.add(f);
+			}
+		}finally {
+			r.close();
+		}
+		return rows;
+	}
+
+	private static final class Plane {
+		final int id;
+		final String make;
+		final String model;
+		final int age;
+		final int seats;
+
+		Plane(int id, String make, String model, int age, int seats) {
+			this.id = id;
+			this.make = make;
+			this.model = model;
+			this.age = age;
+			this.seats = seats;
+		}
+	}
+
+	private static final class Flight {
+		final int fnum;
+		final int cost;
+		int numSold;
+		final int numStops;
+		final String departureDate;
+		final String arrivalDate;
+		final String arrivalAirport;
+		final String departureAirport;
+
+		Flight(int fnum, int cost, int numSold, int numStops, String departureDate, String arrivalDate,
+			String arrivalAirport, String departureAirport) {
+			this.fnum = fnum;
+			this.cost = cost;
+			this.numSold = numSold;
+			this.numStops = numStops;
+			this.departureDate = departureDate;
+			this.arrivalDate = arrivalDate;
+			this.arrivalAirport = arrivalAirport;
+			this.departureAirport = departureAirport;
+		}
+	}
+
+	private static final class FlightInfo {
+		final int fiid;
+		final int flightId;
+		final int pilotId;
+		final int planeId;
+
+		FlightInfo(int fiid, int flightId, int pilotId, int planeId) {
+			this.fiid = fiid;
+			this.flightId = flightId;
+			this.pilotId = pilotId;
+			this.planeId = planeId;
+		}
+	}
+
+	private static final class Repair {
+		final int rid;
+		final int year;
+		final int planeId;
+
+		Repair(int rid, int year, int planeId) {
+			this.rid = rid;
+			this.year = year;
+			this.planeId = planeId;
+		}
+	}
+}
@@ -0,0 +1,240 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class commits the single-statement writes of concurrent callers in
+ * shared transactions, so that many bookings and inserts pay for one WAL
+ * flush instead of one each.
+ *
+ * Callers enqueue a statement and wait on its future.  One committer thread
+ * takes the first waiting statement, collects more until it has
+ * <code>maxOps</code> or <code>maxDelayMillis</code> have passed since the
+ * first was enqueued, runs them in order in one transaction and commits.
+ * Every future completes only after that commit returned, i.e. once the
+ * group is durable.  Statements that arrive while a group commits form the
+ * next group, so the groups grow with the load.
+ *
+ * A statement that fails does not fail its group: the transaction is rolled
+ * back, the failing statement completes with its error, and the others run
+ * again without it.  Serialization failures and deadlocks retry the whole
+ * group.  If the commit itself fails, the outcome is unknown and every
+ * statement of the group completes with the error.
+ *
+ */
+public class GroupCommitter implements AutoCloseable {
+	private static final int MAX_ATTEMPTS = 5;
+
+	private final ConnectionPool _pool;
+	private final int _maxOps;
+	private final long _maxDelayNanos;
+	private final LinkedBlockingQueue<Op> _queue = new LinkedBlockingQueue<Op>();
+	private final Thread _committer;
+	private volatile boolean _closed = false;
+
+	/**
+	 * @param pool the pool the committer borrows its connection from
+	 * @param maxOps most statements committed together
+	 * @param maxDelayMillis longest a statement waits for others to join its group
+	 */
+	public GroupCommitter(ConnectionPool pool, int maxOps, long maxDelayMillis) {
+		this._pool = pool;
+		this._maxOps = maxOps;
+		this._maxDelayNanos = maxDelayMillis * 1000000L;
+		this._committer = new Thread(this::run, "group-committer");
+		this._committer.setDaemon(true);
+		this._committer.start();
+	}
+
+	/**
+	 * Method to enqueue an INSERT, UPDATE or DELETE.
+	 *
+	 * @param sql the statement with <code>?</code> placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return completes with the number of rows affected once committed
+	 */
+	public CompletableFuture<Integer> update(String sql, Object... params) {
+		Op op = new Op(sql, params, false);
+		enqueue(op);
+		return op.future.thenApply(row -> op.count);
+	}
+
+	/**
+	 * Method to enqueue a data-modifying statement that returns a row, such
+	 * as an INSERT ... RETURNING.
+	 *
+	 * @param sql the statement with <code>?</code> placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return completes with the first row returned, or null, once committed
+	 */
+	public CompletableFuture<String[]> query(String sql, Object... params) {
+		Op op = new Op(sql, params, true);
+		enqueue(op);
+		return op.future;
+	}
+
+	/**
+	 * Method to wait for an enqueued statement.
+	 *
+	 * @param future the future returned by update or query
+	 * @return its result
+	 * @throws java.sql.SQLException when the statement or its commit failed
+	 */
+	public static <T> T await(CompletableFuture<T> future) throws SQLException {
+		try {
+			return future.get();
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the group commit", e);
+		}catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			throw new SQLException("Group commit failed: " + cause, cause);
+		}
+	}
+
+	private synchronized void enqueue(Op op) {
+		if (this._closed)
+			op.future.completeExceptionally(new SQLException("The group committer is closed"));
+		else
+			this._queue.add(op);
+	}
+
+	private void run() {
+		List<Op> group = new ArrayList<Op>(this._maxOps);
+		// after close, keep going until everything enqueued before it is committed
+		while (!this._closed || !this._queue.isEmpty()) {
+			try {
+				Op first = this._queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				group.add(first);
+				this._queue.drainTo(group, this._maxOps - group.size());
+				while (group.size() < this._maxOps) {
+					long wait = first.enqueued + this._maxDelayNanos - System.nanoTime();
+					Op next = wait > 0 ? this._queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+					if (next == null)
+						break;
+					group.add(next);
+					this._queue.drainTo(group, this._maxOps - group.size());
+				}
+			}catch (InterruptedException e) {
+				// nothing interrupts the committer; commit what was collected
+			}
+			commit(group);
+			group.clear();
+		}
+	}
+
+	/*
+	 * Runs a group in one transaction, dropping failed statements until the
+	 * rest commits.
+	 */
+	private void commit(List<Op> group) {
+		List<Op> pending = new ArrayList<Op>(group);
+		int attempt = 1;
+		while (!pending.isEmpty()) {
+			PooledConnection pc = null;
+			try {
+				pc = this._pool.borrow();
+				Connection c = pc.connection();
+				c.setAutoCommit(false);
+				Op failed = null;
+				SQLException error = null;
+				for (Op op : pending) {
+					try {
+						op.run(pc);
+					}catch (SQLException e) {
+						failed = op;
+						error = e;
+						break;
+					}
+				}
+				if (failed != null) {
+					c.rollback();
+					if (BookingEngine.isRetryable(error) && attempt++ < MAX_ATTEMPTS)
+						continue;
+					pending.remove(failed);
+					failed.future.completeExceptionally(error);
+					Metrics.groupCommitFailure();
+					continue;
+				}
+				c.commit();
+				Metrics.groupCommit(pending.size());
+				for (Op op : pending)
+					op.future.complete(op.row);
+				return;
+			}catch (SQLException e) {
+				// no connection, or the connection broke; nothing is known to be committed
+				for (Op op : pending)
+					op.future.completeExceptionally(e);
+				return;
+			}finally {
+				this._pool.release(pc);
+			}
+		}
+	}
+
+	/**
+	 * Method to commit what is enqueued and stop the committer.  Statements
+	 * enqueued afterwards fail at once.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			this._closed = true;
+		}
+		try {
+			this._committer.join(5000);
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * One enqueued statement.
+	 */
+	private static final class Op {
+		final String sql;
+		final Object[] params;
+		final boolean returnsRow;
+		final long enqueued = System.nanoTime();
+		final CompletableFuture<String[]> future = new CompletableFuture<String[]>();
+		// results of the last run, published by completing the future
+		int count;
+		String[] row;
+
+		Op(String sql, Object[] params, boolean returnsRow) {
+			this.sql = sql;
+			this.params = params;
+			this.returnsRow = returnsRow;
+		}
+
+		void run(PooledConnection pc) throws SQLException {
+			PreparedStatement ps = pc.prepare(this.sql);
+			DBproject.bind(ps, this.params);
+			if (!this.returnsRow) {
+				Metrics.statement();
+				this.count = ps.executeUpdate();
+				return;
+			}
+			Metrics.statement();
+			ResultSet rs = ps.executeQuery();
+			this.row = null;
+			if (rs.next()) {
+				this.row = new String[rs.getMetaData().getColumnCount()];
+				for (int i = 0; i < this.row.length; ++i)
+					this.row[i] = rs.getString(i + 1);
+			}
+			rs.close();
+		}
+	}
+}
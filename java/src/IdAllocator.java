@@ -0,0 +1,135 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hands out primary keys from PostgreSQL sequences using hi/lo
+ * block reservation.  Each sequence is created with <code>INCREMENT BY n</code>
+ * (see sql/create.sql), so one <code>nextval</code> reserves the block
+ * <code>[v, v + n)</code> for this client alone.  Ids inside the block are
+ * handed out locally with an atomic counter; the database is only contacted
+ * again once the block runs out.
+ *
+ * Ids are unique across clients but not gap-free: the unused part of a block
+ * is lost when the program exits.
+ *
+ */
+public class IdAllocator {
+	public static final String PLANE = "plane_id_seq";
+	public static final String PILOT = "pilot_id_seq";
+	public static final String TECHNICIAN = "technician_id_seq";
+	public static final String FLIGHT = "flight_fnum_seq";
+	public static final String FLIGHT_INFO = "flightinfo_fiid_seq";
+	public static final String RESERVATION = "reservation_rnum_seq";
+
+	private static final Block EMPTY = new Block(0, 0);
+
+	private final ConnectionPool _pool;
+	private final ConcurrentHashMap<String, Sequence> _sequences = new ConcurrentHashMap<String, Sequence>();
+
+	public IdAllocator(ConnectionPool pool) {
+		this._pool = pool;
+	}
+
+	/**
+	 * Method to return the next id from the given sequence.  Only the call
+	 * that exhausts the current block pays a database round trip.
+	 *
+	 * @param sequence name of the DB sequence
+	 * @return an id no other client will receive
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public long next(String sequence) throws SQLException {
+		Sequence seq = this._sequences.get(sequence);
+		if (seq == null) {
+			this._sequences.putIfAbsent(sequence, new Sequence(sequence));
+			seq = this._sequences.get(sequence);
+		}
+		while (true) {
+			Block block = seq.block;
+			long id = block.next.getAndIncrement();
+			if (id < block.end)
+				return id;
+			synchronized (seq) {
+				// only one thread refills; the others retry on the new block
+				if (seq.block == block)
+					seq.block = reserve(seq);
+			}
+		}
+	}
+
+	/**
+	 * Method to return the next id from the given sequence as an INTEGER key.
+	 *
+	 * @param sequence name of the DB sequence
+	 * @return an id no other client will receive
+	 * @throws java.sql.SQLException when a new block cannot be reserved or the sequence overflowed INTEGER
+	 */
+	public int nextInt(String sequence) throws SQLException {
+		long id = next(sequence);
+		if (id > Integer.MAX_VALUE)
+			throw new SQLException("Sequence " + sequence + " exceeded the INTEGER range: " + id);
+		return (int) id;
+	}
+
+	/*
+	 * Reserves the next block with a single round trip.  The block size is
+	 * the sequence's own increment, read once alongside the first nextval.
+	 */
+	private Block reserve(Sequence seq) throws SQLException {
+		PooledConnection pc = this._pool.borrow();
+		try {
+			long start;
+			if (seq.increment < 0) {
+				PreparedStatement stmt = pc.prepare(
+					"SELECT nextval(?::regclass), (SELECT increment::bigint FROM information_schema.sequences "
+					+ "WHERE sequence_schema = current_schema() AND sequence_name = ?)");
+				stmt.setString(1, seq.name);
+				stmt.setString(2, seq.name);
+				Metrics.statement();
+				ResultSet rs = stmt.executeQuery();
+				rs.next();
+				start = rs.getLong(1);
+				long increment = rs.getLong(2);
+				rs.close();
+				if (increment < 1)
+					throw new SQLException("Sequence " + seq.name + " must have a positive increment");
+				seq.increment = increment;
+			}else {
+				PreparedStatement stmt = pc.prepare("SELECT nextval(?::regclass)");
+				stmt.setString(1, seq.name);
+				Metrics.statement();
+				ResultSet rs = stmt.executeQuery();
+				rs.next();
+				start = rs.getLong(1);
+				rs.close();
+			}
+			return new Block(start, start + seq.increment);
+		}finally {
+			this._pool.release(pc);
+		}
+	}
+
+	private static final class Sequence {
+		final String name;
+		volatile Block block = EMPTY;
+		// guarded by this
+		long increment = -1;
+
+		Sequence(String name) {
+			this.name = name;
+		}
+	}
+
+	private static final class Block {
+		final AtomicLong next;
+		final long end;
+
+		Block(long start, long end) {
+			this.next = new AtomicLong(start);
+			this.end = end;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class answers "does Plane/Pilot/Customer/Technician N exist" from
+ * memory, so the menus can reject a bad reference before sending anything
+ * to the database.
+ *
+ * Every table's ids are kept in a bitmap over the integer id space, one bit
+ * per id (125 KB per million ids).  The Add* paths set the bit of the row
+ * they inserted, and the <code>id_changes</code> notifications sent by the
+ * triggers in sql/create.sql set or clear the bits of rows other writers
+ * inserted or deleted.
+ *
+ * A set bit is answered without a round trip; the foreign keys remain the
+ * final check when the row is written.  A clear bit is not a definite miss:
+ * clients take ids from their own hi/lo blocks and commit them in any order,
+ * so another client may have inserted the row moments ago, before its
+ * notification arrived.  A miss is therefore confirmed with a primary key
+ * probe and recorded if found.  Misses are rare, since menus mostly name
+ * rows that exist.
+ *
+ * Notifications that arrive while a table is reloaded are kept and applied
+ * to the reloaded bitmap, so none is lost when it replaces the old one.
+ *
+ */
+public class IdIndex {
+	/** Channel the id triggers in sql/create.sql notify on. */
+	public static final String CHANNEL = "id_changes";
+
+	public static final String PLANE = "Plane";
+	public static final String PILOT = "Pilot";
+	public static final String CUSTOMER = "Customer";
+	public static final String TECHNICIAN = "Technician";
+
+	private final ConnectionPool _pool;
+	private final ConcurrentHashMap<String, Ids> _tables = new ConcurrentHashMap<String, Ids>();
+
+	public IdIndex(ConnectionPool pool) {
+		this._pool = pool;
+		for (String table : new String[] { PLANE, PILOT, CUSTOMER, TECHNICIAN })
+			this._tables.put(table.toLowerCase(), new Ids(table));
+	}
+
+	/**
+	 * Method to subscribe to id change notifications and load every table.
+	 *
+	 * @param changes the listener delivering the trigger notifications
+	 * @throws java.sql.SQLException when the ids could not be loaded
+	 */
+	public void start(ChangeListener changes) throws SQLException {
+		// subscribe first so that no insert slips in between load and LISTEN
+		changes.subscribe(CHANNEL, this::onChange);
+		for (Ids ids : this._tables.values())
+			reload(ids);
+	}
+
+	/**
+	 * Method to test whether a row with the given id exists.
+	 *
+	 * @param table one of PLANE, PILOT, CUSTOMER or TECHNICIAN
+	 * @param id the primary key
+	 * @return false if there is no such row
+	 * @throws java.sql.SQLException when confirming an id missing from the index failed
+	 */
+	public boolean contains(String table, int id) throws SQLException {
+		Ids ids = ids(table);
+		if (id < 0)
+			return false;
+		ids.lock.readLock().lock();
+		try {
+			if (ids.bits.get(id))
+				return true;
+		}finally {
+			ids.lock.readLock().unlock();
+		}
+		if (!probe(ids, id))
+			return false;
+		ids.set(id);
+		return true;
+	}
+
+	/**
+	 * Method to record a row this client has inserted.
+	 *
+	 * @param table one of PLANE, PILOT, CUSTOMER or TECHNICIAN
+	 * @param id the primary key of the new row
+	 */
+	public void add(String table, int id) {
+		ids(table).set(id);
+	}
+
+	/**
+	 * @param table one of PLANE, PILOT, CUSTOMER or TECHNICIAN
+	 * @return number of ids known for the table
+	 */
+	public int size(String table) {
+		Ids ids = ids(table);
+		ids.lock.readLock().lock();
+		try {
+			return ids.bits.cardinality();
+		}finally {
+			ids.lock.readLock().unlock();
+		}
+	}
+
+	private Ids ids(String table) {
+		Ids ids = this._tables.get(table.toLowerCase());
+		if (ids == null)
+			throw new IllegalArgumentException("No id index for table " + table);
+		return ids;
+	}
+
+	/*
+	 * Notification handler: the payload is "table:+id" for an insert,
+	 * "table:-id" for a delete, "table:*" after a truncate, or null when
+	 * notifications may have been lost.
+	 */
+	private void onChange(String payload) {
+		try {
+			if (payload == null) {
+				for (Ids ids : this._tables.values())
+					reload(ids);
+				return;
+			}
+			int colon = payload.indexOf(':');
+			Ids ids = this._tables.get(payload.substring(0, colon));
+			if (ids == null)
+				return;
+			char op = payload.charAt(colon + 1);
+			if (op == '*')
+				reload(ids);
+			else if (op == '-')
+				ids.clear(Integer.parseInt(payload.substring(colon + 2)));
+			else
+				ids.set(Integer.parseInt(payload.substring(colon + 2)));
+		}catch (SQLException | RuntimeException e) {
+			System.err.println("Id index refresh failed (" + payload + "): " + e.getMessage());
+		}
+	}
+
+	private void reload(Ids ids) throws SQLException {
+		// one reload per table at a time, so its change log is its own
+		synchronized (ids) {
+			ids.lock.writeLock().lock();
+			try {
+				ids.changes = new ArrayList<Integer>();
+			}finally {
+				ids.lock.writeLock().unlock();
+			}
+			BitSet bits = new BitSet();
+			boolean loaded = false;
+			try {
+				RowCursor cursor = new RowCursor(this._pool, "SELECT id FROM " + ids.table, new Object[0], true, 10000);
+				try {
+					while (cursor.next()) {
+						int id = Integer.parseInt(cursor.row()[0]);
+						if (id >= 0)
+							bits.set(id);
+					}
+				}finally {
+					cursor.close();
+				}
+				loaded = true;
+			}finally {
+				ids.lock.writeLock().lock();
+				try {
+					if (loaded) {
+						// replay what changed while the cursor ran, in order
+						for (int change : ids.changes)
+							bits.set(Math.abs(change) - 1, change > 0);
+						ids.bits = bits;
+					}
+					ids.changes = null;
+				}finally {
+					ids.lock.writeLock().unlock();
+				}
+			}
+		}
+	}
+
+	private boolean probe(Ids ids, int id) throws SQLException {
+		RowCursor cursor = new RowCursor(this._pool, "SELECT 1 FROM " + ids.table + " WHERE id = ?", new Object[] { id }, true, 1);
+		try {
+			return cursor.next();
+		}finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * The ids of one table.
+	 */
+	private static final class Ids {
+		final String table;
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		// guarded by lock
+		BitSet bits = new BitSet();
+		// while reloading, every change as id + 1 for a set and -(id + 1) for a clear
+		List<Integer> changes = null;
+
+		Ids(String table) {
+			this.table = table;
+		}
+
+		void set(int id) {
+			if (id < 0)
+				return;
+			this.lock.writeLock().lock();
+			try {
+				this.bits.set(id);
+				if (this.changes != null)
+					this.changes.add(id + 1);
+			}finally {
+				this.lock.writeLock().unlock();
+			}
+		}
+
+		void clear(int id) {
+			if (id < 0)
+				return;
+			this.lock.writeLock().lock();
+			try {
+				this.bits.clear(id);
+				if (this.changes != null)
+					this.changes.add(-(id + 1));
+			}finally {
+				this.lock.writeLock().unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,537 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An {@link AirlineBackend} that acknowledges bookings and the Add* writes
+ * once they are in a {@link WriteJournal}, and applies them to the database
+ * from a background thread, so a checkpoint stall or a restart of
+ * PostgreSQL delays the writes instead of losing them.
+ *
+ * Keys still come from the {@link IdAllocator}, so the caller gets the new
+ * id at once; its local blocks cover short outages, after which allocating
+ * fails like any other write.  References to pilots, planes and customers
+ * are checked against the {@link IdIndex}, and the flight of a booking
+ * against the seat index, before the write is journaled.  Ids added through
+ * the journal count as existing right away, so a flight can name a plane
+ * and a booking a flight that is still queued.  A booking is returned with
+ * status 'Q' and gets 'R' or 'W' when it is applied.  Reads, including
+ * seats of queued flights and bookings, see the database as drained so far.
+ *
+ * The drainer applies one record per transaction in journal order.  Every
+ * statement is idempotent on the key in the record, so a record applied
+ * just before a crash, but not yet marked applied in the journal, is a no-op
+ * when it is replayed.  A flight is replayed with the statement and
+ * parameters of {@link DBproject#addFlight}, both built by
+ * DBproject.addFlightParams.  Connection failures, server shutdowns, lock and
+ * serialization errors are retried with backoff from 100 ms up to 5 s.
+ * Any other error, e.g. a reference that no longer exists, moves the record
+ * to a second journal next to the first, <code>&lt;file&gt;.rejected</code>,
+ * with a message on standard error.  The caller was told the write
+ * succeeded, so it is kept there until an operator lists it with
+ * <code>--rejected</code> and, once the cause is fixed, applies it again
+ * with <code>--rejected replay</code>.
+ *
+ */
+public class JournaledBackend implements AirlineBackend, AutoCloseable {
+	private static final byte PLANE = 1;
+	private static final byte PILOT = 2;
+	private static final byte TECHNICIAN = 3;
+	private static final byte FLIGHT = 4;
+	private static final byte BOOKING = 5;
+
+	// name and fields of each record type, for listing rejected writes
+	private static final String[][] FIELDS = {
+		null,
+		{ "plane", "id", "make", "model", "age", "seats" },
+		{ "pilot", "id", "fullname", "nationality" },
+		{ "technician", "id", "full_name" },
+		{ "flight", "fnum", "fiid", "cost", "num_sold", "num_stops", "departure", "arrival", "arrival_airport",
+			"departure_airport", "pilot_id", "plane_id" },
+		{ "booking", "rnum", "cid", "fnum" },
+	};
+	// the field types of each record type: I for int, S for string
+	private static final String[] LAYOUT = { null, "ISSII", "ISS", "IS", "IIIIISSSSII", "III" };
+
+	private static final String REPLAY_PLANE = DBproject.INSERT_PLANE.replace(";", " ON CONFLICT (id) DO NOTHING");
+	private static final String REPLAY_PILOT = DBproject.INSERT_PILOT.replace(";", " ON CONFLICT (id) DO NOTHING");
+	private static final String REPLAY_TECHNICIAN = DBproject.INSERT_TECHNICIAN.replace(";", " ON CONFLICT (id) DO NOTHING");
+	// the FlightInfo row is only inserted together with a new flight
+	static final String REPLAY_FLIGHT = DBproject.ADD_FLIGHT.replace(" RETURNING fnum)",
+		" ON CONFLICT (fnum) DO NOTHING RETURNING fnum)");
+
+	private static final long MIN_BACKOFF = 100;
+	private static final long MAX_BACKOFF = 5000;
+
+	private static final Metrics.Timer DRAIN_TIMER = Metrics.timer(Metrics.SQL, "helper", "journalDrain");
+
+	private final DBproject _home;
+	private final WriteJournal _journal;
+	// records the database refused; a replay holds its lock
+	private final WriteJournal _rejected;
+	private final Path _rejectedFile;
+	// flights journaled but not yet applied, so not in the seat index
+	private final Set<Integer> _queuedFlights = ConcurrentHashMap.newKeySet();
+	private final Thread _drainer;
+	private volatile boolean _closed = false;
+
+	/**
+	 * @param home the database the writes are applied to and the reads run on
+	 * @param file the journal file, created if missing; records left by an earlier run are applied first
+	 * @param capacity size of the journal file in bytes
+	 * @param sync whether every write is forced to disk before it is acknowledged
+	 * @throws java.io.IOException when the journal could not be opened
+	 */
+	public JournaledBackend(DBproject home, Path file, int capacity, boolean sync) throws IOException {
+		this._home = home;
+		this._journal = new WriteJournal(file, capacity, sync);
+		this._rejectedFile = file.resolveSibling(file.getFileName() + ".rejected");
+		try {
+			this._rejected = new WriteJournal(this._rejectedFile, capacity, sync);
+		}catch (IOException e) {
+			this._journal.close();
+			throw e;
+		}
+		if (this._rejected.pending() > 0)
+			System.err.println("Journal: " + this._rejected.pending() + " rejected writes wait in " + this._rejectedFile
+				+ ", see --rejected");
+		long recovered = this._journal.pending();
+		if (recovered > 0)
+			System.out.println("Applying " + recovered + " journaled writes left by the last run");
+		Metrics.journalAppend(recovered);
+		this._drainer = new Thread(this::drain, "journal-drainer");
+		this._drainer.setDaemon(true);
+		this._drainer.start();
+	}
+
+	@Override
+	public int addPlane(String make, String model, int age, int seats) throws SQLException {
+		int id = this._home.ids().nextInt(IdAllocator.PLANE);
+		Record r = new Record(PLANE);
+		r.put(id);
+		r.put(make);
+		r.put(model);
+		r.put(age);
+		r.put(seats);
+		append(r);
+		this._home.added(IdIndex.PLANE, id);
+		return id;
+	}
+
+	@Override
+	public int addPilot(String fullName, String nationality) throws SQLException {
+		int id = this._home.ids().nextInt(IdAllocator.PILOT);
+		Record r = new Record(PILOT);
+		r.put(id);
+		r.put(fullName);
+		r.put(nationality);
+		append(r);
+		this._home.added(IdIndex.PILOT, id);
+		return id;
+	}
+
+	@Override
+	public int addTechnician(String fullName) throws SQLException {
+		int id = this._home.ids().nextInt(IdAllocator.TECHNICIAN);
+		Record r = new Record(TECHNICIAN);
+		r.put(id);
+		r.put(fullName);
+		append(r);
+		this._home.added(IdIndex.TECHNICIAN, id);
+		return id;
+	}
+
+	@Override
+	public int addFlight(int cost, int numSold, int numStops, String departureDate, String arrivalDate,
+		String arrivalAirport, String departureAirport, int pilotId, int planeId) throws SQLException {
+		checkExists(IdIndex.PILOT, pilotId);
+		checkExists(IdIndex.PLANE, planeId);
+		int fnum = this._home.ids().nextInt(IdAllocator.FLIGHT);
+		int fiid = this._home.ids().nextInt(IdAllocator.FLIGHT_INFO);
+		this._queuedFlights.add(fnum);
+		try {
+			append(flightRecord(fnum, fiid, cost, numSold, numStops, departureDate, arrivalDate, arrivalAirport,
+				departureAirport, pilotId, planeId));
+		}catch (SQLException e) {
+			this._queuedFlights.remove(fnum);
+			throw e;
+		}
+		return fnum;
+	}
+
+	/*
+	 * Encodes a flight in the order of addFlight's arguments, keys first.
+	 */
+	private static Record flightRecord(int fnum, int fiid, int cost, int numSold, int numStops, String departureDate,
+		String arrivalDate, String arrivalAirport, String departureAirport, int pilotId, int planeId) throws SQLException {
+		Record r = new Record(FLIGHT);
+		r.put(fnum);
+		r.put(fiid);
+		r.put(cost);
+		r.put(numSold);
+		r.put(numStops);
+		r.put(departureDate);
+		r.put(arrivalDate);
+		r.put(arrivalAirport);
+		r.put(departureAirport);
+		r.put(pilotId);
+		r.put(planeId);
+		return r;
+	}
+
+	/*
+	 * Decodes a flight record into the parameters of REPLAY_FLIGHT.
+	 */
+	private static Object[] flightParams(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		int fnum = in.readInt();
+		int fiid = in.readInt();
+		int cost = in.readInt();
+		int numSold = in.readInt();
+		int numStops = in.readInt();
+		String departureDate = string(in);
+		String arrivalDate = string(in);
+		String arrivalAirport = string(in);
+		String departureAirport = string(in);
+		int pilotId = in.readInt();
+		int planeId = in.readInt();
+		return DBproject.addFlightParams(fnum, fiid, cost, numSold, numStops, departureDate, arrivalDate, arrivalAirport,
+			departureAirport, pilotId, planeId);
+	}
+
+	@Override
+	public BookingEngine.Booking bookFlight(int cid, int fnum) throws SQLException {
+		checkExists(IdIndex.CUSTOMER, cid);
+		checkFlight(fnum);
+		int rnum = this._home.ids().nextInt(IdAllocator.RESERVATION);
+		Record r = new Record(BOOKING);
+		r.put(rnum);
+		r.put(cid);
+		r.put(fnum);
+		append(r);
+		return new BookingEngine.Booking(rnum, fnum, "Q", -1);
+	}
+
+	@Override
+	public SeatAvailabilityService.FlightSeats availableSeats(int fnum) throws SQLException {
+		return this._home.availableSeats(fnum);
+	}
+
+	@Override
+	public List<List<String>> repairsPerPlane() throws SQLException {
+		return this._home.repairsPerPlane();
+	}
+
+	@Override
+	public List<List<String>> repairsPerYear() throws SQLException {
+		return this._home.repairsPerYear();
+	}
+
+	@Override
+	public int passengersWithStatus(String status) throws SQLException {
+		return this._home.passengersWithStatus(status);
+	}
+
+	/**
+	 * @return number of journaled writes not yet applied to the database
+	 */
+	public long pending() {
+		return this._journal.pending();
+	}
+
+	/*
+	 * Fails on a reference the index knows to be missing.  When the database
+	 * cannot be asked, the reference is checked when the record is applied.
+	 */
+	private void checkExists(String table, int id) throws SQLException {
+		try {
+			this._home.checkExists(table, id);
+		}catch (SQLException e) {
+			if (DBproject.FK_VIOLATION.equals(e.getSQLState()))
+				throw e;
+		}
+	}
+
+	/*
+	 * Fails on a flight that is neither queued nor in the seat index, as
+	 * booking it directly would.  When the database cannot be asked, the
+	 * flight is checked when the record is applied.
+	 */
+	private void checkFlight(int fnum) throws SQLException {
+		if (this._queuedFlights.contains(fnum))
+			return;
+		SeatAvailabilityService.FlightSeats seats;
+		try {
+			seats = this._home.availableSeats(fnum);
+		}catch (SQLException e) {
+			return;
+		}
+		if (seats == null)
+			throw new SQLException("Flight " + fnum + " does not exist", DBproject.FK_VIOLATION);
+	}
+
+	private void append(Record r) throws SQLException {
+		if (this._closed)
+			throw new SQLException("The write journal is closed");
+		try {
+			this._journal.append(r.type, r.bytes.toByteArray());
+		}catch (IOException e) {
+			throw new SQLException(e.getMessage(), e);
+		}
+		Metrics.journalAppend(1);
+	}
+
+	/*
+	 * Applies the journal in order until closed.
+	 */
+	private void drain() {
+		long backoff = MIN_BACKOFF;
+		boolean stalled = false;
+		// close interrupts the drainer once the journal is empty or its wait ran out
+		while (!Thread.currentThread().isInterrupted()) {
+			WriteJournal.Record r;
+			try {
+				r = this._journal.oldest(500);
+			}catch (InterruptedException e) {
+				return;
+			}
+			if (r == null)
+				continue;
+			try {
+				long start = Metrics.start();
+				try {
+					apply(r);
+				}finally {
+					DRAIN_TIMER.stop(start, null);
+				}
+				done(r);
+				Metrics.journalDrained();
+				if (stalled)
+					System.err.println("Journal: the database is back, applying " + this._journal.pending() + " queued writes");
+				stalled = false;
+				backoff = MIN_BACKOFF;
+			}catch (SQLException e) {
+				if (isTransient(e)) {
+					if (!stalled)
+						System.err.println("Journal: cannot apply writes (" + e.getMessage() + "), retrying");
+					stalled = true;
+					try {
+						Thread.sleep(backoff);
+					}catch (InterruptedException ie) {
+						return;
+					}
+					backoff = Math.min(backoff * 2, MAX_BACKOFF);
+				}else {
+					reject(r, e.getMessage());
+				}
+			}catch (IOException e) {
+				// the checksum matched, so this only happens for a record of a newer client
+				reject(r, "unreadable: " + e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Moves a record the database refused to the rejected journal.  Only
+	 * when that is full too is the write lost.
+	 */
+	private void reject(WriteJournal.Record r, String reason) {
+		try {
+			this._rejected.append(r.type, r.payload);
+			System.err.println("Journal: rejected write " + r.seq + " (" + reason + "), kept in " + this._rejectedFile
+				+ ": " + describe(r));
+		}catch (IOException e) {
+			System.err.println("Journal: lost write " + r.seq + " (" + reason + "), " + e.getMessage() + ": " + describe(r));
+		}
+		done(r);
+		Metrics.journalDropped();
+	}
+
+	/**
+	 * Method to list the writes the database rejected and, if asked, apply
+	 * them again in order.  Those that fail again stay rejected, behind any
+	 * rejected meanwhile.
+	 *
+	 * @param replay whether to apply the writes
+	 * @return one line per rejected write, with the outcome of a replay
+	 */
+	public List<String> rejected(boolean replay) {
+		List<String> lines = new ArrayList<String>();
+		synchronized (this._rejected) {
+			for (WriteJournal.Record r : this._rejected.records()) {
+				String line = r.seq + " " + describe(r);
+				if (replay) {
+					try {
+						apply(r);
+						line += ": applied";
+					}catch (SQLException | IOException e) {
+						try {
+							this._rejected.append(r.type, r.payload);
+						}catch (IOException full) {
+							// leave it and everything after it where it is
+							lines.add(line + ": " + e.getMessage());
+							break;
+						}
+						line += ": " + e.getMessage();
+					}
+					this._rejected.applied(r);
+				}
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	/*
+	 * The record type and its fields, for messages.
+	 */
+	static String describe(WriteJournal.Record r) {
+		if (r.type <= 0 || r.type >= LAYOUT.length)
+			return "record of unknown type " + r.type;
+		String[] names = FIELDS[r.type];
+		StringBuilder text = new StringBuilder(names[0]);
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(r.payload));
+			for (int i = 0; i < LAYOUT[r.type].length(); ++i)
+				text.append(i == 0 ? " " : ", ").append(names[i + 1]).append('=')
+					.append(LAYOUT[r.type].charAt(i) == 'I' ? Integer.valueOf(in.readInt()) : string(in));
+		}catch (IOException e) {
+			text.append(" (unreadable)");
+		}
+		return text.toString();
+	}
+
+	/*
+	 * Marks a record applied; a flight is in the seat index from then on.
+	 */
+	private void done(WriteJournal.Record r) {
+		this._journal.applied(r);
+		if (r.type == FLIGHT && r.payload.length >= 4)
+			this._queuedFlights.remove(ByteBuffer.wrap(r.payload).getInt());
+	}
+
+	private void apply(WriteJournal.Record r) throws SQLException, IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(r.payload));
+		switch (r.type) {
+			case PLANE:
+				update(REPLAY_PLANE, in.readInt(), string(in), string(in), in.readInt(), in.readInt());
+				break;
+			case PILOT:
+				update(REPLAY_PILOT, in.readInt(), string(in), string(in));
+				break;
+			case TECHNICIAN:
+				update(REPLAY_TECHNICIAN, in.readInt(), string(in));
+				break;
+			case FLIGHT:
+				update(REPLAY_FLIGHT, flightParams(r.payload));
+				break;
+			case BOOKING: {
+				int rnum = in.readInt();
+				int cid = in.readInt();
+				int fnum = in.readInt();
+				update(BookingEngine.BOOK_ONCE_SQL, rnum, fnum, fnum, rnum, cid, fnum);
+				break;
+			}
+			default:
+				throw new IOException("unknown record type " + r.type);
+		}
+	}
+
+	private static String string(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private void update(String sql, Object... params) throws SQLException {
+		ConnectionPool pool = this._home.pool();
+		PooledConnection pc = pool.borrow();
+		try {
+			PreparedStatement ps = pc.prepare(sql);
+			DBproject.bind(ps, params);
+			Metrics.statement();
+			ps.executeUpdate();
+		}finally {
+			pool.release(pc);
+		}
+	}
+
+	/*
+	 * Errors that go away once the server is reachable again: connection
+	 * exceptions (08), insufficient resources (53), operator intervention
+	 * such as a shutdown (57), transaction rollbacks (40) and lock timeouts
+	 * (55).  No SQLState at all means the pool could not connect.
+	 */
+	static boolean isTransient(SQLException e) {
+		String state = e.getSQLState();
+		return state == null || state.startsWith("08") || state.startsWith("53") || state.startsWith("57")
+			|| state.startsWith("40") || state.startsWith("55");
+	}
+
+	/**
+	 * Method to stop accepting writes and wait up to
+	 * <code>dbproject.journal.closeWaitMs</code> (default 5000) for the
+	 * queued ones to be applied.  What is left is applied after the next
+	 * start.
+	 */
+	@Override
+	public void close() {
+		this._closed = true;
+		try {
+			if (!this._journal.awaitEmpty(Long.getLong("dbproject.journal.closeWaitMs", 5000L)))
+				System.err.println("Journal: " + this._journal.pending() + " writes are left for the next start");
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this._drainer.interrupt();
+		try {
+			this._drainer.join(5000);
+			this._journal.close();
+			this._rejected.close();
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}catch (IOException e) {
+			System.err.println("Journal: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * A record being encoded.
+	 */
+	private static final class Record {
+		final byte type;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		private final DataOutputStream _out = new DataOutputStream(this.bytes);
+
+		Record(byte type) {
+			this.type = type;
+		}
+
+		void put(int v) {
+			try {
+				this._out.writeInt(v);
+			}catch (IOException e) {
+				// a ByteArrayOutputStream does not throw
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void put(String v) throws SQLException {
+			try {
+				this._out.writeBoolean(v != null);
+				if (v != null)
+					this._out.writeUTF(v);
+			}catch (IOException e) {
+				throw new SQLException("Value too long for the write journal: " + e.getMessage(), e);
+			}
+		}
+	}
+}
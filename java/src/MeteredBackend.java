@@ -0,0 +1,122 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * An {@link AirlineBackend} that times every operation of another backend
+ * and counts the round trips it makes.  DBproject only puts it in front of
+ * its backend when metrics are enabled, so it costs nothing otherwise.
+ *
+ */
+public class MeteredBackend implements AirlineBackend {
+	private static final Metrics.Timer ADD_PLANE = operation("addPlane");
+	private static final Metrics.Timer ADD_PILOT = operation("addPilot");
+	private static final Metrics.Timer ADD_TECHNICIAN = operation("addTechnician");
+	private static final Metrics.Timer ADD_FLIGHT = operation("addFlight");
+	private static final Metrics.Timer BOOK_FLIGHT = operation("bookFlight");
+	private static final Metrics.Timer AVAILABLE_SEATS = operation("availableSeats");
+	private static final Metrics.Timer REPAIRS_PER_PLANE = operation("repairsPerPlane");
+	private static final Metrics.Timer REPAIRS_PER_YEAR = operation("repairsPerYear");
+	private static final Metrics.Timer PASSENGERS_WITH_STATUS = operation("passengersWithStatus");
+
+	private final AirlineBackend _backend;
+
+	public MeteredBackend(AirlineBackend backend) {
+		this._backend = backend;
+	}
+
+	private static Metrics.Timer operation(String name) {
+		return Metrics.timer(Metrics.OPERATION, "operation", name);
+	}
+
+	@Override
+	public int addPlane(String make, String model, int age, int seats) throws SQLException {
+		long start = Metrics.begin();
+		try {
+			return this._backend.addPlane(make, model, age, seats);
+		}finally {
+			ADD_PLANE.stopOperation(start);
+		}
+	}
+
+	@Override
+	public int addPilot(String fullName, String nationality) throws SQLException {
+		long start = Metrics.begin();
+		try {
+			return this._backend.addPilot(fullName, nationality);
+		}finally {
+			ADD_PILOT.stopOperation(start);
+		}
+	}
+
+	@Override
+	public int addTechnician(String fullName) throws SQLException {
+		long start = Metrics.begin();
+		try {
+			return this._backend.addTechnician(fullName);
+		}finally {
+			ADD_TECHNICIAN.stopOperation(start);
+		}
+	}
+
+	@Override
+	public int addFlight(int cost, int numSold, int numStops, String departureDate, String arrivalDate,
+		String arrivalAirport, String departureAirport, int pilotId, int planeId) throws SQLException {
+		long start = Metrics.begin();
+		try {
+			return this._backend.addFlight(cost, numSold, numStops, departureDate, arrivalDate,
+				arrivalAirport, departureAirport, pilotId, planeId);
+		}finally {
+			ADD_FLIGHT.stopOperation(start);
+		}
+	}
+
+	@Override
+	public BookingEngine.Booking bookFlight(int cid, int fnum) throws SQLException {
+		long start = Metrics.begin();
+		try {
+			return this._backend.bookFlight(cid, fnum);
+		}finally {
+			BOOK_FLIGHT.stopOperation(start);
+		}
+	}
+
+	@Override
+	public SeatAvailabilityService.FlightSeats availableSeats(int fnum) throws SQLException {
+		long start = Metrics.begin();
+		try {
+			return this._backend.availableSeats(fnum);
+		}finally {
+			AVAILABLE_SEATS.stopOperation(start);
+		}
+	}
+
+	@Override
+	public List<List<String>> repairsPerPlane() throws SQLException {
+		long start = Metrics.begin();
+		try {
+			return this._backend.repairsPerPlane();
+		}finally {
+			REPAIRS_PER_PLANE.stopOperation(start);
+		}
+	}
+
+	@Override
+	public List<List<String>> repairsPerYear() throws SQLException {
+		long start = Metrics.begin();
+		try {
+			return this._backend.repairsPerYear();
+		}finally {
+			REPAIRS_PER_YEAR.stopOperation(start);
+		}
+	}
+
+	@Override
+	public int passengersWithStatus(String status) throws SQLException {
+		long start = Metrics.begin();
+		try {
+			return this._backend.passengersWithStatus(status);
+		}finally {
+			PASSENGERS_WITH_STATUS.stopOperation(start);
+		}
+	}
+}
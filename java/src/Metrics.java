@@ -0,0 +1,447 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class collects the client-side metrics: latency histograms of the
+ * menu operations, the SQL helpers and connection borrowing, and counters
+ * of statements executed, round trips, rows fetched and bytes materialized.
+ *
+ * Metrics are off unless the JVM is started with
+ * <code>-Ddbproject.metrics=true</code>.  Every recording method first tests
+ * a static final flag, so when they are off the JIT removes the calls.  When
+ * they are on, recording allocates nothing: histograms are fixed arrays of
+ * counters and the counters are {@link LongAdder}s.
+ *
+ * Statements and round trips are counted where a statement is executed;
+ * each statement is one round trip, and each further batch of rows read
+ * through a cursor is another.  SQL helper calls slower than
+ * <code>-Ddbproject.slowQueryMs</code> (default 500) are logged to standard
+ * error with their SQL text.  Hits, misses, evictions and invalidations of
+ * the {@link ResultCache} are counted too, and so are the transactions and
+ * statements of the {@link GroupCommitter}, and the writes appended to,
+ * applied from and dropped from the {@link WriteJournal}.
+ * {@link #writePrometheus(Appendable)} writes a snapshot of everything in
+ * the Prometheus text exposition format.
+ *
+ */
+public final class Metrics {
+	/** Whether metrics are recorded at all. */
+	public static final boolean ENABLED = Boolean.getBoolean("dbproject.metrics");
+	private static final long SLOW_NANOS = Long.getLong("dbproject.slowQueryMs", 500L) * 1000000L;
+
+	private static final List<Timer> TIMERS = new CopyOnWriteArrayList<Timer>();
+	private static final LongAdder STATEMENTS = new LongAdder();
+	private static final LongAdder ROUND_TRIPS = new LongAdder();
+	private static final LongAdder ROWS = new LongAdder();
+	private static final LongAdder BYTES = new LongAdder();
+	private static final LongAdder SLOW_QUERIES = new LongAdder();
+	private static final LongAdder CACHE_HITS = new LongAdder();
+	private static final LongAdder CACHE_MISSES = new LongAdder();
+	private static final LongAdder CACHE_EVICTIONS = new LongAdder();
+	private static final LongAdder CACHE_INVALIDATIONS = new LongAdder();
+	private static final LongAdder GROUP_COMMITS = new LongAdder();
+	private static final LongAdder GROUP_COMMIT_OPS = new LongAdder();
+	private static final LongAdder GROUP_COMMIT_FAILURES = new LongAdder();
+	private static final LongAdder JOURNAL_APPENDS = new LongAdder();
+	private static final LongAdder JOURNAL_DRAINED = new LongAdder();
+	private static final LongAdder JOURNAL_DROPPED = new LongAdder();
+	// round trips of the current thread: [0] running total, [1] total when the operation began
+	private static final ThreadLocal<long[]> THREAD_TRIPS = ThreadLocal.withInitial(() -> new long[2]);
+
+	static final String OPERATION = "dbproject_operation_seconds";
+	static final String SQL = "dbproject_sql_seconds";
+	static final String BORROW = "dbproject_pool_borrow_seconds";
+
+	/** Time spent waiting for a pooled connection. */
+	static final Timer POOL_BORROW = timer(BORROW, null, null);
+
+	private Metrics() {
+	}
+
+	/**
+	 * Method to register a latency histogram.  Timers are meant to be kept
+	 * in static final fields, one per operation or helper.
+	 *
+	 * @param family the metric name, e.g. {@link #SQL}
+	 * @param label the label name, or null
+	 * @param value the label value
+	 * @return the new timer
+	 */
+	static Timer timer(String family, String label, String value) {
+		Timer t = new Timer(family, label, value);
+		TIMERS.add(t);
+		return t;
+	}
+
+	/**
+	 * @return the start time to hand to a timer, 0 when metrics are off
+	 */
+	public static long start() {
+		return ENABLED ? System.nanoTime() : 0L;
+	}
+
+	/**
+	 * Method to start timing a menu operation; the round trips made by this
+	 * thread until {@link Timer#stopOperation(long)} are charged to it.
+	 *
+	 * @return the start time to hand to the operation's timer
+	 */
+	public static long begin() {
+		if (!ENABLED)
+			return 0L;
+		long[] trips = THREAD_TRIPS.get();
+		trips[1] = trips[0];
+		return System.nanoTime();
+	}
+
+	/**
+	 * Method to count one executed statement and its round trip.
+	 */
+	public static void statement() {
+		if (!ENABLED)
+			return;
+		STATEMENTS.increment();
+		roundTrip();
+	}
+
+	/**
+	 * Method to count a round trip that did not execute a statement, such
+	 * as fetching the next batch of rows of a cursor.
+	 */
+	public static void roundTrip() {
+		if (!ENABLED)
+			return;
+		ROUND_TRIPS.increment();
+		++THREAD_TRIPS.get()[0];
+	}
+
+	/**
+	 * Method to count rows read from the database.
+	 *
+	 * @param rows the number of rows
+	 * @param bytes the size of the values materialized from them, as UTF-16
+	 */
+	public static void rows(long rows, long bytes) {
+		if (!ENABLED)
+			return;
+		ROWS.add(rows);
+		BYTES.add(bytes);
+	}
+
+	/**
+	 * Method to count a report served from the {@link ResultCache}.
+	 */
+	public static void cacheHit() {
+		if (ENABLED)
+			CACHE_HITS.increment();
+	}
+
+	/**
+	 * Method to count a report the {@link ResultCache} had to load.
+	 */
+	public static void cacheMiss() {
+		if (ENABLED)
+			CACHE_MISSES.increment();
+	}
+
+	/**
+	 * Method to count a cached report dropped to make room.
+	 */
+	public static void cacheEviction() {
+		if (ENABLED)
+			CACHE_EVICTIONS.increment();
+	}
+
+	/**
+	 * Method to count a cached report dropped because its tables changed.
+	 */
+	public static void cacheInvalidation() {
+		if (ENABLED)
+			CACHE_INVALIDATIONS.increment();
+	}
+
+	/**
+	 * Method to count a transaction committed by the {@link GroupCommitter}.
+	 *
+	 * @param ops the number of statements it committed
+	 */
+	public static void groupCommit(int ops) {
+		if (!ENABLED)
+			return;
+		GROUP_COMMITS.increment();
+		GROUP_COMMIT_OPS.add(ops);
+	}
+
+	/**
+	 * Method to count a statement the {@link GroupCommitter} dropped from its
+	 * group because it failed.
+	 */
+	public static void groupCommitFailure() {
+		if (ENABLED)
+			GROUP_COMMIT_FAILURES.increment();
+	}
+
+	/**
+	 * Method to count writes appended to the {@link WriteJournal}, or found
+	 * there unapplied at startup.
+	 *
+	 * @param records the number of records
+	 */
+	public static void journalAppend(long records) {
+		if (ENABLED)
+			JOURNAL_APPENDS.add(records);
+	}
+
+	/**
+	 * Method to count a journaled write applied to the database.
+	 */
+	public static void journalDrained() {
+		if (ENABLED)
+			JOURNAL_DRAINED.increment();
+	}
+
+	/**
+	 * Method to count a journaled write given up on because it failed.
+	 */
+	public static void journalDropped() {
+		if (ENABLED)
+			JOURNAL_DROPPED.increment();
+	}
+
+	/**
+	 * @return the UTF-16 size of the values of a row
+	 */
+	static long bytes(String[] row) {
+		long n = 0;
+		for (String v : row)
+			if (v != null)
+				n += 2L * v.length();
+		return n;
+	}
+
+	/**
+	 * Method to write a snapshot of every metric in the Prometheus text
+	 * exposition format.
+	 *
+	 * @param out where the snapshot is written
+	 * @throws java.io.IOException when writing failed
+	 */
+	public static void writePrometheus(Appendable out) throws IOException {
+		counter(out, "dbproject_statements_total", "Statements executed.", STATEMENTS.sum());
+		counter(out, "dbproject_round_trips_total", "Round trips to the database.", ROUND_TRIPS.sum());
+		counter(out, "dbproject_rows_fetched_total", "Rows read from the database.", ROWS.sum());
+		counter(out, "dbproject_bytes_materialized_total", "UTF-16 bytes of values materialized from rows.", BYTES.sum());
+		counter(out, "dbproject_slow_queries_total", "SQL helper calls slower than dbproject.slowQueryMs.", SLOW_QUERIES.sum());
+		counter(out, "dbproject_cache_hits_total", "Reports served from the result cache.", CACHE_HITS.sum());
+		counter(out, "dbproject_cache_misses_total", "Reports the result cache had to load.", CACHE_MISSES.sum());
+		counter(out, "dbproject_cache_evictions_total", "Cached reports dropped to make room.", CACHE_EVICTIONS.sum());
+		counter(out, "dbproject_cache_invalidations_total", "Cached reports dropped because their tables changed.", CACHE_INVALIDATIONS.sum());
+		long lookups = CACHE_HITS.sum() + CACHE_MISSES.sum();
+		out.append("# HELP dbproject_cache_hit_ratio Share of report lookups served from the result cache.\n");
+		out.append("# TYPE dbproject_cache_hit_ratio gauge\n");
+		out.append("dbproject_cache_hit_ratio ").append(lookups == 0 ? "0" : String.format(Locale.ROOT, "%.4f",
+			(double) CACHE_HITS.sum() / lookups)).append('\n');
+		counter(out, "dbproject_group_commits_total", "Transactions committed by the group committer.", GROUP_COMMITS.sum());
+		counter(out, "dbproject_group_commit_ops_total", "Statements committed by the group committer.", GROUP_COMMIT_OPS.sum());
+		counter(out, "dbproject_group_commit_failures_total", "Statements dropped from a group because they failed.",
+			GROUP_COMMIT_FAILURES.sum());
+		long drained = JOURNAL_DRAINED.sum();
+		long dropped = JOURNAL_DROPPED.sum();
+		counter(out, "dbproject_journal_appends_total", "Writes appended to the write journal.", JOURNAL_APPENDS.sum());
+		counter(out, "dbproject_journal_drained_total", "Journaled writes applied to the database.", drained);
+		counter(out, "dbproject_journal_dropped_total", "Journaled writes dropped because they failed.", dropped);
+		out.append("# HELP dbproject_journal_depth Journaled writes not yet applied to the database.\n");
+		out.append("# TYPE dbproject_journal_depth gauge\n");
+		out.append("dbproject_journal_depth ").append(Long.toString(JOURNAL_APPENDS.sum() - drained - dropped)).append('\n');
+
+		List<String> families = new ArrayList<String>();
+		for (Timer t : TIMERS)
+			if (!families.contains(t.family))
+				families.add(t.family);
+		for (String family : families) {
+			out.append("# HELP ").append(family).append(' ').append(help(family)).append('\n');
+			out.append("# TYPE ").append(family).append(" histogram\n");
+			for (Timer t : TIMERS)
+				if (t.family.equals(family))
+					t.histogram.write(out, family, t.label == null ? "" : t.label + "=\"" + t.value + "\",");
+		}
+		out.append("# HELP dbproject_operation_round_trips_total Round trips made by each menu operation.\n");
+		out.append("# TYPE dbproject_operation_round_trips_total counter\n");
+		for (Timer t : TIMERS)
+			if (t.family.equals(OPERATION))
+				out.append("dbproject_operation_round_trips_total{").append(t.label).append("=\"").append(t.value)
+					.append("\"} ").append(Long.toString(t.trips.sum())).append('\n');
+	}
+
+	private static void counter(Appendable out, String name, String help, long value) throws IOException {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(Long.toString(value)).append('\n');
+	}
+
+	private static String help(String family) {
+		switch (family) {
+			case OPERATION: return "Latency of the menu operations.";
+			case SQL: return "Latency of the DBproject SQL helpers.";
+			case BORROW: return "Time spent waiting for a pooled connection.";
+			default: return family;
+		}
+	}
+
+	/**
+	 * A latency histogram for one operation, helper or wait.
+	 */
+	public static final class Timer {
+		final String family;
+		final String label;
+		final String value;
+		final Histogram histogram = new Histogram();
+		final LongAdder trips = new LongAdder();
+
+		Timer(String family, String label, String value) {
+			this.family = family;
+			this.label = label;
+			this.value = value;
+		}
+
+		/**
+		 * Method to record the time since start.
+		 *
+		 * @param start the value returned by {@link Metrics#start()}
+		 */
+		public void stop(long start) {
+			if (!ENABLED)
+				return;
+			this.histogram.record(System.nanoTime() - start);
+		}
+
+		/**
+		 * Method to record the time since start and log the SQL text if the
+		 * call was slow.
+		 *
+		 * @param start the value returned by {@link Metrics#start()}
+		 * @param sql the statement that was run
+		 */
+		public void stop(long start, String sql) {
+			if (!ENABLED)
+				return;
+			long nanos = System.nanoTime() - start;
+			this.histogram.record(nanos);
+			if (nanos >= SLOW_NANOS) {
+				SLOW_QUERIES.increment();
+				System.err.println(String.format(Locale.ROOT, "Slow query (%d ms in %s): %s", nanos / 1000000, this.value, sql));
+			}
+		}
+
+		/**
+		 * Method to record the time and round trips of a menu operation.
+		 *
+		 * @param start the value returned by {@link Metrics#begin()}
+		 */
+		public void stopOperation(long start) {
+			if (!ENABLED)
+				return;
+			this.histogram.record(System.nanoTime() - start);
+			long[] trips = THREAD_TRIPS.get();
+			this.trips.add(trips[0] - trips[1]);
+		}
+
+		/**
+		 * @return the recorded latencies
+		 */
+		public Histogram histogram() {
+			return this.histogram;
+		}
+	}
+
+	/**
+	 * A log-linear histogram of nanosecond latencies: four buckets per power
+	 * of two, so a value is placed within 25% of its true size.  Recording
+	 * is one atomic increment and does not allocate.
+	 */
+	public static final class Histogram {
+		private static final int BUCKETS = 248;
+		// exported bucket bounds, as powers of two nanoseconds: ~1 us to ~69 s
+		private static final int MIN_EXPORT = 10, MAX_EXPORT = 36;
+		private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder _sum = new LongAdder();
+
+		void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			this._counts.incrementAndGet(bucket(nanos));
+			this._sum.add(nanos);
+		}
+
+		static int bucket(long v) {
+			if (v < 4)
+				return (int) v;
+			int msb = 63 - Long.numberOfLeadingZeros(v);
+			return 4 * (msb - 1) + (int) ((v >>> (msb - 2)) & 3);
+		}
+
+		// smallest value that falls beyond the bucket
+		static long upperBound(int bucket) {
+			if (bucket < 4)
+				return bucket + 1;
+			int msb = bucket / 4 + 1;
+			long lower = (4L + bucket % 4) << (msb - 2);
+			return lower + (1L << (msb - 2));
+		}
+
+		/**
+		 * @return the number of recorded values
+		 */
+		public long count() {
+			long n = 0;
+			for (int i = 0; i < BUCKETS; ++i)
+				n += this._counts.get(i);
+			return n;
+		}
+
+		/**
+		 * @param q the quantile, between 0 and 1
+		 * @return an upper bound of the q-quantile in nanoseconds, 0 if empty
+		 */
+		public long percentile(double q) {
+			long total = count();
+			if (total == 0)
+				return 0;
+			long rank = (long) Math.ceil(q * total);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				seen += this._counts.get(i);
+				if (seen >= rank && seen > 0)
+					return upperBound(i);
+			}
+			return Long.MAX_VALUE;
+		}
+
+		void write(Appendable out, String family, String labels) throws IOException {
+			long cumulative = 0;
+			int bucket = 0;
+			for (int k = MIN_EXPORT; k <= MAX_EXPORT; ++k) {
+				// the buckets below 2^k nanoseconds
+				for (; bucket < 4 * (k - 1); ++bucket)
+					cumulative += this._counts.get(bucket);
+				out.append(family).append("_bucket{").append(labels).append("le=\"")
+					.append(seconds(1L << k)).append("\"} ").append(Long.toString(cumulative)).append('\n');
+			}
+			for (; bucket < BUCKETS; ++bucket)
+				cumulative += this._counts.get(bucket);
+			String braces = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+			out.append(family).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(Long.toString(cumulative)).append('\n');
+			out.append(family).append("_sum").append(braces).append(' ').append(seconds(this._sum.sum())).append('\n');
+			out.append(family).append("_count").append(braces).append(' ').append(Long.toString(cumulative)).append('\n');
+		}
+
+		private static String seconds(long nanos) {
+			return new java.math.BigDecimal(nanos).movePointLeft(9).stripTrailingZeros().toPlainString();
+		}
+	}
+}
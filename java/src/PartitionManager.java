@@ -0,0 +1,350 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class keeps Repairs and Schedule range-partitioned by date, Repairs
+ * by <code>repair_date</code> one partition per year and Schedule by
+ * <code>departure_time</code> one partition per month, so queries bounded
+ * on those columns only read the partitions of their range.
+ *
+ * sql/create.sql still creates both as plain tables.  The first run
+ * migrates each one in a single transaction: it is renamed, recreated as a
+ * partitioned table with the same columns, checks, foreign keys, indexes and
+ * triggers, given a partition for every period in its data plus a default
+ * partition, and its rows are copied over.  The primary key gains the
+ * partition column, as PostgreSQL requires.  Partitioned keys and triggers
+ * need PostgreSQL 11 or later.
+ *
+ * Every run then
+ * <ol>
+ * <li>moves rows that landed in the default partition, e.g. after a bulk
+ * load, into partitions of their own;</li>
+ * <li>creates the partitions of the next <code>ahead</code> periods, so
+ * inserts never fall into the default partition;</li>
+ * <li>with a retention of <code>retain</code> periods, detaches older
+ * partitions and moves them to the <code>archive</code> schema, where they
+ * stay queryable but are no longer scanned with the live table.</li>
+ * </ol>
+ * The repair aggregates are rebuilt whenever repairs moved or were
+ * archived, so menus 7 and 8 count exactly the live partitions.
+ *
+ */
+public class PartitionManager {
+	/** The partitioned tables: name, partition column, period. */
+	static final Managed[] TABLES = {
+		new Managed("Repairs", "repair_date", "year"),
+		new Managed("Schedule", "departure_time", "month"),
+	};
+
+	private static final Pattern RANGE = Pattern.compile("FROM \\('([0-9-]+)'\\) TO \\('([0-9-]+)'\\)");
+
+	private final ConnectionPool _pool;
+	private final int _ahead;
+	private final int _retain;
+	private final String _archive;
+
+	/**
+	 * @param pool the pool of the database to manage
+	 * @param ahead number of future periods that get a partition in advance
+	 * @param retain number of past periods kept live, 0 to keep all
+	 * @param archive the schema detached partitions are moved to
+	 */
+	public PartitionManager(ConnectionPool pool, int ahead, int retain, String archive) {
+		this._pool = pool;
+		this._ahead = ahead;
+		this._retain = retain;
+		this._archive = archive;
+	}
+
+	/**
+	 * Method to migrate, fill, extend and age out the partitions of every
+	 * managed table.
+	 *
+	 * @return one line per change made
+	 * @throws java.sql.SQLException when the server is older than 11 or a step failed
+	 */
+	public List<String> maintain() throws SQLException {
+		List<String> changes = new ArrayList<String>();
+		PooledConnection pc = this._pool.borrow();
+		try {
+			Connection c = pc.connection();
+			if (c.getMetaData().getDatabaseMajorVersion() < 11)
+				throw new SQLException("Partitioning Repairs and Schedule needs PostgreSQL 11 or later");
+			for (Managed t : TABLES) {
+				if (!partitioned(c, t)) {
+					migrate(c, t);
+					changes.add(t.name + " migrated to a partitioned table");
+				}
+				long moved = 0;
+				for (LocalDate from : periodsIn(c, t, t.defaultPartition()))
+					moved += add(c, t, from, changes);
+				LocalDate current = t.start(LocalDate.now());
+				TreeMap<LocalDate, String> ranges = ranges(c, t);
+				for (int i = 0; i <= this._ahead; ++i) {
+					LocalDate from = t.plus(current, i);
+					if (!ranges.containsKey(from))
+						add(c, t, from, changes);
+				}
+				int archived = this._retain > 0 ? archive(c, t, t.plus(current, -this._retain), changes) : 0;
+				if (t.name.equals("Repairs") && (moved > 0 || archived > 0)) {
+					new RepairAggregates(this._pool).rebuild();
+					changes.add("Repair aggregates rebuilt");
+				}
+			}
+		}finally {
+			this._pool.release(pc);
+		}
+		return changes;
+	}
+
+	/**
+	 * Method to list the partitions of every managed table.
+	 *
+	 * @return one line per partition: table, partition, range and estimated rows
+	 * @throws java.sql.SQLException when the catalog could not be read
+	 */
+	public List<String> describe() throws SQLException {
+		List<String> lines = new ArrayList<String>();
+		PooledConnection pc = this._pool.borrow();
+		try {
+			Connection c = pc.connection();
+			for (Managed t : TABLES) {
+				if (!partitioned(c, t)) {
+					lines.add(t.name + " is not partitioned");
+					continue;
+				}
+				PreparedStatement ps = c.prepareStatement(
+					"SELECT p.relname, pg_get_expr(p.relpartbound, p.oid), p.reltuples::bigint "
+					+ "FROM pg_inherits i JOIN pg_class p ON p.oid = i.inhrelid "
+					+ "WHERE i.inhparent = ?::regclass ORDER BY 2");
+				ps.setString(1, t.table());
+				ResultSet rs = ps.executeQuery();
+				while (rs.next())
+					lines.add(String.format(Locale.ROOT, "%-10s %-20s %-50s ~%d rows", t.name, rs.getString(1),
+						rs.getString(2), Math.max(rs.getLong(3), 0)));
+				rs.close();
+				ps.close();
+			}
+		}finally {
+			this._pool.release(pc);
+		}
+		return lines;
+	}
+
+	private static boolean partitioned(Connection c, Managed t) throws SQLException {
+		PreparedStatement ps = c.prepareStatement("SELECT relkind FROM pg_class WHERE oid = ?::regclass");
+		ps.setString(1, t.table());
+		ResultSet rs = ps.executeQuery();
+		if (!rs.next())
+			throw new SQLException("Table " + t.name + " does not exist");
+		boolean partitioned = "p".equals(rs.getString(1));
+		rs.close();
+		ps.close();
+		return partitioned;
+	}
+
+	/*
+	 * Replaces a plain table with a partitioned one holding the same rows,
+	 * all in one transaction.  The DDL of the keys, indexes and triggers is
+	 * read before the rename, so it names the table rather than its old copy.
+	 * Once migrated, the table's indexes are defined "ON ONLY" the parent;
+	 * BulkLoader drops that word when it recreates them, so they cascade to
+	 * the partitions again.
+	 */
+	private void migrate(Connection c, Managed t) throws SQLException {
+		String old = t.table() + "_unpartitioned";
+		c.setAutoCommit(false);
+		try {
+			Statement stmt = c.createStatement();
+			stmt.execute("LOCK TABLE " + t.name + " IN ACCESS EXCLUSIVE MODE");
+			String primaryKey = null;
+			List<String> keyColumns = new ArrayList<String>();
+			ResultSet rs = stmt.executeQuery("SELECT k.conname, a.attname FROM pg_constraint k "
+				+ "JOIN pg_attribute a ON a.attrelid = k.conrelid AND a.attnum = ANY (k.conkey) "
+				+ "WHERE k.conrelid = '" + t.table() + "'::regclass AND k.contype = 'p' "
+				+ "ORDER BY array_position(k.conkey, a.attnum)");
+			while (rs.next()) {
+				primaryKey = rs.getString(1);
+				keyColumns.add(rs.getString(2));
+			}
+			rs.close();
+			List<String> ddl = new ArrayList<String>();
+			rs = stmt.executeQuery("SELECT 'ALTER TABLE " + t.name + " ADD CONSTRAINT ' || quote_ident(conname) || ' ' "
+				+ "|| pg_get_constraintdef(oid) FROM pg_constraint WHERE conrelid = '" + t.table() + "'::regclass AND contype = 'f'");
+			while (rs.next())
+				ddl.add(rs.getString(1));
+			rs.close();
+			rs = stmt.executeQuery("SELECT pg_get_indexdef(indexrelid) FROM pg_index WHERE indrelid = '" + t.table()
+				+ "'::regclass AND NOT EXISTS (SELECT 1 FROM pg_constraint k WHERE k.conindid = indexrelid)");
+			while (rs.next())
+				ddl.add(rs.getString(1));
+			rs.close();
+			// created last, so copying the rows does not fire them
+			rs = stmt.executeQuery("SELECT pg_get_triggerdef(oid) FROM pg_trigger WHERE tgrelid = '" + t.table()
+				+ "'::regclass AND NOT tgisinternal");
+			while (rs.next())
+				ddl.add(rs.getString(1));
+			rs.close();
+			List<LocalDate> periods = periodsIn(c, t, t.table());
+
+			stmt.execute("ALTER TABLE " + t.name + " RENAME TO " + old);
+			if (primaryKey != null)
+				stmt.execute("ALTER TABLE " + old + " DROP CONSTRAINT " + primaryKey);
+			if (!keyColumns.isEmpty() && !keyColumns.contains(t.column))
+				keyColumns.add(t.column);
+			stmt.execute("CREATE TABLE " + t.name + " (LIKE " + old + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS"
+				+ (keyColumns.isEmpty() ? "" : ", PRIMARY KEY (" + String.join(", ", keyColumns) + ")")
+				+ ") PARTITION BY RANGE (" + t.column + ")");
+			stmt.execute("CREATE TABLE " + t.defaultPartition() + " PARTITION OF " + t.name + " DEFAULT");
+			for (LocalDate from : periods)
+				stmt.execute("CREATE TABLE " + t.partition(from) + " PARTITION OF " + t.name + " FOR VALUES FROM ('"
+					+ from + "') TO ('" + t.plus(from, 1) + "')");
+			stmt.execute("INSERT INTO " + t.name + " SELECT * FROM " + old);
+			stmt.execute("DROP TABLE " + old);
+			for (String s : ddl)
+				stmt.execute(s);
+			stmt.close();
+			c.commit();
+		}catch (SQLException e) {
+			c.rollback();
+			throw e;
+		}finally {
+			c.setAutoCommit(true);
+		}
+		Statement stmt = c.createStatement();
+		stmt.execute("ANALYZE " + t.name);
+		stmt.close();
+	}
+
+	/*
+	 * Adds the partition of the period starting at from, moving the rows of
+	 * that period out of the default partition.  Returns the rows moved.
+	 */
+	private static long add(Connection c, Managed t, LocalDate from, List<String> changes) throws SQLException {
+		String part = t.partition(from);
+		LocalDate to = t.plus(from, 1);
+		long moved;
+		c.setAutoCommit(false);
+		try {
+			Statement stmt = c.createStatement();
+			stmt.execute("CREATE TABLE " + part + " (LIKE " + t.name + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+			moved = stmt.executeUpdate("WITH moved AS (DELETE FROM " + t.defaultPartition() + " WHERE " + t.column
+				+ " >= '" + from + "' AND " + t.column + " < '" + to + "' RETURNING *) INSERT INTO " + part + " SELECT * FROM moved");
+			// attaching validates both the new partition and the default
+			stmt.execute("ALTER TABLE " + t.name + " ATTACH PARTITION " + part + " FOR VALUES FROM ('" + from + "') TO ('" + to + "')");
+			stmt.close();
+			c.commit();
+		}catch (SQLException e) {
+			c.rollback();
+			throw e;
+		}finally {
+			c.setAutoCommit(true);
+		}
+		changes.add("Created " + part + (moved > 0 ? " with " + moved + " rows from the default partition" : ""));
+		return moved;
+	}
+
+	/*
+	 * Detaches every partition ending on or before the cutoff and moves it
+	 * to the archive schema.  Returns the partitions archived.
+	 */
+	private int archive(Connection c, Managed t, LocalDate cutoff, List<String> changes) throws SQLException {
+		int archived = 0;
+		Statement stmt = c.createStatement();
+		for (Map.Entry<LocalDate, String> e : ranges(c, t).entrySet()) {
+			if (t.plus(e.getKey(), 1).isAfter(cutoff))
+				break;
+			stmt.execute("CREATE SCHEMA IF NOT EXISTS " + this._archive);
+			stmt.execute("ALTER TABLE " + t.name + " DETACH PARTITION " + e.getValue());
+			stmt.execute("ALTER TABLE " + e.getValue() + " SET SCHEMA " + this._archive);
+			changes.add("Archived " + e.getValue() + " to " + this._archive + "." + e.getValue());
+			++archived;
+		}
+		stmt.close();
+		return archived;
+	}
+
+	/*
+	 * The range partitions of a table by their lower bound.
+	 */
+	private static TreeMap<LocalDate, String> ranges(Connection c, Managed t) throws SQLException {
+		TreeMap<LocalDate, String> ranges = new TreeMap<LocalDate, String>();
+		PreparedStatement ps = c.prepareStatement("SELECT p.relname, pg_get_expr(p.relpartbound, p.oid) "
+			+ "FROM pg_inherits i JOIN pg_class p ON p.oid = i.inhrelid WHERE i.inhparent = ?::regclass");
+		ps.setString(1, t.table());
+		ResultSet rs = ps.executeQuery();
+		while (rs.next()) {
+			Matcher m = RANGE.matcher(rs.getString(2));
+			if (m.find())
+				ranges.put(LocalDate.parse(m.group(1)), rs.getString(1));
+		}
+		rs.close();
+		ps.close();
+		return ranges;
+	}
+
+	/*
+	 * The start of every period with rows in a table or partition.
+	 */
+	private static List<LocalDate> periodsIn(Connection c, Managed t, String relation) throws SQLException {
+		List<LocalDate> periods = new ArrayList<LocalDate>();
+		Statement stmt = c.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT DISTINCT date_trunc('" + t.period + "', " + t.column + ")::date FROM "
+			+ relation + " ORDER BY 1");
+		while (rs.next())
+			periods.add(rs.getDate(1).toLocalDate());
+		rs.close();
+		stmt.close();
+		return periods;
+	}
+
+	/**
+	 * A table partitioned by a date column into yearly or monthly ranges.
+	 */
+	static final class Managed {
+		final String name;
+		final String column;
+		final String period;
+
+		Managed(String name, String column, String period) {
+			this.name = name;
+			this.column = column;
+			this.period = period;
+		}
+
+		String table() {
+			return this.name.toLowerCase(Locale.ROOT);
+		}
+
+		LocalDate start(LocalDate day) {
+			return this.period.equals("year") ? day.withDayOfYear(1) : day.withDayOfMonth(1);
+		}
+
+		LocalDate plus(LocalDate from, int periods) {
+			return this.period.equals("year") ? from.plusYears(periods) : from.plusMonths(periods);
+		}
+
+		/*
+		 * repairs_y2014 or schedule_m201405.
+		 */
+		String partition(LocalDate from) {
+			return this.period.equals("year") ? String.format(Locale.ROOT, "%s_y%04d", table(), from.getYear())
+				: String.format(Locale.ROOT, "%s_m%04d%02d", table(), from.getYear(), from.getMonthValue());
+		}
+
+		String defaultPartition() {
+			return table() + "_default";
+		}
+	}
+}
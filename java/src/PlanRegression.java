@@ -0,0 +1,395 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This class runs <code>EXPLAIN (ANALYZE, BUFFERS)</code> for every query
+ * DBproject and its helpers issue, so that a missing index or a plan change
+ * on the hot paths fails a run instead of showing up as slow menus.
+ *
+ * When a data directory is given the database is first reloaded from it
+ * with {@link BulkLoader} (this replaces all data in the database, so use a
+ * scaled dataset from {@link DataGenerator}); either way it is vacuumed and
+ * analyzed.  Each query is explained <code>-Dplans.runs</code> times
+ * (default 3) with keys of existing rows.  Statements that write run inside
+ * a transaction that is rolled back.
+ *
+ * For every query the plan shape (its node types, relations and indexes,
+ * without costs), the shared buffers hit and read, and the fastest execution
+ * time are printed and written to a JSON file.  The run fails with exit
+ * status 1 when a hot query scans a table of at least
+ * <code>-Dplans.minRows</code> rows (default 1000) sequentially, when a
+ * plan shape differs from the baseline file, or when a query became more
+ * than <code>-Dplans.slowdown</code> times (default 3) slower than the
+ * baseline and by at least a millisecond.  The first run, and any run with
+ * <code>-Dplans.accept=true</code>, writes the baseline instead.
+ *
+ */
+public class PlanRegression {
+	private static final int RUNS = Integer.getInteger("plans.runs", 3);
+	private static final double SLOWDOWN = Double.parseDouble(System.getProperty("plans.slowdown", "3"));
+	private static final boolean ACCEPT = Boolean.getBoolean("plans.accept");
+	// a sequential scan of a smaller table is the planner's right choice
+	private static final long MIN_ROWS = Long.getLong("plans.minRows", 1000L);
+
+	/**
+	 * One explained query.
+	 */
+	static final class Query {
+		final String name;
+		final String sql;
+		final Object[] params;
+		// hot paths must not scan a table sequentially
+		final boolean hot;
+		final boolean writes;
+
+		Query(String name, String sql, boolean hot, boolean writes, Object... params) {
+			this.name = name;
+			this.sql = sql;
+			this.hot = hot;
+			this.writes = writes;
+			this.params = params;
+		}
+	}
+
+	/**
+	 * The outcome of explaining one query.
+	 */
+	static final class Plan {
+		final String name;
+		final String shape;
+		final long sharedHit;
+		final long sharedRead;
+		final double executionMs;
+		final List<String> seqScans;
+
+		Plan(String name, String shape, long sharedHit, long sharedRead, double executionMs, List<String> seqScans) {
+			this.name = name;
+			this.shape = shape;
+			this.sharedHit = sharedHit;
+			this.sharedRead = sharedRead;
+			this.executionMs = executionMs;
+			this.seqScans = seqScans;
+		}
+	}
+
+	private final ConnectionPool _pool;
+
+	public PlanRegression(ConnectionPool pool) {
+		this._pool = pool;
+	}
+
+	/**
+	 * The main execution method
+	 *
+	 * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [data dir|-] [baseline file] [results file]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + PlanRegression.class.getName()
+				+ " <dbname> <port> <user> [data dir|-] [baseline file] [results file]");
+			return;
+		}
+		String dataDir = args.length > 3 && !args[3].equals("-") ? args[3] : null;
+		File baselineFile = new File(args.length > 4 ? args[4] : "plans-baseline.tsv");
+		String resultsFile = args.length > 5 ? args[5] : "plans-results.json";
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		List<String> failures = new ArrayList<String>();
+		List<Plan> plans;
+		try {
+			if (dataDir != null)
+				new BulkLoader(esql.pool(), new File(dataDir)).load();
+			PlanRegression check = new PlanRegression(esql.pool());
+			check.vacuum();
+			plans = check.explainAll();
+		}finally {
+			esql.cleanup();
+		}
+
+		Map<String, String[]> baseline = readBaseline(baselineFile);
+		System.out.println(String.format(Locale.ROOT, "%-28s %10s %10s %12s  %s", "query", "hit", "read", "exec ms", "plan"));
+		for (Plan p : plans) {
+			System.out.println(String.format(Locale.ROOT, "%-28s %10d %10d %12.3f  %s", p.name, p.sharedHit, p.sharedRead,
+				p.executionMs, p.shape));
+			for (String scan : p.seqScans)
+				failures.add(p.name + ": sequential scan on " + scan);
+			String[] before = baseline.get(p.name);
+			if (before == null || ACCEPT)
+				continue;
+			if (!before[0].equals(p.shape))
+				failures.add(p.name + ": plan changed\n    was: " + before[0] + "\n    now: " + p.shape);
+			double was = Double.parseDouble(before[1]);
+			if (p.executionMs > was * SLOWDOWN && p.executionMs - was >= 1.0)
+				failures.add(String.format(Locale.ROOT, "%s: %.3f ms, baseline %.3f ms", p.name, p.executionMs, was));
+		}
+		writeResults(resultsFile, plans);
+		if (ACCEPT || baseline.isEmpty()) {
+			writeBaseline(baselineFile, plans);
+			System.out.println("Baseline written to " + baselineFile);
+		}
+		if (!failures.isEmpty()) {
+			System.out.println();
+			for (String f : failures)
+				System.out.println("FAIL " + f);
+			System.exit(1);
+		}
+		System.out.println("No plan regressions");
+	}
+
+	/*
+	 * Brings statistics and the visibility map up to date, so the plans are
+	 * those of a settled database rather than of a fresh load.
+	 */
+	private void vacuum() throws SQLException {
+		PooledConnection pc = this._pool.borrow();
+		try {
+			Statement stmt = pc.connection().createStatement();
+			stmt.execute("VACUUM ANALYZE");
+			stmt.close();
+		}finally {
+			this._pool.release(pc);
+		}
+	}
+
+	/**
+	 * Method to explain every query DBproject issues, with keys of rows in
+	 * the current data.
+	 *
+	 * @return one plan per query, in a fixed order
+	 * @throws java.sql.SQLException when a query could not be explained
+	 */
+	public List<Plan> explainAll() throws SQLException {
+		long[] k = keys();
+		int fnum = (int) k[0], cid = (int) k[1], rnum = (int) k[2], plane = (int) k[3], pilot = (int) k[4];
+		int newRnum = (int) k[5], newFnum = (int) k[6], newId = (int) k[7], newFiid = (int) k[8];
+		List<Query> queries = Arrays.asList(
+			// menu 6 and the seat index
+			new Query("seats.loadOne", SeatAvailabilityService.LOAD_ONE_SQL, true, false, fnum),
+			new Query("seats.loadAll", SeatAvailabilityService.LOAD_ALL_SQL, false, false),
+			// menu 5 and cancellation
+			new Query("bookFlight", BookingEngine.BOOK_SQL, true, true, fnum, fnum, newRnum, cid, fnum),
+			new Query("cancel.lockReservation", BookingEngine.LOCK_RESERVATION_SQL, true, true, rnum),
+			new Query("cancel.lockFlight", BookingEngine.LOCK_FLIGHT_SQL, true, true, fnum),
+			new Query("cancel.delete", BookingEngine.DELETE_RESERVATION_SQL, true, true, rnum),
+			new Query("cancel.releaseSeat", BookingEngine.RELEASE_SEAT_SQL, true, true, fnum),
+			new Query("cancel.promote", BookingEngine.PROMOTE_SQL, true, true, fnum, fnum, fnum, fnum),
+			// menus 1 to 4
+			new Query("addPlane", DBproject.INSERT_PLANE, true, true, newId, "Boeing", "737", 2000, 150),
+			new Query("addPilot", DBproject.INSERT_PILOT, true, true, newId, "Plan Check", "US"),
+			new Query("addTechnician", DBproject.INSERT_TECHNICIAN, true, true, newId, "Plan Check"),
+			new Query("addFlight", DBproject.ADD_FLIGHT, true, true, newFnum, 100, 0, 0, "2020-01-01", "2020-01-02",
+				"LAX", "JFK", newFiid, plane, pilot),
+			new Query("idIndex.probe", "SELECT 1 FROM Plane WHERE id = ?", true, false, plane),
+			new Query("idIndex.load", "SELECT id FROM Customer", false, false),
+			// menus 7 to 9
+			new Query("repairsPerPlane", RepairAggregates.PER_PLANE_SQL, false, false),
+			new Query("repairsPerYear", RepairAggregates.PER_YEAR_SQL, false, false),
+			new Query("repairs.check", RepairAggregates.CHECK_SQL, false, false),
+			new Query("passengersWithStatus", DBproject.COUNT_STATUS, true, false, "W"),
+			// date windows, one partition each once PartitionManager has run
+			new Query("repairs.window", DBproject.REPAIRS_PER_YEAR_IN_RANGE, false, false,
+				Date.valueOf("2014-01-01"), Date.valueOf("2015-01-01")),
+			new Query("schedule.window", DBproject.DEPARTURES_IN_RANGE, false, false,
+				Date.valueOf("2014-05-01"), Date.valueOf("2014-06-01")));
+
+		List<Plan> plans = new ArrayList<Plan>();
+		PooledConnection pc = this._pool.borrow();
+		try {
+			Connection c = pc.connection();
+			for (Query q : queries) {
+				Plan best = null;
+				for (int i = 0; i < RUNS; ++i) {
+					Plan p = explain(c, q);
+					if (best == null || p.executionMs < best.executionMs)
+						best = p;
+				}
+				for (Iterator<String> it = best.seqScans.iterator(); it.hasNext(); )
+					if (rows(c, it.next().split(" ")[0]) < MIN_ROWS)
+						it.remove();
+				plans.add(best);
+			}
+		}finally {
+			this._pool.release(pc);
+		}
+		return plans;
+	}
+
+	/*
+	 * Keys of existing rows, taken from the middle of each table, and keys
+	 * no row has yet for the inserts.
+	 */
+	private long[] keys() throws SQLException {
+		PooledConnection pc = this._pool.borrow();
+		try {
+			Statement stmt = pc.connection().createStatement();
+			ResultSet rs = stmt.executeQuery(
+				"SELECT (SELECT fnum FROM Flight WHERE fnum >= (SELECT max(fnum) / 2 FROM Flight) ORDER BY fnum LIMIT 1), "
+				+ "(SELECT id FROM Customer WHERE id >= (SELECT max(id) / 2 FROM Customer) ORDER BY id LIMIT 1), "
+				+ "(SELECT rnum FROM Reservation WHERE rnum >= (SELECT max(rnum) / 2 FROM Reservation) ORDER BY rnum LIMIT 1), "
+				+ "(SELECT min(id) FROM Plane), (SELECT min(id) FROM Pilot), "
+				+ "(SELECT COALESCE(max(rnum), 0) + 1 FROM Reservation), (SELECT COALESCE(max(fnum), 0) + 1 FROM Flight), "
+				+ "(SELECT GREATEST((SELECT max(id) FROM Plane), (SELECT max(id) FROM Pilot), (SELECT max(id) FROM Technician)) + 1), "
+				+ "(SELECT COALESCE(max(fiid), 0) + 1 FROM FlightInfo)");
+			rs.next();
+			long[] keys = new long[9];
+			for (int i = 0; i < keys.length; ++i) {
+				keys[i] = rs.getLong(i + 1);
+				if (rs.wasNull())
+					throw new SQLException("The database has no data to explain; give a data directory");
+			}
+			rs.close();
+			stmt.close();
+			return keys;
+		}finally {
+			this._pool.release(pc);
+		}
+	}
+
+	/*
+	 * The planner's estimate of the rows in a relation.
+	 */
+	private static long rows(Connection c, String relation) throws SQLException {
+		PreparedStatement stmt = c.prepareStatement("SELECT reltuples::bigint FROM pg_class WHERE relname = ?");
+		stmt.setString(1, relation);
+		ResultSet rs = stmt.executeQuery();
+		long rows = rs.next() ? rs.getLong(1) : Long.MAX_VALUE;
+		rs.close();
+		stmt.close();
+		return rows;
+	}
+
+	/*
+	 * Explains one query on c, rolling back whatever it wrote.
+	 */
+	static Plan explain(Connection c, Query q) throws SQLException {
+		List<String> lines = new ArrayList<String>();
+		boolean autoCommit = c.getAutoCommit();
+		if (q.writes)
+			c.setAutoCommit(false);
+		try {
+			PreparedStatement stmt = c.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + q.sql);
+			for (int i = 0; i < q.params.length; ++i)
+				stmt.setObject(i + 1, q.params[i]);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next())
+				lines.add(rs.getString(1));
+			rs.close();
+			stmt.close();
+		}finally {
+			if (q.writes) {
+				c.rollback();
+				c.setAutoCommit(autoCommit);
+			}
+		}
+		return parse(q, lines);
+	}
+
+	/*
+	 * Reads the shape, buffers and timing out of the text format of
+	 * EXPLAIN.  Node lines are the first line and those starting with
+	 * "->"; CTE, InitPlan and SubPlan headings are kept as structure.
+	 */
+	static Plan parse(Query q, List<String> lines) {
+		StringBuilder shape = new StringBuilder();
+		List<String> seqScans = new ArrayList<String>();
+		long hit = -1, read = 0;
+		double executionMs = 0;
+		for (int i = 0; i < lines.size(); ++i) {
+			String line = lines.get(i);
+			String text = line.trim();
+			boolean node = i == 0 || text.startsWith("->");
+			if (node || text.startsWith("CTE ") || text.startsWith("InitPlan") || text.startsWith("SubPlan")) {
+				if (text.startsWith("->"))
+					text = text.substring(2).trim();
+				int cost = text.indexOf("  (");
+				if (cost >= 0)
+					text = text.substring(0, cost);
+				int depth = line.length() - line.replaceAll("^\\s+", "").length();
+				shape.append(shape.length() == 0 ? "" : " / ").append(depth).append(':').append(text);
+				if (q.hot && text.startsWith("Seq Scan on "))
+					seqScans.add(text.substring("Seq Scan on ".length()));
+			}else if (text.startsWith("Buffers: shared") && hit < 0) {
+				// the first Buffers line belongs to the top node and covers the whole plan
+				hit = number(text, "hit=");
+				read = number(text, "read=");
+			}else if (text.startsWith("Execution Time:") || text.startsWith("Execution time:") || text.startsWith("Total runtime:")) {
+				executionMs = Double.parseDouble(text.replaceAll("[^0-9.]", ""));
+			}
+		}
+		return new Plan(q.name, shape.toString(), Math.max(hit, 0), read, executionMs, seqScans);
+	}
+
+	private static long number(String text, String key) {
+		int at = text.indexOf(key);
+		if (at < 0)
+			return 0;
+		int end = at += key.length();
+		while (end < text.length() && Character.isDigit(text.charAt(end)))
+			++end;
+		return Long.parseLong(text.substring(at, end));
+	}
+
+	/*
+	 * The baseline has one line per query: name, shape and execution time
+	 * separated by tabs.
+	 */
+	private static Map<String, String[]> readBaseline(File file) throws IOException {
+		Map<String, String[]> baseline = new LinkedHashMap<String, String[]>();
+		if (!file.exists())
+			return baseline;
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			for (String line; (line = in.readLine()) != null; ) {
+				String[] f = line.split("\t");
+				if (f.length == 3)
+					baseline.put(f[0], new String[] { f[1], f[2] });
+			}
+		}finally {
+			in.close();
+		}
+		return baseline;
+	}
+
+	private static void writeBaseline(File file, List<Plan> plans) throws IOException {
+		Writer out = new FileWriter(file);
+		try {
+			for (Plan p : plans)
+				out.write(p.name + "\t" + p.shape + "\t" + String.format(Locale.ROOT, "%.3f", p.executionMs) + "\n");
+		}finally {
+			out.close();
+		}
+	}
+
+	private static void writeResults(String file, List<Plan> plans) throws IOException {
+		Writer out = new FileWriter(file);
+		try {
+			out.write("[\n");
+			for (int i = 0; i < plans.size(); ++i) {
+				Plan p = plans.get(i);
+				out.write(String.format(Locale.ROOT,
+					"  {\"query\": \"%s\", \"shape\": %s, \"sharedHit\": %d, \"sharedRead\": %d, \"executionMs\": %.3f, \"seqScans\": %d}%s\n",
+					p.name, AirlineServer.quote(p.shape), p.sharedHit, p.sharedRead, p.executionMs, p.seqScans.size(),
+					i + 1 < plans.size() ? "," : ""));
+			}
+			out.write("]\n");
+		}finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A physical database connection owned by a {@link ConnectionPool}.  Callers
+ * borrow one from the pool, use {@link #connection()} and hand it back with
+ * {@link ConnectionPool#release(PooledConnection)}.
+ *
+ */
+public class PooledConnection {
+	private final ConnectionPool _pool;
+	private final Connection _connection;
+	private final StatementCache _statements;
+	private final long _createdAt;
+	private volatile long _lastUsed;
+
+	PooledConnection(ConnectionPool pool, Connection connection, StatementCache statements) {
+		this._pool = pool;
+		this._connection = connection;
+		this._statements = statements;
+		this._createdAt = System.currentTimeMillis();
+		this._lastUsed = this._createdAt;
+	}
+
+	/**
+	 * @return the pool this connection must be released to
+	 */
+	public ConnectionPool pool() {
+		return this._pool;
+	}
+
+	/**
+	 * @return the underlying JDBC connection
+	 */
+	public Connection connection() {
+		return this._connection;
+	}
+
+	/**
+	 * Method to obtain a cached prepared statement for this connection.
+	 * Callers count each execution in {@link Metrics}, not each call.
+	 *
+	 * @param sql the SQL text with <code>?</code> placeholders
+	 * @return an open prepared statement with its parameters cleared
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		return this._statements.prepare(sql);
+	}
+
+	long createdAt() {
+		return this._createdAt;
+	}
+
+	long lastUsed() {
+		return this._lastUsed;
+	}
+
+	void touch() {
+		this._lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Method to close the physical connection, ignoring any error.
+	 */
+	void close() {
+		this._statements.clear();
+		try {
+			this._connection.close();
+		}catch (SQLException e) {
+			// ignored.
+		}
+	}
+}
@@ -0,0 +1,272 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class sends read-only queries to streaming replicas of the database
+ * and everything else to the primary, so report queries do not compete with
+ * bookings for the primary's connections.
+ *
+ * Reads go to the usable replicas in turn.  A replica is usable while it is
+ * in recovery (a standby) and its replay lag, checked every
+ * <code>checkMillis</code> on a daemon thread, is at most
+ * <code>maxLagMillis</code>.  A replica is only taken to be current once it
+ * has replayed the WAL up to the primary's position read just before the
+ * check, so one whose WAL receiver has disconnected ages like any other
+ * lagging replica.  A replica that refuses a connection is dropped
+ * until its next good check.  With no usable replica, reads go to the
+ * primary.
+ *
+ * After a session writes, its reads go to the primary for
+ * <code>pinMillis</code>, so it reads its own writes even on a lagging
+ * replica.  Other sessions keep reading from the replicas.  The menu is one
+ * session; the HTTP server names the session of each request with
+ * {@link #enterSession(String)}.  Writes, the booking transactions and the change-notified
+ * in-memory indexes always use the primary; only the primary delivers
+ * NOTIFY.
+ *
+ */
+public class ReadRouter implements AutoCloseable {
+	static final String PRIMARY_LSN_SQL = "SELECT pg_current_wal_lsn()::text";
+	// lag in ms: 0 once the primary's WAL position has been replayed, the
+	// age of the last replayed transaction otherwise
+	static final String LAG_SQL = "SELECT pg_is_in_recovery(), CASE WHEN pg_last_wal_replay_lsn() >= ?::pg_lsn "
+		+ "THEN 0 ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, "
+		+ "'Infinity') END::float8";
+
+	private final ConnectionPool _primary;
+	private final Replica[] _replicas;
+	private final long _maxLagMillis;
+	private final long _pinNanos;
+	private final long _checkMillis;
+	private final AtomicInteger _next = new AtomicInteger();
+	// session of the current thread, null for the process's own
+	private static final ThreadLocal<String> SESSION = new ThreadLocal<String>();
+	private static final String LOCAL_SESSION = "";
+	// nanoTime until which each pinned session reads from the primary
+	private final ConcurrentHashMap<String, Long> _pins = new ConcurrentHashMap<String, Long>();
+	private final Thread _checker;
+	private volatile boolean _closed = false;
+
+	/**
+	 * @param primary the pool of the primary
+	 * @param replicas one pool per replica, in order of preference
+	 * @param names the replica names used in messages
+	 * @param maxLagMillis largest replay lag at which a replica still serves reads
+	 * @param pinMillis how long reads stay on the primary after a write
+	 * @param checkMillis how often the replicas are checked
+	 */
+	public ReadRouter(ConnectionPool primary, List<ConnectionPool> replicas, List<String> names,
+			long maxLagMillis, long pinMillis, long checkMillis) {
+		this._primary = primary;
+		this._replicas = new Replica[replicas.size()];
+		for (int i = 0; i < this._replicas.length; ++i)
+			this._replicas[i] = new Replica(names.get(i), replicas.get(i));
+		this._maxLagMillis = maxLagMillis;
+		this._pinNanos = pinMillis * 1000000L;
+		this._checkMillis = checkMillis;
+		checkAll();
+		this._checker = new Thread(this::run, "replica-checker");
+		this._checker.setDaemon(true);
+		this._checker.start();
+	}
+
+	/**
+	 * Method to borrow a connection for a read-only query: from the next
+	 * usable replica unless this client wrote recently, from the primary
+	 * otherwise.  Release it to {@link PooledConnection#pool()}.
+	 *
+	 * @return a connection in auto-commit mode
+	 * @throws java.sql.SQLException when neither a replica nor the primary had a connection
+	 */
+	public PooledConnection borrow() throws SQLException {
+		if (!pinned()) {
+			for (int i = 0; i < this._replicas.length; ++i) {
+				Replica r = this._replicas[(this._next.getAndIncrement() & Integer.MAX_VALUE) % this._replicas.length];
+				if (!r.usable)
+					continue;
+				try {
+					return r.pool.borrow();
+				}catch (SQLException e) {
+					r.down("refused a connection: " + e.getMessage());
+				}
+			}
+		}
+		return this._primary.borrow();
+	}
+
+	/**
+	 * Method to keep the current session's reads on the primary for a while
+	 * after it wrote, so they see the write.
+	 */
+	public void wrote() {
+		this._pins.put(session(), System.nanoTime() + this._pinNanos);
+	}
+
+	/**
+	 * Method to run the rest of this thread's work, until
+	 * {@link #leaveSession()}, as the given session.
+	 *
+	 * @param session the name of the session, e.g. one sent by an HTTP client
+	 */
+	public static void enterSession(String session) {
+		SESSION.set(session);
+	}
+
+	/**
+	 * Method to return this thread to the process's own session.
+	 */
+	public static void leaveSession() {
+		SESSION.remove();
+	}
+
+	private static String session() {
+		String session = SESSION.get();
+		return session == null ? LOCAL_SESSION : session;
+	}
+
+	/**
+	 * @return the largest replay lag a replica may have while serving reads
+	 */
+	public long maxLagMillis() {
+		return this._maxLagMillis;
+	}
+
+	/**
+	 * @return number of replicas currently serving reads
+	 */
+	public int usableCount() {
+		int n = 0;
+		for (Replica r : this._replicas)
+			if (r.usable)
+				++n;
+		return n;
+	}
+
+	private boolean pinned() {
+		Long until = this._pins.get(session());
+		return until != null && System.nanoTime() - until < 0;
+	}
+
+	private void run() {
+		while (!this._closed) {
+			try {
+				Thread.sleep(this._checkMillis);
+			}catch (InterruptedException e) {
+				return;
+			}
+			checkAll();
+			// forget the sessions whose pin ran out
+			long now = System.nanoTime();
+			this._pins.values().removeIf(until -> now - until >= 0);
+		}
+	}
+
+	private void checkAll() {
+		String lsn = primaryLsn();
+		for (Replica r : this._replicas)
+			check(r, lsn);
+	}
+
+	/*
+	 * The primary's current WAL position, or null when it could not be read;
+	 * then no replica counts as caught up.
+	 */
+	private String primaryLsn() {
+		try {
+			PooledConnection pc = this._primary.borrow();
+			try {
+				PreparedStatement stmt = pc.prepare(PRIMARY_LSN_SQL);
+				Metrics.statement();
+				ResultSet rs = stmt.executeQuery();
+				rs.next();
+				String lsn = rs.getString(1);
+				rs.close();
+				return lsn;
+			}finally {
+				this._primary.release(pc);
+			}
+		}catch (SQLException e) {
+			// the replicas' own checks still run, and fail to catch up
+			return null;
+		}
+	}
+
+	/*
+	 * Marks a replica usable when it is a standby within the allowed lag of
+	 * the primary's WAL position lsn.
+	 */
+	private void check(Replica r, String lsn) {
+		PooledConnection pc;
+		try {
+			pc = r.pool.borrow();
+		}catch (SQLException e) {
+			r.down("is unreachable: " + e.getMessage());
+			return;
+		}
+		try {
+			PreparedStatement stmt = pc.prepare(LAG_SQL);
+			stmt.setString(1, lsn);
+			Metrics.statement();
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			boolean standby = rs.getBoolean(1);
+			double lag = rs.getDouble(2);
+			rs.close();
+			if (!standby)
+				r.down("is not a standby");
+			else if (Double.isInfinite(lag))
+				r.down("is behind the primary and has replayed no transaction yet");
+			else if (lag > this._maxLagMillis)
+				r.down("lags " + (long) lag + " ms behind the primary");
+			else
+				r.up();
+		}catch (SQLException e) {
+			r.down("failed the lag check: " + e.getMessage());
+		}finally {
+			r.pool.release(pc);
+		}
+	}
+
+	/**
+	 * Method to stop the checks and close the replica pools.  The primary
+	 * pool is left to its owner.
+	 */
+	@Override
+	public void close() {
+		this._closed = true;
+		this._checker.interrupt();
+		for (Replica r : this._replicas)
+			r.pool.close();
+	}
+
+	private static final class Replica {
+		final String name;
+		final ConnectionPool pool;
+		volatile boolean usable = false;
+		// whether being dropped was logged since it last served reads
+		private boolean _reported = false;
+
+		Replica(String name, ConnectionPool pool) {
+			this.name = name;
+			this.pool = pool;
+		}
+
+		synchronized void up() {
+			if (!this.usable)
+				System.err.println("Replica " + this.name + " serves reads");
+			this.usable = true;
+			this._reported = false;
+		}
+
+		synchronized void down(String reason) {
+			if (this.usable || !this._reported)
+				System.err.println("Replica " + this.name + " " + reason + "; reading from the primary");
+			this.usable = false;
+			this._reported = true;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class gives access to the repair counts per plane and per year that
+ * the triggers in sql/create.sql maintain in RepairsPerPlane and
+ * RepairsPerYear.  The reports behind menus 7 and 8 read these small tables
+ * instead of grouping the whole Repairs table on every call.
+ *
+ */
+public class RepairAggregates {
+	/** Menu 7: repairs per plane, most repaired first. */
+	public static final String PER_PLANE_SQL =
+		"SELECT plane_id, repair_count FROM RepairsPerPlane ORDER BY repair_count DESC, plane_id";
+	/** Menu 8: repairs per year, ascending by year. */
+	public static final String PER_YEAR_SQL =
+		"SELECT repair_year, repair_count FROM RepairsPerYear ORDER BY repair_year";
+
+	static final String REBUILD_SQL = "SELECT rebuild_repair_aggregates()";
+
+	/*
+	 * Every aggregate row that disagrees with a fresh count of Repairs.
+	 */
+	static final String CHECK_SQL =
+		"SELECT 'plane', COALESCE(a.plane_id, b.plane_id), COALESCE(a.repair_count, 0), COALESCE(b.n, 0) "
+		+ "FROM RepairsPerPlane a FULL JOIN "
+		+ "(SELECT plane_id, count(*) AS n FROM Repairs GROUP BY plane_id) b ON a.plane_id = b.plane_id "
+		+ "WHERE COALESCE(a.repair_count, 0) <> COALESCE(b.n, 0) "
+		+ "UNION ALL "
+		+ "SELECT 'year', COALESCE(a.repair_year, b.repair_year), COALESCE(a.repair_count, 0), COALESCE(b.n, 0) "
+		+ "FROM RepairsPerYear a FULL JOIN "
+		+ "(SELECT EXTRACT(YEAR FROM repair_date)::int AS repair_year, count(*) AS n FROM Repairs GROUP BY 1) b "
+		+ "ON a.repair_year = b.repair_year "
+		+ "WHERE COALESCE(a.repair_count, 0) <> COALESCE(b.n, 0)";
+
+	private final ConnectionPool _pool;
+
+	public RepairAggregates(ConnectionPool pool) {
+		this._pool = pool;
+	}
+
+	/**
+	 * Method to compare both aggregates against the Repairs table.  Both
+	 * sides are read from one snapshot, so concurrent repairs do not show up
+	 * as false mismatches.
+	 *
+	 * @return one line per mismatch, empty when the aggregates are consistent
+	 * @throws java.sql.SQLException when the check failed to run
+	 */
+	public List<String> check() throws SQLException {
+		List<String> mismatches = new ArrayList<String>();
+		PooledConnection pc = this._pool.borrow();
+		try {
+			Connection c = pc.connection();
+			c.setAutoCommit(false);
+			Statement stmt = c.createStatement();
+			stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+			ResultSet rs = stmt.executeQuery(CHECK_SQL);
+			while (rs.next())
+				mismatches.add(rs.getString(1) + " " + rs.getString(2) + ": aggregate says "
+					+ rs.getLong(3) + ", Repairs has " + rs.getLong(4));
+			rs.close();
+			stmt.close();
+			c.commit();
+		}finally {
+			this._pool.release(pc);
+		}
+		return mismatches;
+	}
+
+	/**
+	 * Method to recompute both aggregates from scratch.  Writers to Repairs
+	 * wait until the rebuild has committed.
+	 *
+	 * @throws java.sql.SQLException when the rebuild failed
+	 */
+	public void rebuild() throws SQLException {
+		PooledConnection pc = this._pool.borrow();
+		try {
+			Connection c = pc.connection();
+			c.setAutoCommit(false);
+			Statement stmt = c.createStatement();
+			stmt.executeQuery(REBUILD_SQL).close();
+			stmt.close();
+			c.commit();
+		}finally {
+			this._pool.release(pc);
+		}
+	}
+}
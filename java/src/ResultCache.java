@@ -0,0 +1,223 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class keeps the results of read-only report queries (menus 7, 8 and
+ * 9) so that asking again between writes costs no round trip.
+ *
+ * Results are keyed by the query text, with whitespace and trailing
+ * semicolons normalized, and the parameter values.  Each entry names the
+ * tables it was read from.  It is dropped when any of them changes, when it
+ * is older than the time to live, or when the cache is full and it is the
+ * least recently used entry.
+ *
+ * Changes are learned two ways.  DBproject reports the tables its own
+ * statements write as soon as they commit, so a client always reads its own
+ * writes.  Writes by other clients arrive as <code>table_changes</code>
+ * notifications from the statement triggers in sql/create.sql.
+ *
+ * A result is only stored if no table changed while it was being read, so
+ * an invalidation that races with a load cannot leave a stale entry behind.
+ *
+ */
+public class ResultCache {
+	/** Channel the table triggers in sql/create.sql notify on. */
+	public static final String CHANNEL = "table_changes";
+
+	private static final Pattern WRITTEN_TABLE = Pattern.compile(
+		"\\b(?:INSERT\\s+INTO|UPDATE|DELETE\\s+FROM|TRUNCATE(?:\\s+TABLE)?)\\s+([A-Za-z_][A-Za-z0-9_]*)",
+		Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Loads a result on a cache miss.
+	 */
+	public interface Loader {
+		List<List<String>> load() throws SQLException;
+	}
+
+	private final int _maxEntries;
+	private final long _ttlNanos;
+	// guarded by this; in access order, least recently used first
+	private final LinkedHashMap<List<Object>, Entry> _entries;
+	// guarded by this; bumped by every invalidation
+	private long _generation = 0;
+	// guarded by this; nanoTime of the last change of each table
+	private final Map<String, Long> _changedAt = new HashMap<String, Long>();
+	private long _clearedAt = System.nanoTime() - Long.MAX_VALUE / 2;
+
+	/**
+	 * @param maxEntries most results kept at once
+	 * @param ttlMillis how long a result is served, at most
+	 */
+	public ResultCache(int maxEntries, long ttlMillis) {
+		this._maxEntries = maxEntries;
+		this._ttlNanos = ttlMillis * 1000000L;
+		this._entries = new LinkedHashMap<List<Object>, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Method to subscribe to table change notifications.
+	 *
+	 * @param changes the listener delivering the trigger notifications
+	 * @throws java.sql.SQLException when the LISTEN could not be issued
+	 */
+	public void start(ChangeListener changes) throws SQLException {
+		changes.subscribe(CHANNEL, this::onChange);
+	}
+
+	/**
+	 * Method to return a cached result, loading and caching it on a miss.
+	 * The returned list must not be modified.
+	 *
+	 * @param tables the tables the query reads, lower case
+	 * @param query the query text
+	 * @param params the values bound to its placeholders
+	 * @param loader runs the query on a miss
+	 * @return the result
+	 * @throws java.sql.SQLException when the loader failed
+	 */
+	public List<List<String>> get(String[] tables, String query, Object[] params, Loader loader) throws SQLException {
+		List<Object> key = key(query, params);
+		long generation;
+		synchronized (this) {
+			Entry e = this._entries.get(key);
+			if (e != null && System.nanoTime() - e.loadedAt < this._ttlNanos) {
+				Metrics.cacheHit();
+				return e.result;
+			}
+			if (e != null)
+				this._entries.remove(key);
+			generation = this._generation;
+		}
+		Metrics.cacheMiss();
+		List<List<String>> result = Collections.unmodifiableList(loader.load());
+		synchronized (this) {
+			// a table changed while this was read; do not keep what may predate it
+			if (generation != this._generation)
+				return result;
+			this._entries.put(key, new Entry(tables, result));
+			while (this._entries.size() > this._maxEntries) {
+				Iterator<List<Object>> eldest = this._entries.keySet().iterator();
+				eldest.next();
+				eldest.remove();
+				Metrics.cacheEviction();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Method to drop every result read from a table.
+	 *
+	 * @param table the table name, in any case
+	 */
+	public synchronized void invalidate(String table) {
+		String t = table.toLowerCase(Locale.ROOT);
+		++this._generation;
+		this._changedAt.put(t, System.nanoTime());
+		for (Iterator<Entry> it = this._entries.values().iterator(); it.hasNext(); ) {
+			if (Arrays.asList(it.next().tables).contains(t)) {
+				it.remove();
+				Metrics.cacheInvalidation();
+			}
+		}
+	}
+
+	/**
+	 * Method to drop every result.
+	 */
+	public synchronized void clear() {
+		++this._generation;
+		this._entries.clear();
+		this._changedAt.clear();
+		this._clearedAt = System.nanoTime();
+	}
+
+	/**
+	 * @param tables the tables, lower case
+	 * @param millis the time span
+	 * @return whether any of the tables changed in the last millis
+	 */
+	public synchronized boolean changedWithin(String[] tables, long millis) {
+		long since = System.nanoTime() - millis * 1000000L;
+		if (this._clearedAt - since > 0)
+			return true;
+		for (String t : tables) {
+			Long at = this._changedAt.get(t);
+			if (at != null && at - since > 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Method to drop the results read from the tables a statement writes.
+	 *
+	 * @param sql an INSERT, UPDATE, DELETE or TRUNCATE statement
+	 */
+	public void invalidateWritten(String sql) {
+		for (String table : writtenTables(sql))
+			invalidate(table);
+	}
+
+	/**
+	 * @return number of cached results
+	 */
+	public synchronized int size() {
+		return this._entries.size();
+	}
+
+	/*
+	 * The tables named after INSERT INTO, UPDATE, DELETE FROM and TRUNCATE,
+	 * lower case.
+	 */
+	static List<String> writtenTables(String sql) {
+		List<String> tables = new ArrayList<String>(2);
+		Matcher m = WRITTEN_TABLE.matcher(sql);
+		while (m.find())
+			tables.add(m.group(1).toLowerCase(Locale.ROOT));
+		return tables;
+	}
+
+	static List<Object> key(String query, Object[] params) {
+		String q = query.trim().replaceAll("\\s+", " ");
+		while (q.endsWith(";"))
+			q = q.substring(0, q.length() - 1).trim();
+		List<Object> key = new ArrayList<Object>(params.length + 1);
+		key.add(q);
+		key.addAll(Arrays.asList(params));
+		return key;
+	}
+
+	/*
+	 * Notification handler: the payload is the changed table, or null when
+	 * notifications may have been lost.
+	 */
+	private void onChange(String payload) {
+		if (payload == null)
+			clear();
+		else
+			invalidate(payload);
+	}
+
+	private static final class Entry {
+		final String[] tables;
+		final List<List<String>> result;
+		final long loadedAt = System.nanoTime();
+
+		Entry(String[] tables, List<List<String>> result) {
+			this.tables = tables;
+			this.result = result;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * A forward-only cursor over a query result that keeps memory use constant
+ * regardless of the result size.  The query runs inside a transaction with a
+ * fetch size, which makes the PostgreSQL driver read the rows through a
+ * server-side portal <code>fetchSize</code> rows at a time instead of
+ * buffering the whole result on the client.
+ *
+ * The cursor holds a pooled connection until it is exhausted or closed, so
+ * it must always be closed.  {@link #row()} returns the same array on every
+ * call; copy it if a row has to outlive the next call to {@link #next()}.
+ *
+ */
+public class RowCursor implements AutoCloseable {
+	private final ConnectionPool _pool;
+	private PooledConnection _pc;
+	private final PreparedStatement _stmt;
+	private final boolean _ownsStatement;
+	private final ResultSet _rs;
+	private final String[] _columnNames;
+	private final String[] _row;
+	private final int _fetchSize;
+	private int _rowCount = 0;
+
+	/**
+	 * Opens the cursor and issues the query.
+	 *
+	 * @param pool the pool the connection is borrowed from
+	 * @param query the input query string, with <code>?</code> placeholders when params are given
+	 * @param params the values bound to the placeholders, in order
+	 * @param cached whether to take the statement from the prepared statement cache
+	 * @param fetchSize number of rows fetched per round trip
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	RowCursor(ConnectionPool pool, String query, Object[] params, boolean cached, int fetchSize) throws SQLException {
+		this(pool.borrow(), query, params, cached, fetchSize);
+	}
+
+	/**
+	 * Issues the query on a connection already borrowed, e.g. from a read
+	 * replica; it is released to its own pool when the cursor closes.
+	 *
+	 * @param pc the borrowed connection
+	 * @param query the input query string, with <code>?</code> placeholders when params are given
+	 * @param params the values bound to the placeholders, in order
+	 * @param cached whether to take the statement from the prepared statement cache
+	 * @param fetchSize number of rows fetched per round trip
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	RowCursor(PooledConnection pc, String query, Object[] params, boolean cached, int fetchSize) throws SQLException {
+		this._pool = pc.pool();
+		this._fetchSize = fetchSize;
+		this._pc = pc;
+		PreparedStatement stmt = null;
+		try {
+			Connection c = this._pc.connection();
+			// the driver only streams through a portal outside auto-commit
+			c.setAutoCommit(false);
+			this._ownsStatement = !cached;
+			stmt = cached ? this._pc.prepare(query) : c.prepareStatement(query);
+			this._stmt = stmt;
+			for (int i = 0; i < params.length; ++i)
+				this._stmt.setObject(i + 1, params[i]);
+			this._stmt.setFetchSize(fetchSize);
+			Metrics.statement();
+			this._rs = this._stmt.executeQuery();
+
+			ResultSetMetaData rsmd = this._rs.getMetaData();
+			int numCol = rsmd.getColumnCount();
+			this._columnNames = new String[numCol];
+			for (int i = 1; i <= numCol; ++i)
+				this._columnNames[i - 1] = rsmd.getColumnName(i);
+			this._row = new String[numCol];
+		}catch (SQLException | RuntimeException e) {
+			if (!cached && stmt != null) {
+				// not in the cache, so nothing else would close it on the server
+				try {
+					stmt.close();
+				}catch (SQLException ce) {
+					// ignored, the original error is reported.
+				}
+			}
+			this._pool.release(this._pc);
+			this._pc = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to advance to the next row.  The connection is handed back to
+	 * the pool as soon as the last row has been read.
+	 *
+	 * @return true if a row is available through {@link #row()}
+	 * @throws java.sql.SQLException when fetching the next batch failed
+	 */
+	public boolean next() throws SQLException {
+		if (this._pc == null)
+			return false;
+		try {
+			// every fetchSize rows the driver goes back for the next batch
+			if (this._rowCount > 0 && this._rowCount % this._fetchSize == 0)
+				Metrics.roundTrip();
+			if (!this._rs.next()) {
+				close();
+				return false;
+			}
+			for (int i = 0; i < this._row.length; ++i)
+				this._row[i] = this._rs.getString(i + 1);
+			++this._rowCount;
+			if (Metrics.ENABLED)
+				Metrics.rows(1, Metrics.bytes(this._row));
+			return true;
+		}catch (SQLException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the values of the current row; the array is reused by {@link #next()}
+	 */
+	public String[] row() {
+		return this._row;
+	}
+
+	/**
+	 * @return the column names of the result
+	 */
+	public String[] columnNames() {
+		return this._columnNames;
+	}
+
+	/**
+	 * @return number of rows read so far
+	 */
+	public int rowCount() {
+		return this._rowCount;
+	}
+
+	/**
+	 * Method to end the transaction and hand the connection back to the pool.
+	 * Safe to call more than once.
+	 */
+	@Override
+	public void close() {
+		if (this._pc == null)
+			return;
+		try {
+			this._rs.close();
+			if (this._ownsStatement)
+				this._stmt.close();
+		}catch (SQLException e) {
+			// ignored, the pool rolls back and resets the connection.
+		}finally {
+			this._pool.release(this._pc);
+			this._pc = null;
+		}
+	}
+}
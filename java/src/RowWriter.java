@@ -0,0 +1,406 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class renders query results as they stream in: as an aligned text
+ * table for the terminal, or as CSV, JSON Lines or a JSON array for export.
+ *
+ * Output is formatted into one reusable character buffer, encoded to UTF-8
+ * into one reusable byte buffer of <code>dbproject.output.bufferSize</code>
+ * bytes (default 256 KB) and written to a channel whenever that fills, so a
+ * row costs no allocation and a large result only a few system calls.  For
+ * files the channel is a {@link FileChannel}.
+ *
+ * The table format sizes its columns from the header and the first rows
+ * (one page, or 200 rows without pagination) and prints everything after
+ * them as it arrives.  With a page size it stops after every page and asks
+ * whether to go on.
+ *
+ */
+public abstract class RowWriter implements AutoCloseable {
+	private static final int BUFFER_SIZE = Integer.getInteger("dbproject.output.bufferSize", 1 << 18);
+
+	private final WritableByteChannel _channel;
+	private final boolean _ownsChannel;
+	private final CharBuffer _chars = CharBuffer.allocate(8192);
+	private final ByteBuffer _bytes = ByteBuffer.allocate(BUFFER_SIZE);
+	private final CharsetEncoder _encoder = StandardCharsets.UTF_8.newEncoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	protected RowWriter(WritableByteChannel channel, boolean ownsChannel) {
+		this._channel = channel;
+		this._ownsChannel = ownsChannel;
+	}
+
+	/**
+	 * @param out the stream to print to, e.g. standard out; it is not closed
+	 * @param pageSize rows per page, 0 for no pagination
+	 * @param in where the answer to the page prompt is read
+	 * @return a writer printing an aligned table
+	 */
+	public static RowWriter table(OutputStream out, int pageSize, BufferedReader in) {
+		return new Table(Channels.newChannel(out), false, pageSize, in);
+	}
+
+	/**
+	 * @param channel where the CSV is written; it is closed with the writer
+	 * @return a writer of RFC 4180 CSV with a header line
+	 */
+	public static RowWriter csv(WritableByteChannel channel) {
+		return new Csv(channel);
+	}
+
+	/**
+	 * @param channel where the lines are written; it is closed with the writer
+	 * @return a writer of one JSON object per row
+	 */
+	public static RowWriter jsonLines(WritableByteChannel channel) {
+		return new JsonLines(channel, false);
+	}
+
+	/**
+	 * @param channel where the array is written; it is closed with the writer
+	 * @return a writer of one JSON array with an object per row
+	 */
+	public static RowWriter json(WritableByteChannel channel) {
+		return new JsonLines(channel, true);
+	}
+
+	/**
+	 * Method to create or truncate a file and return a writer for it.  The
+	 * format follows the extension: <code>.jsonl</code> for JSON Lines,
+	 * <code>.json</code> for a JSON array, <code>.csv</code> for CSV, and a
+	 * text table otherwise.
+	 *
+	 * @param file the file to write
+	 * @return a writer that closes the file when it is closed
+	 * @throws java.io.IOException when the file could not be opened
+	 */
+	public static RowWriter open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+			StandardOpenOption.WRITE);
+		String name = file.getFileName().toString().toLowerCase();
+		if (name.endsWith(".jsonl"))
+			return new JsonLines(channel, false);
+		if (name.endsWith(".json"))
+			return new JsonLines(channel, true);
+		if (name.endsWith(".csv"))
+			return new Csv(channel);
+		return new Table(channel, true, 0, null);
+	}
+
+	/**
+	 * Called once before the first row.
+	 *
+	 * @param names the column names of the result
+	 * @throws java.io.IOException when writing failed
+	 */
+	public abstract void columns(String[] names) throws IOException;
+
+	/**
+	 * Called for every row.  The array may be reused once this returns.
+	 *
+	 * @param row the values of the row, null for SQL NULL
+	 * @return false if no more rows are wanted
+	 * @throws java.io.IOException when writing failed
+	 */
+	public abstract boolean row(String[] row) throws IOException;
+
+	/**
+	 * Method to write what is still buffered once the last row was given.
+	 *
+	 * @throws java.io.IOException when writing failed
+	 */
+	public void finish() throws IOException {
+		flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		}finally {
+			if (this._ownsChannel)
+				this._channel.close();
+		}
+	}
+
+	protected final void append(char c) throws IOException {
+		if (!this._chars.hasRemaining())
+			encode();
+		this._chars.put(c);
+	}
+
+	protected final void append(String s) throws IOException {
+		for (int off = 0, len = s.length(); off < len; ) {
+			if (!this._chars.hasRemaining())
+				encode();
+			int n = Math.min(this._chars.remaining(), len - off);
+			this._chars.put(s, off, off + n);
+			off += n;
+		}
+	}
+
+	protected final void pad(int n) throws IOException {
+		for (int i = 0; i < n; ++i)
+			append(' ');
+	}
+
+	/*
+	 * Encodes the buffered characters, writing the bytes out whenever the
+	 * byte buffer fills.  A trailing high surrogate waits for its pair.
+	 */
+	private void encode() throws IOException {
+		this._chars.flip();
+		while (this._encoder.encode(this._chars, this._bytes, false).isOverflow())
+			drain();
+		this._chars.compact();
+	}
+
+	private void drain() throws IOException {
+		this._bytes.flip();
+		while (this._bytes.hasRemaining())
+			this._channel.write(this._bytes);
+		this._bytes.clear();
+	}
+
+	/**
+	 * Method to write everything formatted so far to the channel.
+	 *
+	 * @throws java.io.IOException when writing failed
+	 */
+	public final void flush() throws IOException {
+		encode();
+		drain();
+	}
+
+	/**
+	 * Tab-free text table with columns padded to a common width.
+	 */
+	static final class Table extends RowWriter {
+		private static final int SAMPLE = 200;
+		private final int _pageSize;
+		private final BufferedReader _in;
+		private final int _sample;
+		private String[] _names;
+		private int[] _widths;
+		private List<String[]> _pending = new ArrayList<String[]>();
+		private long _printed = 0;
+
+		Table(WritableByteChannel channel, boolean ownsChannel, int pageSize, BufferedReader in) {
+			super(channel, ownsChannel);
+			this._pageSize = in == null ? 0 : pageSize;
+			this._in = in;
+			this._sample = this._pageSize > 0 ? this._pageSize : SAMPLE;
+		}
+
+		@Override
+		public void columns(String[] names) {
+			this._names = names.clone();
+		}
+
+		@Override
+		public boolean row(String[] row) throws IOException {
+			if (this._pending != null) {
+				// still sizing the columns
+				this._pending.add(row.clone());
+				if (this._pending.size() >= this._sample)
+					printPending();
+				return true;
+			}
+			if (this._pageSize > 0 && this._printed % this._pageSize == 0 && !more())
+				return false;
+			print(row);
+			return true;
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (this._pending != null && !this._pending.isEmpty())
+				printPending();
+			flush();
+		}
+
+		private void printPending() throws IOException {
+			this._widths = new int[this._names.length];
+			for (int i = 0; i < this._names.length; ++i)
+				this._widths[i] = this._names[i].length();
+			for (String[] row : this._pending)
+				for (int i = 0; i < row.length; ++i)
+					this._widths[i] = Math.max(this._widths[i], String.valueOf(row[i]).length());
+			print(this._names);
+			for (int i = 0; i < this._widths.length; ++i) {
+				for (int j = 0; j < this._widths[i]; ++j)
+					append('-');
+				append(i + 1 < this._widths.length ? "  " : "\n");
+			}
+			List<String[]> pending = this._pending;
+			this._pending = null;
+			this._printed = 0;
+			for (String[] row : pending)
+				print(row);
+		}
+
+		private void print(String[] row) throws IOException {
+			for (int i = 0; i < row.length; ++i) {
+				String v = String.valueOf(row[i]);
+				append(v);
+				if (i + 1 < row.length)
+					pad(this._widths[i] - v.length() + 2);
+			}
+			append('\n');
+			if (row != this._names)
+				++this._printed;
+		}
+
+		/*
+		 * Asks at the end of a page whether to print the next one.
+		 */
+		private boolean more() throws IOException {
+			append("-- more (Enter for the next page, q to stop) --");
+			flush();
+			String answer = this._in.readLine();
+			return answer != null && !answer.trim().toLowerCase().startsWith("q");
+		}
+	}
+
+	/**
+	 * RFC 4180 CSV: fields holding a comma, quote or line break are quoted,
+	 * and NULL is an empty field.
+	 */
+	static final class Csv extends RowWriter {
+		Csv(WritableByteChannel channel) {
+			super(channel, true);
+		}
+
+		@Override
+		public void columns(String[] names) throws IOException {
+			line(names);
+		}
+
+		@Override
+		public boolean row(String[] row) throws IOException {
+			line(row);
+			return true;
+		}
+
+		private void line(String[] values) throws IOException {
+			for (int i = 0; i < values.length; ++i) {
+				if (i > 0)
+					append(',');
+				String v = values[i];
+				if (v == null)
+					continue;
+				if (!needsQuotes(v)) {
+					append(v);
+					continue;
+				}
+				append('"');
+				for (int j = 0; j < v.length(); ++j) {
+					char c = v.charAt(j);
+					if (c == '"')
+						append('"');
+					append(c);
+				}
+				append('"');
+			}
+			append("\r\n");
+		}
+
+		private static boolean needsQuotes(String v) {
+			for (int i = 0; i < v.length(); ++i) {
+				char c = v.charAt(i);
+				if (c == ',' || c == '"' || c == '\n' || c == '\r')
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * JSON Lines: one object per row keyed by column name, values as
+	 * strings and NULL as null.  As an array the same objects are separated
+	 * by commas and enclosed in brackets, one per line.
+	 */
+	static final class JsonLines extends RowWriter {
+		private final boolean _array;
+		// the escaped keys, each with its opening brace or comma
+		private String[] _keys;
+		private boolean _first = true;
+		private boolean _closed = false;
+
+		JsonLines(WritableByteChannel channel, boolean array) {
+			super(channel, true);
+			this._array = array;
+		}
+
+		@Override
+		public void columns(String[] names) {
+			this._keys = new String[names.length];
+			for (int i = 0; i < names.length; ++i)
+				this._keys[i] = (i == 0 ? "{" : ", ") + AirlineServer.quote(names[i]) + ": ";
+		}
+
+		@Override
+		public boolean row(String[] row) throws IOException {
+			if (this._array)
+				append(this._first ? "[\n" : ",\n");
+			this._first = false;
+			for (int i = 0; i < row.length; ++i) {
+				append(this._keys[i]);
+				if (row[i] == null)
+					append("null");
+				else
+					string(row[i]);
+			}
+			append(row.length == 0 ? "{}" : "}");
+			if (!this._array)
+				append('\n');
+			return true;
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (this._array && !this._closed) {
+				append(this._first ? "[]\n" : "\n]\n");
+				this._closed = true;
+			}
+			super.finish();
+		}
+
+		private void string(String s) throws IOException {
+			append('"');
+			for (int i = 0; i < s.length(); ++i) {
+				char c = s.charAt(i);
+				switch (c) {
+					case '"': append("\\\""); break;
+					case '\\': append("\\\\"); break;
+					case '\n': append("\\n"); break;
+					case '\r': append("\\r"); break;
+					case '\t': append("\\t"); break;
+					default:
+						if (c < 0x20)
+							append(String.format("\\u%04x", (int) c));
+						else
+							append(c);
+				}
+			}
+			append('"');
+		}
+	}
+}
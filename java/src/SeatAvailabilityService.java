@@ -0,0 +1,182 @@
+import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class answers "how many seats are left on flight N" from memory.
+ *
+ * At startup it loads, for every flight, its departure date, the capacity of
+ * the plane assigned through FlightInfo and the number of tickets sold
+ * (<code>Flight.num_sold</code>).  Lookups are a hash probe with no database
+ * round trip.  BookFlight reports the new <code>num_sold</code> after each
+ * commit, and the <code>seat_changes</code> notifications sent by the triggers
+ * on Flight, Reservation, FlightInfo and Plane make it reload what other
+ * writers changed.
+ *
+ * A full reload writes into the live index, so lookups keep being answered
+ * meanwhile.  Flights reloaded or booked while it runs are newer than what
+ * it read, so it leaves them alone.
+ *
+ */
+public class SeatAvailabilityService {
+	/** Channel the seat triggers in sql/create.sql notify on. */
+	public static final String CHANNEL = "seat_changes";
+
+	static final String LOAD_SQL =
+		"SELECT F.fnum, F.actual_departure_date, F.num_sold, COALESCE(MAX(P.seats), 0) "
+		+ "FROM Flight F LEFT JOIN FlightInfo FI ON FI.flight_id = F.fnum "
+		+ "LEFT JOIN Plane P ON P.id = FI.plane_id ";
+	static final String LOAD_ALL_SQL = LOAD_SQL + "GROUP BY F.fnum";
+	static final String LOAD_ONE_SQL = LOAD_SQL + "WHERE F.fnum = ? GROUP BY F.fnum";
+
+	private final ConnectionPool _pool;
+	private final ConcurrentHashMap<Integer, FlightSeats> _flights = new ConcurrentHashMap<Integer, FlightSeats>();
+	// flights updated while a full reload runs, null otherwise
+	private volatile Set<Integer> _touched = null;
+
+	public SeatAvailabilityService(ConnectionPool pool) {
+		this._pool = pool;
+	}
+
+	/**
+	 * Method to subscribe to seat change notifications and load the index.
+	 *
+	 * @param changes the listener delivering the trigger notifications
+	 * @throws java.sql.SQLException when the index could not be loaded
+	 */
+	public void start(ChangeListener changes) throws SQLException {
+		// subscribe first so that no change slips in between load and LISTEN
+		changes.subscribe(CHANNEL, this::onChange);
+		reloadAll();
+	}
+
+	/**
+	 * Method to look up the seats of a flight.  A flight that is not in the
+	 * index yet (e.g. just added by another client) is loaded on demand.
+	 *
+	 * @param fnum the flight number
+	 * @return the seat counters, or null if there is no such flight
+	 * @throws java.sql.SQLException when loading a missing flight failed
+	 */
+	public FlightSeats lookup(int fnum) throws SQLException {
+		FlightSeats seats = this._flights.get(fnum);
+		if (seats == null)
+			seats = reload(fnum);
+		return seats;
+	}
+
+	/**
+	 * Method to record the result of a committed booking or cancellation.
+	 *
+	 * @param fnum the flight number
+	 * @param numSold the value of Flight.num_sold after the commit
+	 */
+	public void onSold(int fnum, int numSold) {
+		touch(fnum);
+		FlightSeats seats = this._flights.get(fnum);
+		if (seats != null)
+			seats.sold = numSold;
+	}
+
+	/**
+	 * @return number of flights in the index
+	 */
+	public int size() {
+		return this._flights.size();
+	}
+
+	/*
+	 * Notification handler: the payload is a flight number, "*" when a plane
+	 * changed, or null when notifications may have been lost.
+	 */
+	private void onChange(String payload) {
+		try {
+			if (payload == null || payload.equals("*"))
+				reloadAll();
+			else
+				reload(Integer.parseInt(payload));
+		}catch (SQLException | NumberFormatException e) {
+			System.err.println("Seat index refresh failed (" + payload + "): " + e.getMessage());
+		}
+	}
+
+	private synchronized void reloadAll() throws SQLException {
+		final Set<Integer> touched = ConcurrentHashMap.newKeySet();
+		this._touched = touched;
+		try {
+			BitSet seen = new BitSet();
+			RowCursor cursor = new RowCursor(this._pool, LOAD_ALL_SQL, new Object[0], true, 10000);
+			try {
+				while (cursor.next()) {
+					FlightSeats seats = toSeats(cursor.row());
+					if (seats.fnum >= 0)
+						seen.set(seats.fnum);
+					// atomic per flight, so a concurrent update is either skipped or applied after
+					this._flights.compute(seats.fnum, (fnum, old) -> touched.contains(fnum) ? old : seats);
+				}
+			}finally {
+				cursor.close();
+			}
+			this._flights.keySet().removeIf(fnum -> fnum >= 0 && !seen.get(fnum) && !touched.contains(fnum));
+		}finally {
+			this._touched = null;
+		}
+	}
+
+	/*
+	 * Marks a flight as newer than what a running full reload read.
+	 */
+	private void touch(int fnum) {
+		Set<Integer> touched = this._touched;
+		if (touched != null)
+			touched.add(fnum);
+	}
+
+	private FlightSeats reload(int fnum) throws SQLException {
+		touch(fnum);
+		RowCursor cursor = new RowCursor(this._pool, LOAD_ONE_SQL, new Object[] { fnum }, true, 1);
+		try {
+			if (!cursor.next()) {
+				this._flights.remove(fnum);
+				return null;
+			}
+			FlightSeats seats = toSeats(cursor.row());
+			this._flights.put(fnum, seats);
+			return seats;
+		}finally {
+			cursor.close();
+		}
+	}
+
+	private static FlightSeats toSeats(String[] row) {
+		return new FlightSeats(Integer.parseInt(row[0]), row[1], Integer.parseInt(row[3]), Integer.parseInt(row[2]));
+	}
+
+	/**
+	 * Seat counters of one flight.
+	 */
+	public static final class FlightSeats {
+		public final int fnum;
+		/** departure date as yyyy-mm-dd */
+		public final String departureDate;
+		/** seats of the assigned plane, 0 if none is assigned */
+		public final int capacity;
+		volatile int sold;
+
+		FlightSeats(int fnum, String departureDate, int capacity, int sold) {
+			this.fnum = fnum;
+			this.departureDate = departureDate;
+			this.capacity = capacity;
+			this.sold = sold;
+		}
+
+		public int sold() {
+			return this.sold;
+		}
+
+		public int available() {
+			return Math.max(0, this.capacity - this.sold);
+		}
+	}
+}
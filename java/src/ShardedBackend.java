@@ -0,0 +1,473 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An {@link AirlineBackend} that spreads the flights over several databases
+ * (shards), each holding the full schema of sql/create.sql.
+ *
+ * Flight, Reservation, FlightInfo and Schedule are partitioned by flight
+ * number: the rows of flight N live on shard {@link #shardOf(int, int)}, so a
+ * flight's bookings, seat counters and plane assignment are always on one
+ * database and keep their foreign keys.  Plane, Pilot, Customer and
+ * Technician are small and replicated to every shard.  Repairs and the
+ * repair aggregates stay on shard 0, the database named on the command line,
+ * which also hands out every generated key so they are unique across shards.
+ *
+ * Operations on one flight (add, book, seats) go to its shard alone.
+ * Aggregates over all flights, like the passenger count of a status, run on
+ * every shard in parallel and their partial results are merged.
+ *
+ * The number of shards is part of the data layout: changing it means
+ * reloading with <code>--load-shards</code>.
+ *
+ */
+public class ShardedBackend implements AirlineBackend, AutoCloseable {
+	static final String COUNT_BY_STATUS = "SELECT status, count(*) FROM Reservation GROUP BY status";
+
+	// data files partitioned by flight number, with the column holding it
+	private static final String[][] PARTITIONED = {
+		{ "flights.csv", "0" },
+		{ "reservation.csv", "2" },
+		{ "flightinfo.csv", "1" },
+		{ "schedule.csv", "1" },
+	};
+	private static final String[] REPLICATED = { "customer.csv", "pilots.csv", "planes.csv", "technician.csv" };
+	private static final String[] HOME_ONLY = { "repairs.csv" };
+
+	// sequences of the partitioned tables, moved past the keys of every shard
+	private static final String[][] SEQUENCES = {
+		{ IdAllocator.FLIGHT, "Flight", "fnum" },
+		{ IdAllocator.FLIGHT_INFO, "FlightInfo", "fiid" },
+		{ IdAllocator.RESERVATION, "Reservation", "rnum" },
+	};
+
+	private final DBproject _home;
+	private final Shard[] _shards;
+	private final ExecutorService _workers;
+
+	/**
+	 * @param home the client of shard 0, which keeps Repairs and the key sequences
+	 * @param pools one pool per further shard; closed with this backend
+	 * @param names the shard names used in messages, shard 0 first
+	 */
+	public ShardedBackend(DBproject home, List<ConnectionPool> pools, List<String> names) {
+		this._home = home;
+		this._shards = new Shard[pools.size() + 1];
+		this._shards[0] = new Shard(names.get(0), home.pool(), home.ids());
+		for (int i = 1; i < this._shards.length; ++i)
+			this._shards[i] = new Shard(names.get(i), pools.get(i - 1), home.ids());
+		this._workers = Executors.newFixedThreadPool(this._shards.length, r -> {
+			Thread t = new Thread(r, "shard-worker");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Method to map a flight number to its shard.  The number is mixed
+	 * first so that consecutive flights, which the hi/lo allocator hands out
+	 * in blocks, spread evenly.
+	 *
+	 * @param fnum the flight number
+	 * @param shards the number of shards
+	 * @return the shard holding the flight, in [0, shards)
+	 */
+	static int shardOf(int fnum, int shards) {
+		int h = fnum * 0x9E3779B9;
+		h ^= h >>> 16;
+		return Math.floorMod(h, shards);
+	}
+
+	private Shard shard(int fnum) {
+		return this._shards[shardOf(fnum, this._shards.length)];
+	}
+
+	/**
+	 * @return number of shards, including shard 0
+	 */
+	public int size() {
+		return this._shards.length;
+	}
+
+	/**
+	 * Method to load the seat index of every shard, in parallel.
+	 *
+	 * @throws java.sql.SQLException when an index could not be loaded
+	 */
+	public void start() throws SQLException {
+		List<Callable<Object>> loads = new ArrayList<Callable<Object>>();
+		for (Shard s : this._shards)
+			loads.add(() -> s.seats());
+		gather(loads);
+	}
+
+	@Override
+	public int addPlane(String make, String model, int age, int seats) throws SQLException {
+		int id = this._home.addPlane(make, model, age, seats);
+		replicate("Plane", id, DBproject.INSERT_PLANE, id, make, model, age, seats);
+		return id;
+	}
+
+	@Override
+	public int addPilot(String fullName, String nationality) throws SQLException {
+		int id = this._home.addPilot(fullName, nationality);
+		replicate("Pilot", id, DBproject.INSERT_PILOT, id, fullName, nationality);
+		return id;
+	}
+
+	@Override
+	public int addTechnician(String fullName) throws SQLException {
+		int id = this._home.addTechnician(fullName);
+		replicate("Technician", id, DBproject.INSERT_TECHNICIAN, id, fullName);
+		return id;
+	}
+
+	/*
+	 * Copies a reference row shard 0 has just inserted to the other shards.
+	 * If any shard fails, the row is deleted again everywhere it was written,
+	 * so no shard is left with a row the others lack.
+	 */
+	private void replicate(String table, int id, String insert, Object... params) throws SQLException {
+		List<Future<Integer>> inserts = new ArrayList<Future<Integer>>();
+		for (int i = 1; i < this._shards.length; ++i) {
+			Shard s = this._shards[i];
+			inserts.add(this._workers.submit(() -> s.update(insert, params)));
+		}
+		SQLException failure = null;
+		List<Shard> written = new ArrayList<Shard>();
+		written.add(this._shards[0]);
+		for (int i = 0; i < inserts.size(); ++i) {
+			try {
+				await(inserts.get(i));
+				written.add(this._shards[i + 1]);
+			}catch (SQLException e) {
+				if (failure == null)
+					failure = new SQLException("Shard " + this._shards[i + 1].name + ": " + e.getMessage(), e.getSQLState(), e);
+			}
+		}
+		if (failure == null)
+			return;
+		for (Shard s : written) {
+			try {
+				s.update("DELETE FROM " + table + " WHERE id = ?", id);
+			}catch (SQLException e) {
+				failure.addSuppressed(e);
+			}
+		}
+		throw failure;
+	}
+
+	@Override
+	public int addFlight(int cost, int numSold, int numStops, String departureDate, String arrivalDate,
+		String arrivalAirport, String departureAirport, int pilotId, int planeId) throws SQLException {
+		// the reference tables are the same everywhere, so shard 0's index answers
+		this._home.checkExists(IdIndex.PILOT, pilotId);
+		this._home.checkExists(IdIndex.PLANE, planeId);
+		int fnum = this._home.ids().nextInt(IdAllocator.FLIGHT);
+		int fiid = this._home.ids().nextInt(IdAllocator.FLIGHT_INFO);
+		shard(fnum).update(DBproject.ADD_FLIGHT, DBproject.addFlightParams(fnum, fiid, cost, numSold, numStops,
+			departureDate, arrivalDate, arrivalAirport, departureAirport, pilotId, planeId));
+		return fnum;
+	}
+
+	@Override
+	public BookingEngine.Booking bookFlight(int cid, int fnum) throws SQLException {
+		this._home.checkExists(IdIndex.CUSTOMER, cid);
+		Shard s = shard(fnum);
+		BookingEngine.Booking booking = s.bookings.book(cid, fnum);
+		SeatAvailabilityService seats = s.loadedSeats();
+		if (booking.numSold >= 0 && seats != null)
+			seats.onSold(fnum, booking.numSold);
+		return booking;
+	}
+
+	@Override
+	public SeatAvailabilityService.FlightSeats availableSeats(int fnum) throws SQLException {
+		return shard(fnum).seats().lookup(fnum);
+	}
+
+	@Override
+	public List<List<String>> repairsPerPlane() throws SQLException {
+		return this._home.repairsPerPlane();
+	}
+
+	@Override
+	public List<List<String>> repairsPerYear() throws SQLException {
+		return this._home.repairsPerYear();
+	}
+
+	@Override
+	public int passengersWithStatus(String status) throws SQLException {
+		long total = 0;
+		for (List<List<String>> counts : scatter(DBproject.COUNT_STATUS, status))
+			total += Long.parseLong(counts.get(0).get(0));
+		return (int) total;
+	}
+
+	/**
+	 * Method to count the reservations of every status over all shards.
+	 *
+	 * @return the count of every status, by status
+	 * @throws java.sql.SQLException when a shard could not be counted
+	 */
+	public Map<String, Long> passengersByStatus() throws SQLException {
+		Map<String, Long> merged = new TreeMap<String, Long>();
+		for (List<List<String>> counts : scatter(COUNT_BY_STATUS))
+			for (List<String> row : counts)
+				merged.merge(row.get(0), Long.parseLong(row.get(1)), Long::sum);
+		return merged;
+	}
+
+	/**
+	 * Method to list the departures in a date range across every shard,
+	 * merged in departure order.
+	 *
+	 * @param from the first day, as yyyy-mm-dd
+	 * @param to the day after the last, as yyyy-mm-dd
+	 * @return one (id, flight number, departure, arrival) row per departure
+	 * @throws java.sql.SQLException when the schedule of a shard could not be read
+	 */
+	public List<List<String>> departures(String from, String to) throws SQLException {
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (List<List<String>> part : scatter(DBproject.DEPARTURES_IN_RANGE, java.sql.Date.valueOf(from),
+				java.sql.Date.valueOf(to)))
+			rows.addAll(part);
+		// ISO dates sort as text; ties by id, like the query
+		rows.sort(Comparator.<List<String>, String>comparing(r -> r.get(2))
+			.thenComparingInt(r -> Integer.parseInt(r.get(0))));
+		return rows;
+	}
+
+	/**
+	 * @return the pool of every shard by name, shard 0 first
+	 */
+	public Map<String, ConnectionPool> pools() {
+		Map<String, ConnectionPool> pools = new LinkedHashMap<String, ConnectionPool>();
+		for (Shard s : this._shards)
+			pools.put(s.name, s.pool);
+		return pools;
+	}
+
+	/**
+	 * Method to run a read-only query on every shard at once.
+	 *
+	 * @param query the query text
+	 * @param params the values bound to its placeholders
+	 * @return the result of every shard, shard 0 first
+	 * @throws java.sql.SQLException when the query failed on a shard
+	 */
+	public List<List<List<String>>> scatter(String query, Object... params) throws SQLException {
+		List<Callable<List<List<String>>>> queries = new ArrayList<Callable<List<List<String>>>>();
+		for (Shard s : this._shards)
+			queries.add(() -> DBproject.queryResult(s.pool.borrow(), query, params));
+		return gather(queries);
+	}
+
+	private <T> List<T> gather(List<? extends Callable<T>> tasks) throws SQLException {
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		for (Callable<T> task : tasks)
+			futures.add(this._workers.submit(task));
+		List<T> results = new ArrayList<T>(futures.size());
+		for (int i = 0; i < futures.size(); ++i) {
+			try {
+				results.add(await(futures.get(i)));
+			}catch (SQLException e) {
+				throw new SQLException("Shard " + this._shards[i].name + ": " + e.getMessage(), e.getSQLState(), e);
+			}
+		}
+		return results;
+	}
+
+	private static <T> T await(Future<T> f) throws SQLException {
+		try {
+			return f.get();
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a shard", e);
+		}catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			throw new SQLException("Shard operation failed: " + cause, cause);
+		}
+	}
+
+	/**
+	 * Method to replace the contents of every shard with its part of the CSV
+	 * files in a data directory: the reference tables whole, the flight
+	 * tables split by {@link #shardOf(int, int)}, and Repairs on shard 0
+	 * only.  Afterwards the key sequences of shard 0 are moved past the keys
+	 * of every shard.
+	 *
+	 * @param dataDir the directory holding the nine CSV files
+	 * @throws java.sql.SQLException when loading a shard failed
+	 * @throws java.io.IOException when a data file could not be read or split
+	 */
+	public void load(File dataDir) throws SQLException, IOException {
+		Path parts = Files.createTempDirectory("shards");
+		try {
+			File[] dirs = split(dataDir, parts.toFile());
+			for (int i = 0; i < this._shards.length; ++i) {
+				System.out.println("Loading shard " + this._shards[i].name);
+				new BulkLoader(this._shards[i].pool, dirs[i]).load();
+			}
+		}finally {
+			delete(parts.toFile());
+		}
+		alignSequences();
+		System.out.println("Passengers by status: " + passengersByStatus());
+	}
+
+	/*
+	 * Writes the files of every shard into its own directory below parts.
+	 */
+	private File[] split(File dataDir, File parts) throws IOException {
+		File[] dirs = new File[this._shards.length];
+		for (int i = 0; i < dirs.length; ++i) {
+			dirs[i] = new File(parts, "shard" + i);
+			if (!dirs[i].mkdir())
+				throw new IOException("Cannot create " + dirs[i]);
+		}
+		for (String name : REPLICATED)
+			for (File dir : dirs)
+				Files.copy(new File(dataDir, name).toPath(), new File(dir, name).toPath());
+		for (String name : HOME_ONLY) {
+			Files.copy(new File(dataDir, name).toPath(), new File(dirs[0], name).toPath());
+			for (int i = 1; i < dirs.length; ++i)
+				Files.createFile(new File(dirs[i], name).toPath());
+		}
+		for (String[] p : PARTITIONED)
+			split(new File(dataDir, p[0]), Integer.parseInt(p[1]), dirs);
+		return dirs;
+	}
+
+	private void split(File file, int column, File[] dirs) throws IOException {
+		BufferedWriter[] out = new BufferedWriter[dirs.length];
+		BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+		try {
+			for (int i = 0; i < dirs.length; ++i)
+				out[i] = Files.newBufferedWriter(new File(dirs[i], file.getName()).toPath(), StandardCharsets.UTF_8);
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty())
+					continue;
+				// COPY reads these files with a plain comma delimiter, so no field is quoted
+				String[] fields = line.split(",", column + 2);
+				int shard = shardOf(Integer.parseInt(fields[column].trim()), dirs.length);
+				out[shard].write(line);
+				out[shard].newLine();
+			}
+		}catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Bad flight number in " + file + ": " + e.getMessage(), e);
+		}finally {
+			in.close();
+			for (BufferedWriter w : out)
+				if (w != null)
+					w.close();
+		}
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		f.delete();
+	}
+
+	/*
+	 * Shard 0 hands out the keys of the partitioned tables, so its sequences
+	 * must start past the largest key on any shard.
+	 */
+	private void alignSequences() throws SQLException {
+		for (String[] seq : SEQUENCES) {
+			long max = -1;
+			for (List<List<String>> r : scatter("SELECT COALESCE(MAX(" + seq[2] + "), -1) FROM " + seq[1]))
+				max = Math.max(max, Long.parseLong(r.get(0).get(0)));
+			DBproject.queryResult(this._shards[0].pool.borrow(), "SELECT setval(?::regclass, ?, false)",
+				new Object[] { seq[0], max + 1 });
+		}
+	}
+
+	/**
+	 * Method to stop the shard listeners and close the pools of shards 1 and
+	 * up.  The pool of shard 0 is left to its owner.
+	 */
+	@Override
+	public void close() {
+		this._workers.shutdownNow();
+		for (int i = 0; i < this._shards.length; ++i) {
+			this._shards[i].close();
+			if (i > 0)
+				this._shards[i].pool.close();
+		}
+	}
+
+	/**
+	 * One database with its pool, bookings and seat index.
+	 */
+	private static final class Shard {
+		final String name;
+		final ConnectionPool pool;
+		final BookingEngine bookings;
+		// guarded by this; loaded on first use
+		private ChangeListener _changes = null;
+		private SeatAvailabilityService _seats = null;
+
+		Shard(String name, ConnectionPool pool, IdAllocator ids) {
+			this.name = name;
+			this.pool = pool;
+			this.bookings = new BookingEngine(pool, ids);
+		}
+
+		synchronized SeatAvailabilityService seats() throws SQLException {
+			if (this._seats == null) {
+				if (this._changes == null)
+					this._changes = new ChangeListener(this.pool, Long.getLong("dbproject.notify.pollMs", 250L));
+				SeatAvailabilityService seats = new SeatAvailabilityService(this.pool);
+				seats.start(this._changes);
+				this._seats = seats;
+			}
+			return this._seats;
+		}
+
+		synchronized SeatAvailabilityService loadedSeats() {
+			return this._seats;
+		}
+
+		int update(String sql, Object... params) throws SQLException {
+			PooledConnection pc = this.pool.borrow();
+			try {
+				PreparedStatement stmt = pc.prepare(sql);
+				DBproject.bind(stmt, params);
+				Metrics.statement();
+				return stmt.executeUpdate();
+			}finally {
+				this.pool.release(pc);
+			}
+		}
+
+		synchronized void close() {
+			if (this._changes != null)
+				this._changes.close();
+		}
+	}
+}
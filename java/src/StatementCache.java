@@ -0,0 +1,91 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least-recently-used cache of prepared statements for one physical
+ * connection.  Because the pool is opened with <code>prepareThreshold=1</code>
+ * the driver turns each cached statement into a named server-side prepared
+ * statement on first use, so later executions skip parsing and planning.
+ *
+ * A cache belongs to exactly one {@link PooledConnection} and is only ever used
+ * by the thread that borrowed it, so it is not synchronized.
+ *
+ */
+public class StatementCache {
+	private final Connection _connection;
+	private final int _capacity;
+	private final AtomicLong _hits;
+	private final AtomicLong _misses;
+	private final LinkedHashMap<String, PreparedStatement> _statements;
+
+	/**
+	 * @param connection the connection the statements are prepared on
+	 * @param capacity maximum number of statements kept open, at least 1
+	 * @param hits counter incremented on every cache hit
+	 * @param misses counter incremented on every cache miss
+	 */
+	StatementCache(Connection connection, int capacity, AtomicLong hits, AtomicLong misses) {
+		this._connection = connection;
+		this._capacity = capacity;
+		this._hits = hits;
+		this._misses = misses;
+		this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+	}
+
+	/**
+	 * Method to return the prepared statement for the given SQL text,
+	 * preparing it on a miss and closing the least recently used statement
+	 * when the cache is full.
+	 *
+	 * @param sql the SQL text with <code>?</code> placeholders
+	 * @return an open prepared statement with its parameters cleared
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement ps = this._statements.get(sql);
+		if (ps != null && !ps.isClosed()) {
+			this._hits.incrementAndGet();
+			ps.clearParameters();
+			return ps;
+		}
+		this._misses.incrementAndGet();
+		ps = this._connection.prepareStatement(sql);
+		this._statements.put(sql, ps);
+		if (this._statements.size() > this._capacity) {
+			Iterator<Map.Entry<String, PreparedStatement>> it = this._statements.entrySet().iterator();
+			PreparedStatement eldest = it.next().getValue();
+			it.remove();
+			closeQuietly(eldest);
+		}
+		return ps;
+	}
+
+	/**
+	 * @return number of statements currently cached
+	 */
+	public int size() {
+		return this._statements.size();
+	}
+
+	/**
+	 * Method to close every cached statement.
+	 */
+	void clear() {
+		for (PreparedStatement ps : this._statements.values())
+			closeQuietly(ps);
+		this._statements.clear();
+	}
+
+	private static void closeQuietly(PreparedStatement ps) {
+		try {
+			ps.close();
+		}catch (SQLException e) {
+			// ignored.
+		}
+	}
+}
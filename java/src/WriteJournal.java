@@ -0,0 +1,310 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class is an append-only log of client writes in a memory-mapped
+ * file, so a write survives the client process and can be applied to the
+ * database later.
+ *
+ * The file starts with a 32 byte header: the magic <code>DBPJRNL1</code>,
+ * the sequence number of the last record applied to the database and the
+ * offset of the oldest record not yet applied.  Records follow back to
+ * back, each an int payload length, a long sequence number, a type byte, a
+ * CRC-32 of sequence number, type and payload, and the payload.  A zero
+ * length ends the log.
+ *
+ * The records form a ring: when the next record does not fit before the
+ * end of the file, it is written right after the header if the records not
+ * yet applied start far enough past it, and a length of -1 where it would
+ * have gone sends readers to the front.  Space is only refused while the
+ * unapplied records fill the file, not because applied ones lie before
+ * them.
+ *
+ * On open, records are read from the offset in the header, following a
+ * wrap, until one is cut short, fails its checksum or does not have a
+ * larger sequence number than the one before it; that is where the last
+ * run stopped writing.  Records past the applied sequence number are
+ * pending.
+ *
+ * An append is in the page cache when it returns, which survives a crash of
+ * the client but not of the machine; with <code>sync</code> every append
+ * also forces the mapping to disk.
+ *
+ */
+public class WriteJournal implements AutoCloseable {
+	private static final byte[] MAGIC = "DBPJRNL1".getBytes(StandardCharsets.US_ASCII);
+	private static final int HEADER = 32;
+	private static final int APPLIED_AT = 8;
+	private static final int READ_AT = 16;
+	// in place of a length: the log goes on after the header
+	private static final int WRAP = -1;
+	// length, sequence number, type, checksum
+	private static final int RECORD_HEADER = 4 + 8 + 1 + 4;
+
+	private final FileChannel _channel;
+	private final MappedByteBuffer _map;
+	private final boolean _sync;
+	// guarded by this
+	private long _nextSeq;
+	private int _readPos;
+	private int _writePos;
+	// the wrap marker while the records before it are still unread, else -1
+	private int _wrapPos = -1;
+	private long _pending = 0;
+
+	/**
+	 * @param file the journal file, created if missing
+	 * @param capacity size of the file in bytes
+	 * @param sync whether every append is forced to disk
+	 * @throws java.io.IOException when the file could not be opened or is not a journal
+	 */
+	public WriteJournal(Path file, int capacity, boolean sync) throws IOException {
+		this._channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		int size = (int) Math.max(capacity, Math.min(this._channel.size(), Integer.MAX_VALUE));
+		this._map = this._channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		this._sync = sync;
+		byte[] magic = new byte[MAGIC.length];
+		this._map.get(magic);
+		if (magic[0] == 0) {
+			this._map.position(0);
+			this._map.put(MAGIC);
+			this._map.putLong(APPLIED_AT, 0);
+			this._map.putInt(READ_AT, HEADER);
+			this._map.putInt(HEADER, 0);
+		}else if (!java.util.Arrays.equals(magic, MAGIC)) {
+			this._channel.close();
+			throw new IOException(file + " is not a write journal");
+		}
+		recover();
+	}
+
+	/*
+	 * Finds the end of the log and its first pending record.
+	 */
+	private void recover() {
+		long applied = this._map.getLong(APPLIED_AT);
+		long last = 0;
+		int pos = this._map.getInt(READ_AT);
+		if (pos < HEADER || pos >= this._map.capacity())
+			pos = HEADER;
+		int readPos = -1;
+		int wrapPos = -1;
+		while (true) {
+			if (wrapPos < 0 && pos + 4 <= this._map.capacity() && this._map.getInt(pos) == WRAP) {
+				wrapPos = pos;
+				pos = HEADER;
+				continue;
+			}
+			Record r = read(pos, last);
+			if (r == null)
+				break;
+			last = r.seq;
+			if (r.seq > applied) {
+				if (readPos < 0)
+					readPos = pos;
+				++this._pending;
+			}
+			pos = r.next;
+		}
+		this._writePos = pos;
+		this._readPos = readPos < 0 ? pos : readPos;
+		// past the write position only while the oldest pending record is before the wrap
+		this._wrapPos = this._readPos > this._writePos ? wrapPos : -1;
+		this._nextSeq = Math.max(last, applied) + 1;
+	}
+
+	/**
+	 * Method to append a record.
+	 *
+	 * @param type what the record describes
+	 * @param payload the record's data
+	 * @return the sequence number of the record
+	 * @throws java.io.IOException when the journal is full
+	 */
+	public synchronized long append(byte type, byte[] payload) throws IOException {
+		int size = RECORD_HEADER + payload.length;
+		int pos = this._writePos;
+		// each record is followed by room for the end of the log or a wrap
+		boolean wrap = false;
+		if (pos + size + 4 > (this._wrapPos >= 0 ? this._readPos : this._map.capacity())) {
+			// start over at the front if the oldest pending record leaves room there
+			if (this._wrapPos >= 0 || HEADER + size + 4 > this._readPos)
+				throw new IOException("Write journal is full with " + this._pending + " records not yet applied");
+			pos = HEADER;
+			wrap = true;
+		}
+		int end = pos + size;
+		long seq = this._nextSeq++;
+		CRC32 crc = checksum(seq, type, ByteBuffer.wrap(payload));
+		// the body first, the length last, so a torn append fails the checks
+		this._map.putLong(pos + 4, seq);
+		this._map.put(pos + 12, type);
+		this._map.putInt(pos + 13, (int) crc.getValue());
+		this._map.position(pos + RECORD_HEADER);
+		this._map.put(payload);
+		this._map.putInt(end, 0);
+		this._map.putInt(pos, payload.length);
+		if (wrap) {
+			// the marker last, so the record it leads to is complete
+			this._map.putInt(this._writePos, WRAP);
+			if (this._readPos == this._writePos) {
+				// nothing was pending, so the reader can start at the front
+				this._readPos = HEADER;
+				this._map.putInt(READ_AT, HEADER);
+			}else {
+				this._wrapPos = this._writePos;
+			}
+		}
+		this._writePos = end;
+		++this._pending;
+		if (this._sync)
+			this._map.force();
+		notifyAll();
+		return seq;
+	}
+
+	/**
+	 * Method to wait for the oldest record not yet applied.
+	 *
+	 * @param timeoutMillis how long to wait for one
+	 * @return the record, or null if there was none in time
+	 * @throws java.lang.InterruptedException when interrupted while waiting
+	 */
+	public synchronized Record oldest(long timeoutMillis) throws InterruptedException {
+		if (this._readPos == this._writePos)
+			wait(timeoutMillis);
+		return this._readPos == this._writePos ? null : read(this._readPos, 0);
+	}
+
+	/**
+	 * Method to record that the oldest pending record has been applied, or
+	 * given up on.
+	 *
+	 * @param r the record returned by {@link #oldest(long)}
+	 */
+	public synchronized void applied(Record r) {
+		this._readPos = r.next;
+		if (this._readPos == this._wrapPos) {
+			this._readPos = HEADER;
+			this._wrapPos = -1;
+		}
+		// a crash between the two only skips records that were applied
+		this._map.putInt(READ_AT, this._readPos);
+		this._map.putLong(APPLIED_AT, r.seq);
+		--this._pending;
+		notifyAll();
+	}
+
+	/**
+	 * Method to read every record not yet applied without consuming them.
+	 *
+	 * @return the pending records, oldest first
+	 */
+	public synchronized List<Record> records() {
+		List<Record> records = new ArrayList<Record>();
+		int pos = this._readPos;
+		while (pos != this._writePos) {
+			if (pos == this._wrapPos)
+				pos = HEADER;
+			Record r = read(pos, 0);
+			records.add(r);
+			pos = r.next;
+		}
+		return records;
+	}
+
+	/**
+	 * @return number of records not yet applied
+	 */
+	public synchronized long pending() {
+		return this._pending;
+	}
+
+	/**
+	 * Method to wait until every record has been applied.
+	 *
+	 * @param timeoutMillis how long to wait at most
+	 * @return whether the journal is empty
+	 * @throws java.lang.InterruptedException when interrupted while waiting
+	 */
+	public synchronized boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		while (this._pending > 0) {
+			long left = (deadline - System.nanoTime()) / 1000000L;
+			if (left <= 0)
+				return false;
+			wait(left);
+		}
+		return true;
+	}
+
+	/*
+	 * Reads the record at pos, or returns null where the log ends.
+	 */
+	private Record read(int pos, long after) {
+		if (pos + RECORD_HEADER > this._map.capacity())
+			return null;
+		int length = this._map.getInt(pos);
+		if (length <= 0 || pos + RECORD_HEADER + length > this._map.capacity())
+			return null;
+		long seq = this._map.getLong(pos + 4);
+		byte type = this._map.get(pos + 12);
+		int crc = this._map.getInt(pos + 13);
+		ByteBuffer payload = this._map.duplicate();
+		payload.position(pos + RECORD_HEADER);
+		payload.limit(pos + RECORD_HEADER + length);
+		payload = payload.slice();
+		if (seq <= after || (int) checksum(seq, type, payload.duplicate()).getValue() != crc)
+			return null;
+		byte[] data = new byte[length];
+		payload.get(data);
+		return new Record(seq, type, data, pos + RECORD_HEADER + length);
+	}
+
+	private static CRC32 checksum(long seq, byte type, ByteBuffer payload) {
+		CRC32 crc = new CRC32();
+		ByteBuffer head = ByteBuffer.allocate(9);
+		head.putLong(seq).put(type).flip();
+		crc.update(head);
+		crc.update(payload);
+		return crc;
+	}
+
+	/**
+	 * Method to write the mapping to disk and close the file.  Pending
+	 * records are applied after the next open.
+	 *
+	 * @throws java.io.IOException when the file could not be closed
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		this._map.force();
+		this._channel.close();
+	}
+
+	/**
+	 * One record of the journal.
+	 */
+	public static final class Record {
+		public final long seq;
+		public final byte type;
+		public final byte[] payload;
+		// offset of the record after this one
+		final int next;
+
+		Record(long seq, byte type, byte[] payload, int next) {
+			this.seq = seq;
+			this.type = type;
+			this.payload = payload;
+			this.next = next;
+		}
+	}
+}
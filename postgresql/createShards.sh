@@ -0,0 +1,12 @@
+#! /bin/bash
+# Creates the extra shard databases for a sharded client (see
+# ShardedBackend.java), each with the full schema.  The database made by
+# createPostgreDB.sh is shard 0.  Then split the data over all of them with
+#   java -Ddbproject.shards=$USER"_DB_shard1",... DBproject $USER"_DB" $PGPORT $USER --load-shards ../data
+SHARDS=${SHARDS:-4}
+
+for ((i = 1; i < SHARDS; i++)); do
+	echo "creating db named ... "$USER"_DB_shard"$i
+	createdb -h localhost -p $PGPORT $USER"_DB_shard"$i
+	psql -h localhost -p $PGPORT $USER"_DB_shard"$i < ../sql/create.sql
+done
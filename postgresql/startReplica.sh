@@ -0,0 +1,22 @@
+#! /bin/bash
+# Starts a streaming read replica of the database started by
+# startPostgreSQL.sh, for testing read/write splitting (see ReadRouter.java).
+# Run it after startPostgreSQL.sh and createPostgreDB.sh, then start the
+# client with -Ddbproject.replicas=localhost:$REPLICA_PORT
+folder=/tmp/$USER
+export REPLICA_PORT=${REPLICA_PORT:-9019}
+export REPLICA_DATA=$folder/replica/data
+export REPLICA_SOCKETS=$folder/replica/sockets
+
+#Clear folder
+rm -rf $folder/replica
+
+#Initialize folders
+mkdir -p $REPLICA_SOCKETS
+
+#Copy the primary and have the copy follow it (-R writes the standby settings)
+pg_basebackup -h localhost -p $PGPORT -D $REPLICA_DATA -R -X stream
+
+sleep 1
+#Start folder
+pg_ctl -o "-c unix_socket_directories=$REPLICA_SOCKETS -p $REPLICA_PORT -c hot_standby=on" -D $REPLICA_DATA -l $folder/replica/logfile start
@@ -0,0 +1,2 @@
+#! /bin/bash
+pg_ctl -D /tmp/$USER/replica/data -l /tmp/$USER/replica/logfile stop
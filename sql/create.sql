@@ -217,4 +217,215 @@ COPY Schedule (
 	arrival_time
 )
 FROM 'schedule.csv'
-WITH DELIMITER ',';
\ No newline at end of file
+WITH DELIMITER ',';
+
+-------------
+---INDEXES---
+-------------
+-- Secondary indexes behind the hot paths, built after the data is loaded.
+-- PlanRegression.java checks that the menu queries use them.
+CREATE INDEX reservation_fid_status ON Reservation (fid, status);	-- waitlist promotion, seat reloads
+CREATE INDEX reservation_status ON Reservation (status);	-- menu 9
+CREATE INDEX flightinfo_flight_id ON FlightInfo (flight_id);	-- menu 6, booking capacity
+CREATE INDEX repairs_plane_id ON Repairs (plane_id);	-- repairs per plane
+CREATE INDEX repairs_repair_date ON Repairs (repair_date);	-- repairs per year
+
+-- Repairs and Schedule are created unpartitioned.  On PostgreSQL 11 or later
+-- "DBproject <dbname> <port> <user> --partitions" migrates them to yearly and
+-- monthly date-range partitions and, run again, keeps them current (see
+-- PartitionManager.java).
+
+---------------
+---SEQUENCES---
+---------------
+-- Each nextval reserves a block of 50 ids for one client (hi/lo, see
+-- IdAllocator.java).  The sequences start after the loaded data.
+CREATE SEQUENCE plane_id_seq MINVALUE 0 INCREMENT BY 50 OWNED BY Plane.id;
+CREATE SEQUENCE pilot_id_seq MINVALUE 0 INCREMENT BY 50 OWNED BY Pilot.id;
+CREATE SEQUENCE technician_id_seq MINVALUE 0 INCREMENT BY 50 OWNED BY Technician.id;
+CREATE SEQUENCE flight_fnum_seq MINVALUE 0 INCREMENT BY 50 OWNED BY Flight.fnum;
+CREATE SEQUENCE flightinfo_fiid_seq MINVALUE 0 INCREMENT BY 50 OWNED BY FlightInfo.fiid;
+CREATE SEQUENCE reservation_rnum_seq MINVALUE 0 INCREMENT BY 50 OWNED BY Reservation.rnum;
+
+SELECT setval('plane_id_seq', (SELECT COALESCE(MAX(id), -1) + 1 FROM Plane), false);
+SELECT setval('pilot_id_seq', (SELECT COALESCE(MAX(id), -1) + 1 FROM Pilot), false);
+SELECT setval('technician_id_seq', (SELECT COALESCE(MAX(id), -1) + 1 FROM Technician), false);
+SELECT setval('flight_fnum_seq', (SELECT COALESCE(MAX(fnum), -1) + 1 FROM Flight), false);
+SELECT setval('flightinfo_fiid_seq', (SELECT COALESCE(MAX(fiid), -1) + 1 FROM FlightInfo), false);
+SELECT setval('reservation_rnum_seq', (SELECT COALESCE(MAX(rnum), -1) + 1 FROM Reservation), false);
+
+--------------
+---TRIGGERS---
+--------------
+-- Seat changes are announced on channel seat_changes with the flight
+-- number as payload ('*' for a plane change), so the in-memory seat
+-- index (SeatAvailabilityService.java) can reload just that flight.
+CREATE FUNCTION notify_flight_seat_change() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP <> 'INSERT' THEN
+		PERFORM pg_notify('seat_changes', OLD.fnum::text);
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		PERFORM pg_notify('seat_changes', NEW.fnum::text);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION notify_reservation_seat_change() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP <> 'INSERT' THEN
+		PERFORM pg_notify('seat_changes', OLD.fid::text);
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		PERFORM pg_notify('seat_changes', NEW.fid::text);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION notify_flightinfo_seat_change() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP <> 'INSERT' THEN
+		PERFORM pg_notify('seat_changes', OLD.flight_id::text);
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		PERFORM pg_notify('seat_changes', NEW.flight_id::text);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION notify_plane_seat_change() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('seat_changes', '*');
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER flight_seat_change AFTER INSERT OR UPDATE OR DELETE ON Flight
+	FOR EACH ROW EXECUTE PROCEDURE notify_flight_seat_change();
+CREATE TRIGGER reservation_seat_change AFTER INSERT OR UPDATE OF fid, status OR DELETE ON Reservation
+	FOR EACH ROW EXECUTE PROCEDURE notify_reservation_seat_change();
+CREATE TRIGGER flightinfo_seat_change AFTER INSERT OR UPDATE OR DELETE ON FlightInfo
+	FOR EACH ROW EXECUTE PROCEDURE notify_flightinfo_seat_change();
+CREATE TRIGGER plane_seat_change AFTER UPDATE OF seats OR DELETE ON Plane
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_plane_seat_change();
+
+-- Inserted and deleted ids of the reference tables are announced on
+-- channel id_changes as 'table:+id' or 'table:-id' ('table:*' after a
+-- truncate), so the in-memory id index (IdIndex.java) stays current.
+CREATE FUNCTION notify_id_change() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'TRUNCATE' THEN
+		PERFORM pg_notify('id_changes', TG_TABLE_NAME || ':*');
+	ELSIF TG_OP = 'DELETE' THEN
+		PERFORM pg_notify('id_changes', TG_TABLE_NAME || ':-' || OLD.id);
+	ELSE
+		PERFORM pg_notify('id_changes', TG_TABLE_NAME || ':+' || NEW.id);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER plane_id_change AFTER INSERT OR DELETE ON Plane
+	FOR EACH ROW EXECUTE PROCEDURE notify_id_change();
+CREATE TRIGGER pilot_id_change AFTER INSERT OR DELETE ON Pilot
+	FOR EACH ROW EXECUTE PROCEDURE notify_id_change();
+CREATE TRIGGER customer_id_change AFTER INSERT OR DELETE ON Customer
+	FOR EACH ROW EXECUTE PROCEDURE notify_id_change();
+CREATE TRIGGER technician_id_change AFTER INSERT OR DELETE ON Technician
+	FOR EACH ROW EXECUTE PROCEDURE notify_id_change();
+CREATE TRIGGER plane_id_truncate AFTER TRUNCATE ON Plane
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_id_change();
+CREATE TRIGGER pilot_id_truncate AFTER TRUNCATE ON Pilot
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_id_change();
+CREATE TRIGGER customer_id_truncate AFTER TRUNCATE ON Customer
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_id_change();
+CREATE TRIGGER technician_id_truncate AFTER TRUNCATE ON Technician
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_id_change();
+
+----------------
+---AGGREGATES---
+----------------
+-- Repair counts per plane and per year, kept current by triggers on
+-- Repairs so that menus 7 and 8 never rescan the base table.  See
+-- RepairAggregates.java for the consistency check and rebuild.
+CREATE TABLE RepairsPerPlane
+(
+	plane_id INTEGER NOT NULL,
+	repair_count INTEGER NOT NULL,
+	PRIMARY KEY (plane_id)
+);
+
+CREATE TABLE RepairsPerYear
+(
+	repair_year INTEGER NOT NULL,
+	repair_count INTEGER NOT NULL,
+	PRIMARY KEY (repair_year)
+);
+
+CREATE FUNCTION maintain_repair_aggregates() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP <> 'INSERT' THEN
+		UPDATE RepairsPerPlane SET repair_count = repair_count - 1 WHERE plane_id = OLD.plane_id;
+		DELETE FROM RepairsPerPlane WHERE plane_id = OLD.plane_id AND repair_count <= 0;
+		UPDATE RepairsPerYear SET repair_count = repair_count - 1
+			WHERE repair_year = EXTRACT(YEAR FROM OLD.repair_date);
+		DELETE FROM RepairsPerYear WHERE repair_year = EXTRACT(YEAR FROM OLD.repair_date) AND repair_count <= 0;
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		INSERT INTO RepairsPerPlane (plane_id, repair_count) VALUES (NEW.plane_id, 1)
+			ON CONFLICT (plane_id) DO UPDATE SET repair_count = RepairsPerPlane.repair_count + 1;
+		INSERT INTO RepairsPerYear (repair_year, repair_count) VALUES (EXTRACT(YEAR FROM NEW.repair_date), 1)
+			ON CONFLICT (repair_year) DO UPDATE SET repair_count = RepairsPerYear.repair_count + 1;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION truncate_repair_aggregates() RETURNS trigger AS $$
+BEGIN
+	TRUNCATE RepairsPerPlane, RepairsPerYear;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Recomputes both aggregates from Repairs, blocking writers meanwhile.
+CREATE FUNCTION rebuild_repair_aggregates() RETURNS void AS $$
+BEGIN
+	LOCK TABLE Repairs IN SHARE MODE;
+	DELETE FROM RepairsPerPlane;
+	INSERT INTO RepairsPerPlane (plane_id, repair_count)
+		SELECT plane_id, count(*) FROM Repairs GROUP BY plane_id;
+	DELETE FROM RepairsPerYear;
+	INSERT INTO RepairsPerYear (repair_year, repair_count)
+		SELECT EXTRACT(YEAR FROM repair_date), count(*) FROM Repairs GROUP BY 1;
+	PERFORM pg_notify('table_changes', 'repairs');
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER repair_aggregates AFTER INSERT OR UPDATE OF plane_id, repair_date OR DELETE ON Repairs
+	FOR EACH ROW EXECUTE PROCEDURE maintain_repair_aggregates();
+CREATE TRIGGER repair_aggregates_truncate AFTER TRUNCATE ON Repairs
+	FOR EACH STATEMENT EXECUTE PROCEDURE truncate_repair_aggregates();
+
+SELECT rebuild_repair_aggregates();
+
+--------------------
+---REPORT CACHING---
+--------------------
+-- Every statement that changes Repairs or Reservation is announced on
+-- channel table_changes with the table name as payload, so the cached
+-- results of menus 7 to 9 (ResultCache.java) are dropped.
+CREATE FUNCTION notify_table_change() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('table_changes', TG_TABLE_NAME);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER repairs_table_change AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Repairs
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_change();
+CREATE TRIGGER reservation_table_change AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Reservation
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_change();